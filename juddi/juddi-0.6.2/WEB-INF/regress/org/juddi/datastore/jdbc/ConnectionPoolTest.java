@@ -0,0 +1,235 @@
+/*
+ * jUDDI - An open source Java implementation of UDDI v2.0
+ * http://juddi.org/
+ *
+ * Copyright (c) 2002, InflexionPoint and contributors
+ * All rights reserved.
+ */
+
+package org.juddi.datastore.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * Exercises ConnectionPool against in-memory HSQLDB databases.
+ */
+public class ConnectionPoolTest extends TestCase
+{
+  private static final String BAD_URL = "jdbc:nosuchdriver:pool";
+  private static int databases = 0;
+
+  private String url;
+  private ConnectionPool pool;
+
+  protected void setUp()
+    throws Exception
+  {
+    Class.forName("org.hsqldb.jdbcDriver");
+    url = "jdbc:hsqldb:.ConnectionPoolTest" + (databases++);
+  }
+
+  protected void tearDown()
+  {
+    if (pool != null)
+      pool.close();
+  }
+
+  private ConnectionPool pool(String url, int maxSize, int minIdle, long waitTimeout)
+  {
+    pool = new ConnectionPool(url, "sa", "", maxSize, minIdle, 300000, waitTimeout);
+    return pool;
+  }
+
+  public void testReusesMostRecentlyGivenBack()
+    throws Exception
+  {
+    ConnectionPool pool = pool(url, 2, 0, 1000);
+    Connection a = pool.take();
+    Connection b = pool.take();
+    assertNotSame(a, b);
+    assertEquals(2, pool.getActive());
+    pool.give(a);
+    pool.give(b);
+    assertEquals(0, pool.getActive());
+    assertEquals(2, pool.getIdle());
+    assertSame(b, pool.peek());
+    assertSame(b, pool.take());
+    assertSame(a, pool.take());
+  }
+
+  public void testTimesOutAtMaxSize()
+    throws Exception
+  {
+    ConnectionPool pool = pool(url, 1, 0, 200);
+    Connection c = pool.take();
+    long start = System.currentTimeMillis();
+    try {
+      pool.take();
+      fail("took a second connection from a pool of one");
+    }
+    catch(SQLException sqlex) {
+      assertTrue(sqlex.getMessage(), sqlex.getMessage().startsWith("Timed out"));
+    }
+    assertTrue(System.currentTimeMillis() - start >= 200);
+    assertEquals(1, pool.getActive());
+
+    // and is usable again once the connection is given back
+    pool.give(c);
+    assertSame(c, pool.take());
+  }
+
+  public void testWaiterGetsConnectionGivenBack()
+    throws Exception
+  {
+    final ConnectionPool pool = pool(url, 1, 0, 10000);
+    Connection c = pool.take();
+    final Connection[] taken = new Connection[1];
+    final SQLException[] failed = new SQLException[1];
+    Thread waiter = new Thread() {
+        public void run()
+        {
+          try {
+            taken[0] = pool.take();
+          }
+          catch(SQLException sqlex) {
+            failed[0] = sqlex;
+          }
+        }
+      };
+    waiter.start();
+    Thread.sleep(100);
+    assertTrue(waiter.isAlive());   // waiting for c
+
+    pool.give(c);
+    waiter.join(5000);
+    assertNull(failed[0]);
+    assertSame(c, taken[0]);
+    assertEquals(1, pool.getActive());
+  }
+
+  public void testFailedOpenInTakeGivesUpItsPlace()
+    throws Exception
+  {
+    ConnectionPool pool = pool(BAD_URL, 1, 0, 200);
+    for (int i = 0; i < 3; i++) {
+      try {
+        pool.take();
+        fail("connected to " + BAD_URL);
+      }
+      catch(SQLException sqlex) {
+        // the driver's failure, not a timeout waiting for a leaked place
+        assertFalse(sqlex.getMessage(), sqlex.getMessage().startsWith("Timed out"));
+      }
+      assertEquals(0, pool.getActive());
+    }
+  }
+
+  public void testFailedOpenInSweepGivesUpItsPlace()
+  {
+    ConnectionPool pool = pool(BAD_URL, 2, 2, 200);
+    pool.sweep();
+    assertEquals(0, pool.getActive());
+    assertEquals(0, pool.getIdle());
+  }
+
+  public void testSweepKeepsMinIdleOpen()
+    throws Exception
+  {
+    ConnectionPool pool = pool(url, 4, 2, 1000);
+    pool.sweep();
+    assertEquals(0, pool.getActive());
+    assertEquals(2, pool.getIdle());
+
+    // connections in use count towards the minimum
+    Connection c = pool.take();
+    pool.sweep();
+    assertEquals(1, pool.getActive());
+    assertEquals(1, pool.getIdle());
+    pool.give(c);
+
+    // and nothing is opened once the pool has been closed
+    pool.close();
+    pool.sweep();
+    assertEquals(0, pool.getIdle());
+  }
+
+  public void testIdleConnectionsValidatedAfterShutdown()
+    throws Exception
+  {
+    ConnectionPool pool = pool(url, 2, 0, 1000);
+    Connection a = pool.take();
+    Connection b = pool.take();
+    execute(a, "CREATE TABLE T (K INTEGER)");
+    execute(a, "INSERT INTO T VALUES(1)");
+    pool.give(a);
+    execute(b, "SHUTDOWN");
+    pool.give(b);
+
+    pool.validateAfter = 0;
+    Connection c = pool.take();
+    assertNotSame(a, c);
+    assertNotSame(b, c);
+    execute(c, "CALL 0");
+    assertEquals(1, pool.getActive());
+    assertEquals(0, pool.getIdle());
+  }
+
+  public void testAutoCommitRestoredWhenGivenBack()
+    throws Exception
+  {
+    ConnectionPool pool = pool(url, 1, 0, 1000);
+    Connection c = pool.take();
+    execute(c, "CREATE TABLE T (K INTEGER)");
+    c.setAutoCommit(false);
+    execute(c, "INSERT INTO T VALUES(1)");
+    pool.give(c);
+
+    c = pool.take();
+    assertTrue(c.getAutoCommit());
+    // the uncommitted insert went with the transaction
+    assertEquals(0, count(c));
+  }
+
+  public void testClosedConnectionNotReused()
+    throws Exception
+  {
+    ConnectionPool pool = pool(url, 1, 0, 1000);
+    Connection c = pool.take();
+    c.close();
+    pool.give(c);
+    assertEquals(0, pool.getActive());
+    assertEquals(0, pool.getIdle());
+    assertNotSame(c, pool.take());
+  }
+
+  private static void execute(Connection c, String sql)
+    throws SQLException
+  {
+    Statement statement = c.createStatement();
+    try {
+      statement.execute(sql);
+    }
+    finally {
+      statement.close();
+    }
+  }
+
+  private static int count(Connection c)
+    throws SQLException
+  {
+    Statement statement = c.createStatement();
+    try {
+      ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM T");
+      rs.next();
+      return rs.getInt(1);
+    }
+    finally {
+      statement.close();
+    }
+  }
+}
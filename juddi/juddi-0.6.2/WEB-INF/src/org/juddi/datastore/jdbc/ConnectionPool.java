@@ -0,0 +1,309 @@
+/*
+ * jUDDI - An open source Java implementation of UDDI v2.0
+ * http://juddi.org/
+ *
+ * Copyright (c) 2002, InflexionPoint and contributors
+ * All rights reserved.
+ */
+
+package org.juddi.datastore.jdbc;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A bounded pool of connections to a single database.
+ *
+ * At most maxSize connections are handed out at once; take blocks
+ * (for up to waitTimeout milliseconds) until one is given back.  Idle
+ * connections are reused most recently used first, so that those left
+ * over from a burst of activity age and are closed by sweep once they
+ * have been idle for idleTimeout milliseconds.  sweep also keeps minIdle
+ * connections open, so an HSQLDB database, which shuts down when its
+ * last connection is closed, stays open until close is called.
+ *
+ * A connection which has been idle for a while is checked before it is
+ * handed out, and replaced if the database has been shut down under it.
+ * A connection given back with autocommit off, as a Transaction or batch
+ * leaves it, has any uncommitted work rolled back and autocommit turned
+ * on again, so that the next user gets it as DriverManager would.
+ *
+ * All state is synchronized on the pool.  Connections are opened and
+ * closed without holding the lock.
+ */
+class ConnectionPool
+{
+  // private reference to the jUDDI logger
+  private static Logger log = Logger.getLogger(ConnectionPool.class);
+
+  // connections idle for longer than this are validated before use
+  private static final long VALIDATE_AFTER = 30000;
+
+  private static final class Idle
+  {
+    final Connection connection;
+    final long since;
+
+    Idle(Connection connection, long since)
+    {
+      this.connection = connection;
+      this.since = since;
+    }
+  }
+
+  private final String url;
+  private final String user;
+  private final String password;
+  private final int maxSize;
+  private final int minIdle;
+  private final long idleTimeout;
+  private final long waitTimeout;
+
+  // Idle connections, most recently used first
+  private final LinkedList idle = new LinkedList();
+  // number of connections handed out and not yet given back
+  private int active = 0;
+  // true once close has been called, until the next take
+  private boolean closed = false;
+  // package-private so that tests need not wait for VALIDATE_AFTER
+  long validateAfter = VALIDATE_AFTER;
+
+  ConnectionPool(String url, String user, String password,
+                 int maxSize, int minIdle, long idleTimeout, long waitTimeout)
+  {
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    this.maxSize = Math.max(1, maxSize);
+    this.minIdle = Math.max(0, Math.min(minIdle, this.maxSize));
+    this.idleTimeout = idleTimeout;
+    this.waitTimeout = waitTimeout;
+  }
+
+  /**
+   * Take an idle connection, or open a new one if there is none and
+   * fewer than maxSize are in use.  Otherwise wait for one to be given
+   * back.
+   */
+  Connection take()
+    throws SQLException
+  {
+    long deadline = System.currentTimeMillis() + waitTimeout;
+    while (true) {
+      Idle reuse = null;
+      synchronized (this) {
+        closed = false;
+        while (idle.isEmpty() && active >= maxSize) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0)
+            throw new SQLException("Timed out waiting for one of " + maxSize +
+                                   " connections to " + url);
+          try {
+            wait(wait);
+          }
+          catch(InterruptedException ie) {
+            throw new SQLException("Interrupted waiting for a connection to " + url);
+          }
+        }
+        if (!idle.isEmpty())
+          reuse = (Idle) idle.removeFirst();
+        active++;
+      }
+
+      if (reuse == null)
+        return open();
+      if (isValid(reuse))
+        return reuse.connection;
+
+      // the database went away under it: try again
+      close(reuse.connection);
+      synchronized (this) {
+        active--;
+        notify();
+      }
+    }
+  }
+
+  /**
+   * Give back a connection handed out by take.
+   */
+  void give(Connection connection)
+  {
+    boolean usable;
+    try {
+      usable = !connection.isClosed();
+      if (usable && !connection.getAutoCommit()) {
+        connection.rollback();
+        connection.setAutoCommit(true);
+      }
+    }
+    catch(SQLException sqlex) {
+      log.error("Exception occured while checking a released " +
+                "JDBC connection to " + url + ": " + sqlex.getMessage());
+      usable = false;
+      close(connection);
+    }
+
+    synchronized (this) {
+      active--;
+      if (usable)
+        idle.addFirst(new Idle(connection, System.currentTimeMillis()));
+      notify();
+    }
+  }
+
+  /**
+   * @return the most recently used idle connection, without taking it,
+   * or null if there is none.
+   */
+  synchronized Connection peek()
+  {
+    return idle.isEmpty() ? null : ((Idle) idle.getFirst()).connection;
+  }
+
+  /**
+   * Close the connections which have been idle for longer than
+   * idleTimeout, keeping at least minIdle open, and then open more
+   * connections if fewer than minIdle are open.  Does nothing once
+   * close has been called, until the pool is used again.
+   */
+  void sweep()
+  {
+    List stale = new ArrayList();
+    int wanted;
+    synchronized (this) {
+      if (closed)
+        return;
+      long cutoff = System.currentTimeMillis() - idleTimeout;
+      while (idle.size() > minIdle && ((Idle) idle.getLast()).since < cutoff)
+        stale.add(((Idle) idle.removeLast()).connection);
+      wanted = minIdle - (idle.size() + active);
+      // count the ones we are about to open against maxSize
+      if (wanted > 0)
+        active += wanted;
+    }
+
+    for (Iterator i = stale.iterator(); i.hasNext(); )
+      close((Connection) i.next());
+
+    for (int i = 0; i < wanted; i++) {
+      Connection connection = null;
+      try {
+        connection = open();
+      }
+      catch(SQLException sqlex) {
+        log.error("Exception occured while warming the pool for " + url +
+                  ": " + sqlex.getMessage());
+      }
+      if (connection != null)
+        give(connection);       // open has already given up its place if not
+    }
+
+    if (log.isDebugEnabled())
+      log.debug("Swept " + this + ", closing " + stale.size());
+  }
+
+  /**
+   * Close all of the idle connections.  Connections in use are not
+   * affected, and return to the pool when given back.
+   *
+   * @return false if a connection could not be closed.
+   */
+  boolean close()
+  {
+    List all = new ArrayList();
+    synchronized (this) {
+      closed = true;
+      for (Iterator i = idle.iterator(); i.hasNext(); )
+        all.add(((Idle) i.next()).connection);
+      idle.clear();
+    }
+
+    boolean success = true;
+    for (Iterator i = all.iterator(); i.hasNext(); )
+      success &= close((Connection) i.next());
+    return success;
+  }
+
+  /**
+   * @return the number of connections handed out and not yet given back.
+   */
+  synchronized int getActive()
+  {
+    return active;
+  }
+
+  /**
+   * @return the number of idle connections.
+   */
+  synchronized int getIdle()
+  {
+    return idle.size();
+  }
+
+  public synchronized String toString()
+  {
+    return "<ConnectionPool " + url + " " + active + " active, " + idle.size() +
+      " idle (max " + maxSize + ", min idle " + minIdle + ")>";
+  }
+
+  private Connection open()
+    throws SQLException
+  {
+    try {
+      return DriverManager.getConnection(url, user, password);
+    }
+    catch(SQLException sqlex) {
+      synchronized (this) {
+        active--;
+        notify();
+      }
+      throw sqlex;
+    }
+  }
+
+  private boolean isValid(Idle candidate)
+  {
+    try {
+      if (candidate.connection.isClosed())
+        return false;
+      if (System.currentTimeMillis() - candidate.since < validateAfter)
+        return true;
+
+      Statement statement = candidate.connection.createStatement();
+      try {
+        statement.executeQuery("CALL 0").close();
+      }
+      finally {
+        statement.close();
+      }
+      return true;
+    }
+    catch(SQLException sqlex) {
+      if (log.isDebugEnabled())
+        log.debug("Discarding idle connection to " + url + ": " + sqlex.getMessage());
+      return false;
+    }
+  }
+
+  private boolean close(Connection connection)
+  {
+    try {
+      connection.close();
+      return true;
+    }
+    catch(SQLException sqlex) {
+      log.error("Exception occured while attempting to close a " +
+                "JDBC connection to " + url + ": " + sqlex.getMessage());
+      return false;
+    }
+  }
+}
@@ -16,8 +16,13 @@ import org.apache.log4j.Logger;
 import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
   
 /**
  * Implementation of Factory pattern to decide which class that
@@ -43,21 +48,41 @@ public class HSQLDataStoreFactory extends DataStoreFactory
   private static final String jdbcPassword  = "";
   private static final boolean perThread = Config.getOneServerPerThread();
 
-  private static final boolean inMemory = Config.getInMemoryDatabase();
-
-
-
-
   // Use Config.dbTag as the HashMap key. So ... if process is using more than
   // 1 database, must set dbTag before each interaction. Connections are not
   // re-entrant so only one thread can be using a connection at a time.
-  private static HashMap cachedConnections = new HashMap();
+  // Each value is the ConnectionPool of the database: a connection is taken
+  // from the pool by aquireDataStore and given back by releaseDataStore, so
+  // concurrent threads using the same dbTag each get their own connection.
+  private static HashMap pools = new HashMap();
+
+  // Connections which keep in-memory databases open, keyed by dbTag.
+  // HSQLDB shuts down a standalone database when its last connection is
+  // closed, which would throw away the contents of an in-memory database.
+  private static HashMap anchorConnections = new HashMap();
+
+  // Connection bound to the current thread by beginBatch, if any.
+  private static final ThreadLocal batchConnection = new ThreadLocal();
 
 
   /**
    *
    */
   public HSQLDataStoreFactory()
+  {
+    loadDriver();
+  }
+
+  /**
+   * The static database management methods may be called before any 
+   * factory instance is constructed.
+   */
+  static
+  {
+    loadDriver();
+  }
+
+  private static void loadDriver()
   {
     try {
       Class.forName(jdbcDriver);
@@ -80,44 +105,448 @@ public class HSQLDataStoreFactory extends DataStoreFactory
 
   /**
    * using this function will allow JUDDI to use both file and memory based 
-   * HSQL instances.
+   * HSQL instances.  Each dbTag gets its own in-memory database.
    */
   public static String getURL() {
-    String url = inMemory ? inMemoryURL : jdbcURL();
+    String url = isInMemory() ? (inMemoryURL + Config.dbTag.get()) : jdbcURL();
     return url;
   }
 
   /**
-   *
+   * True if the database for the current dbTag is an in-memory database,
+   * as configured by org.juddi.inMemoryDatabase in its juddi.properties.
    */
-  public DataStore aquireDataStore()
+  public static boolean isInMemory() {
+    return Config.getInMemoryDatabase();
+  }
+
+  /**
+   * Keep the database for the current dbTag open until closeDatabase is
+   * called, even while no connections are in use.  Required before
+   * loading an in-memory database; harmless for a file database.
+   */
+  public static void openDatabase()
+    throws SQLException
   {
-    Connection connection = (Connection) cachedConnections.get(Config.dbTag.get());
-    
-    if (connection == null) {
+    Object tag = Config.dbTag.get();
+    synchronized (anchorConnections) {
+      if (anchorConnections.get(tag) == null) {
+        anchorConnections.put(tag, DriverManager.getConnection(getURL(), 
+                                                              jdbcUserID, 
+                                                              jdbcPassword));
+      }
+    }
+  }
+
+  /**
+   * Close all connections to the database for the current dbTag,
+   * including the one held by openDatabase.  This discards the contents
+   * of an in-memory database.
+   */
+  public static boolean closeDatabase()
+  {
+    boolean success = closeConnection();
+
+    Connection anchor;
+    synchronized (anchorConnections) {
+      anchor = (Connection) anchorConnections.remove(Config.dbTag.get());
+    }
+    if (anchor != null) {
       try {
-        connection = DriverManager.getConnection(getURL(), 
-						 jdbcUserID, 
-						 jdbcPassword);
-	cachedConnections.put(Config.dbTag.get(), connection);
+        anchor.close();
       } catch(SQLException sqlex) {
-        log.error("Exception occured while attempting to create a " +
-		  "new JDBC connection: for getURL() " + sqlex.getMessage());
-	return null;
+        log.error("Exception occured while attempting to close the " +
+		  "database: for " + Config.dbTag.get() + sqlex.getMessage());
+	success = false;
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Open the file database at path (as in "jdbc:hsqldb:" + path) and
+   * shut it down compacted, leaving a script which holds just the
+   * statements that recreate it and marking it as cleanly closed, so
+   * that it opens without recovery.  The database must not be in use.
+   */
+  public static void compactDatabase(String path)
+    throws SQLException
+  {
+    Connection connection = DriverManager.getConnection("jdbc:hsqldb:" + path,
+                                                        jdbcUserID,
+                                                        jdbcPassword);
+    try {
+      Statement statement = connection.createStatement();
+      try {
+        statement.execute("SHUTDOWN COMPACT");
+      }
+      finally {
+        statement.close();
+      }
+    }
+    finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * Script the database for the current dbTag.
+   *
+   * @return a List of SQL statements (Strings) which will recreate the
+   * tables and contents of the database when passed to loadScript.
+   */
+  public static List scriptDatabase()
+    throws SQLException
+  {
+    Connection connection = takeConnection();
+    if (connection == null)
+      throw new SQLException("Could not connect to " + getURL());
+
+    try {
+      List statements = new ArrayList();
+      Statement statement = connection.createStatement();
+      try {
+        ResultSet rs = statement.executeQuery("SCRIPT");
+        while (rs.next())
+          statements.add(rs.getString(1));
+      } 
+      finally {
+        statement.close();
+      }
+      return statements;
+    }
+    finally {
+      returnConnection(connection);
+    }
+  }
+
+  /**
+   * Checkpoint the database for the current dbTag, so that its script 
+   * holds just the statements which recreate the current contents and
+   * later modifications are appended after them.
+   */
+  public static void checkpoint()
+    throws SQLException
+  {
+    execute(new String[] { "CHECKPOINT" });
+  }
+
+  /**
+   * Execute administrative statements against the database for the
+   * current dbTag.
+   */
+  private static void execute(String[] sql)
+    throws SQLException
+  {
+    Connection connection = takeConnection();
+    if (connection == null)
+      throw new SQLException("Could not connect to " + getURL());
+
+    try {
+      Statement statement = connection.createStatement();
+      try {
+        for (int i=0; i<sql.length; i++)
+          statement.execute(sql[i]);
+      }
+      finally {
+        statement.close();
+      }
+    }
+    finally {
+      returnConnection(connection);
+    }
+  }
+
+  /**
+   * Execute SQL statements against the database for the current dbTag, as
+   * read from an hsqldb script or produced by scriptDatabase.  Session
+   * (CONNECT/DISCONNECT) statements and the creation of the SA user, 
+   * which every new database already has, are skipped.
+   */
+  public static void loadScript(List statements)
+    throws SQLException
+  {
+    Connection connection = takeConnection();
+    if (connection == null)
+      throw new SQLException("Could not connect to " + getURL());
+
+    try {
+      Statement statement = connection.createStatement();
+      try {
+        for (Iterator i = statements.iterator(); i.hasNext(); ) {
+          String sql = ((String) i.next()).trim();
+
+          // strip hsqldb session markers, e.g. "/*C1*/"
+          if (sql.startsWith("/*")) {
+            int end = sql.indexOf("*/");
+            if (end > 0)
+              sql = sql.substring(end+2).trim();
+          }
+
+          if (sql.length() == 0 || 
+              sql.startsWith("CONNECT ") || 
+              sql.startsWith("DISCONNECT") ||
+              sql.startsWith("CREATE USER SA "))
+            continue;
+
+          statement.execute(sql);
+        }
+      } 
+      finally {
+        statement.close();
+      }
+      if (!connection.getAutoCommit())
+        connection.commit();
+    }
+    finally {
+      returnConnection(connection);
+    }
+  }
+
+  /**
+   * Execute statements appended to the script of another database in a
+   * single transaction, as when following that database's log.  The
+   * statements may roll back and commit transactions of their own.
+   */
+  public static void replayScript(List statements)
+    throws SQLException
+  {
+    List replay = new ArrayList(statements.size()+3);
+    replay.add("SET AUTOCOMMIT FALSE");
+    replay.addAll(statements);
+    replay.add("COMMIT");
+    replay.add("SET AUTOCOMMIT TRUE");
+    loadScript(replay);
+  }
+
+  /**
+   * Drop every table of the database for the current dbTag and then
+   * load a script, as produced by scriptDatabase, in their place.
+   */
+  public static void replaceDatabase(List statements)
+    throws SQLException
+  {
+    Connection connection = takeConnection();
+    if (connection == null)
+      throw new SQLException("Could not connect to " + getURL());
+
+    try {
+      List tables = new ArrayList();
+      ResultSet rs = connection.getMetaData().getTables(null, null, "%", new String[] { "TABLE" });
+      try {
+        while (rs.next())
+          tables.add(rs.getString("TABLE_NAME"));
+      }
+      finally {
+        rs.close();
+      }
+
+      // a table referenced by another can't be dropped until the other
+      // has been, so keep making passes for as long as some are dropped
+      Statement statement = connection.createStatement();
+      try {
+        while (!tables.isEmpty()) {
+          int remaining = tables.size();
+          SQLException failure = null;
+          for (Iterator i = tables.iterator(); i.hasNext(); ) {
+            try {
+              statement.execute("DROP TABLE " + i.next());
+              i.remove();
+            }
+            catch(SQLException sqlex) {
+              failure = sqlex;
+            }
+          }
+          if (tables.size() == remaining)
+            throw failure;
+        }
+      }
+      finally {
+        statement.close();
       }
     }
+    finally {
+      returnConnection(connection);
+    }
+
+    loadScript(statements);
+  }
+
+  /**
+   * Turn off the write delay of the database for the current dbTag and
+   * flush any statements still buffered for its script, so that the
+   * script file holds each statement as soon as it is executed.
+   */
+  public static void syncScript()
+    throws SQLException
+  {
+    execute(new String[] { "SET WRITE_DELAY FALSE", "COMMIT" });
+  }
+
+  /**
+   *
+   */
+  public DataStore aquireDataStore()
+  {
+    Connection bound = (Connection) batchConnection.get();
+    if (bound != null)
+      return new JDBCDataStore(bound,true);
+
+    Connection connection = takeConnection();
+    if (connection == null)
+      return null;
 
     return new JDBCDataStore(connection);
   }
 
+  /**
+   * The connection pool for the current dbTag, created with the limits
+   * configured in its juddi.properties on first use.
+   */
+  private static ConnectionPool pool()
+  {
+    Object tag = Config.dbTag.get();
+    synchronized (pools) {
+      ConnectionPool pool = (ConnectionPool) pools.get(tag);
+      if (pool == null) {
+        pool = new ConnectionPool(getURL(), jdbcUserID, jdbcPassword,
+                                  Config.getMaxConnections(),
+                                  Config.getMinIdleConnections(),
+                                  Config.getConnectionIdleTimeout(),
+                                  Config.getConnectionWaitTimeout());
+        pools.put(tag, pool);
+      }
+      return pool;
+    }
+  }
+
+  /**
+   * Take a connection for the current dbTag from its pool, opening a new
+   * one if none is idle, and waiting if the pool is exhausted.
+   */
+  private static Connection takeConnection()
+  {
+    try {
+      return pool().take();
+    } catch(SQLException sqlex) {
+      log.error("Exception occured while attempting to get a " +
+                "JDBC connection: for " + Config.dbTag.get() + " " + sqlex.getMessage());
+      return null;
+    }
+  }
+
   /**
    *
    */
   public void releaseDataStore(DataStore datastore) {
+    if (datastore == null) {
+      return;
+    }
+
+    if (((JDBCDataStore) datastore).isBatched())
+      return;                   // returned by endBatch
+
+    returnConnection(((JDBCDataStore) datastore).getConnection());
+  }
+
+  /**
+   * Give a connection back to the pool for the current dbTag.
+   */
+  private static void returnConnection(Connection connection)
+  {
+    if (connection != null)
+      pool().give(connection);
+  }
+
+  /**
+   * Bind a single connection to the current thread so that every
+   * datastore aquired before the matching endBatch shares it and a
+   * single transaction.  DataStore.beginTrans and commit become no-ops
+   * for those datastores; endBatch commits.  Set Config.dbTag first.
+   *
+   * @return false if a batch is already in progress on this thread
+   * or no connection could be opened.
+   */
+  public static boolean beginBatch()
+  {
+    if (batchConnection.get() != null)
+      return false;
+
+    Connection connection = takeConnection();
+    if (connection == null)
+      return false;
+
+    try {
+      if (connection.getAutoCommit())
+        connection.setAutoCommit(false);
+    }
+    catch(SQLException sqlex) {
+      log.error("Exception occured while beginning a batch: for " + 
+                Config.dbTag.get() + sqlex.getMessage());
+      returnConnection(connection);
+      return false;
+    }
+
+    batchConnection.set(connection);
+    return true;
   }
 
   /**
-   * Get cached connection associated with ThreadLocal Config.dbTag.
+   * Commit the transaction of the batch begun by beginBatch on this
+   * thread and return its connection to the cache.
+   *
+   * @return false if the commit failed.
+   */
+  public static boolean endBatch()
+  {
+    Connection connection = (Connection) batchConnection.get();
+    if (connection == null)
+      return true;
+
+    batchConnection.set(null);
+    boolean success = true;
+    try {
+      connection.commit();
+    }
+    catch(SQLException sqlex) {
+      log.error("Exception occured while committing a batch: for " + 
+                Config.dbTag.get() + sqlex.getMessage());
+      success = false;
+    }
+
+    returnConnection(connection);
+    return success;
+  }
+
+  /**
+   * Roll back the transaction of the batch begun by beginBatch on this
+   * thread and return its connection to the cache.
+   *
+   * @return false if the rollback failed.
+   */
+  public static boolean abortBatch()
+  {
+    Connection connection = (Connection) batchConnection.get();
+    if (connection == null)
+      return true;
+
+    batchConnection.set(null);
+    boolean success = true;
+    try {
+      connection.rollback();
+    }
+    catch(SQLException sqlex) {
+      log.error("Exception occured while rolling back a batch: for " + 
+                Config.dbTag.get() + sqlex.getMessage());
+      success = false;
+    }
+
+    returnConnection(connection);
+    return success;
+  }
+
+  /**
+   * Get an idle cached connection associated with ThreadLocal Config.dbTag.
    * If process is using more than 1 database,  must set Config.dbTag before each 
    * interaction. Connections are not re-entrant so only one thread can be 
    * using a connection at a time.
@@ -125,30 +554,37 @@ public class HSQLDataStoreFactory extends DataStoreFactory
    */
   public Connection getConnection()
   {
-    return (Connection) cachedConnections.get(Config.dbTag.get());
+    return pool().peek();
   }
+
   /**
-   * Get cached connection associated with ThreadLocal dbTag.
+   * Close the connections for the current dbTag which have been idle for
+   * longer than the configured org.juddi.datastore.connectionIdleTimeout,
+   * and open enough to keep org.juddi.datastore.minIdleConnections ready.
+   * Meant to be called periodically, off the path of any query.
+   */
+  public static void sweepConnections()
+  {
+    ConnectionPool pool;
+    synchronized (pools) {
+      pool = (ConnectionPool) pools.get(Config.dbTag.get());
+    }
+    if (pool != null)
+      pool.sweep();
+  }
+
+  /**
+   * Close the idle cached connections associated with ThreadLocal dbTag.
    * If process is using more than 1 database,  must set dbTag before each 
-   * interaction. Connections are not re-entrant so only one thread can be 
-   * using a connection at a time.
+   * interaction. Connections currently in use are not affected.
    *
    */
   public static boolean closeConnection()
   {
-    Connection connection = (Connection) cachedConnections.get(Config.dbTag.get());
-    
-    if (connection != null) {
-      try {
-	connection.close();
-	cachedConnections.remove(Config.dbTag.get());
-      } catch(SQLException sqlex) {
-        log.error("Exception occured while attempting to close a " +
-		  "JDBC connection: for " + Config.dbTag.get() + sqlex.getMessage());
-	return false;
-      }
+    ConnectionPool pool;
+    synchronized (pools) {
+      pool = (ConnectionPool) pools.get(Config.dbTag.get());
     }
-    
-    return true;
+    return (pool == null) || pool.close();
   }
 }
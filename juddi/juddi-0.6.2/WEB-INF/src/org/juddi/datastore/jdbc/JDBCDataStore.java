@@ -41,6 +41,11 @@ public class JDBCDataStore implements DataStore
   // private XA transaxtion object
   private Transaction transaction = null;
 
+  // true if the connection is bound to a batch (see
+  // HSQLDataStoreFactory.beginBatch) whose transaction is
+  // begun and committed by the batch rather than by this datastore
+  private boolean batched = false;
+
   /**
    *
    */
@@ -49,6 +54,23 @@ public class JDBCDataStore implements DataStore
     this.connection = conn;
   }
 
+  /**
+   *
+   */
+  JDBCDataStore(Connection conn,boolean batched)
+  {
+    this.connection = conn;
+    this.batched = batched;
+  }
+
+  /**
+   *
+   */
+  boolean isBatched()
+  {
+    return this.batched;
+  }
+
   /**
    *
    */
@@ -63,6 +85,9 @@ public class JDBCDataStore implements DataStore
   public void beginTrans()
     throws JUDDIException
   {
+    if (batched)
+      return;
+
     try {
       this.transaction = new Transaction();
       this.transaction.begin(connection);
@@ -78,6 +103,9 @@ public class JDBCDataStore implements DataStore
   public void commit()
     throws JUDDIException
   {
+    if (batched)
+      return;
+
     try {
       this.transaction.commit();
     }
@@ -93,7 +121,10 @@ public class JDBCDataStore implements DataStore
     throws JUDDIException
   {
     try {
-      this.transaction.rollback();
+      if (batched)
+        this.connection.rollback();
+      else
+        this.transaction.rollback();
     }
     catch(java.sql.SQLException sqlex) {
       throw new JUDDIException(sqlex);
@@ -11,8 +11,12 @@ package org.juddi.service;
 import org.juddi.error.JUDDIException;
 
 import org.apache.log4j.Logger;
+import org.uddi4j.UDDIElement;
 
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Implementation of Factory pattern used to create one of the UDDIService
@@ -77,10 +81,47 @@ public abstract class ServiceFactory
     }
   }
 
+  // The UDDIServices are stateless, so a single instance of each is shared
+  // by all requests. Keyed by the lower case request class name and by the
+  // request class itself. Never modified after class initialization so
+  // needs no locking.
+  static final HashMap instanceTable = new HashMap(89);
+
+  static
+  {
+    for (Iterator i = serviceTable.entrySet().iterator(); i.hasNext(); )
+    {
+      Map.Entry entry = (Map.Entry)i.next();
+      Class serviceClass = (Class)entry.getValue();
+      try
+      {
+        UDDIService service = (UDDIService)serviceClass.newInstance();
+        instanceTable.put(entry.getKey(),service);
+        instanceTable.put(requestClassFor(serviceClass),service);
+      }
+      catch(Exception ex)
+      {
+        log.error("Unable to create "+serviceClass.getName(),ex);
+      }
+    }
+  }
+
+  /**
+   * The services are named for the uddi4j request classes they handle,
+   * e.g. FindBusinessService handles org.uddi4j.request.FindBusiness.
+   */
+  private static Class requestClassFor(Class serviceClass)
+    throws ClassNotFoundException
+  {
+    String name = serviceClass.getName();
+    name = name.substring(name.lastIndexOf('.')+1,name.length()-"Service".length());
+    return Class.forName("org.uddi4j.request."+name);
+  }
+
   /**
    *
    */
-  public static synchronized UDDIService getService(String serviceName)
+  public static UDDIService getService(String serviceName)
     throws JUDDIException
   {
     // validate that we've got a valid serviceName
@@ -91,26 +132,32 @@ public abstract class ServiceFactory
       throw new JUDDIException(msg);
     }
 
-    // look up the UDDIService subclass
-    Class serviceClass = (Class)serviceTable.get(serviceName.toLowerCase());
+    // look up the shared UDDIService subclass instance
+    UDDIService service = (UDDIService)instanceTable.get(serviceName.toLowerCase());
 
     // verify that we found a corresponding UDDIService subclass
-    if (serviceClass == null)
+    if (service == null)
     {
       String msg = "An invalid or unknown serviceName was passed to ServiceFactory.getService: "+serviceName;
       log.error(msg);
       throw new JUDDIException(msg);
     }
 
-    // create an instance of the UDDIService subclass
-    UDDIService service = null;
-    try {
-      service = (UDDIService)serviceClass.newInstance();
-    }
-    catch(Exception ex)
+    return service;
+  }
+
+  /**
+   * Get the service for a request without looking up its class name.
+   */
+  public static UDDIService getService(UDDIElement request)
+    throws JUDDIException
+  {
+    UDDIService service = (request == null) ? null : (UDDIService)instanceTable.get(request.getClass());
+    if (service == null)
     {
-      log.error(ex.getMessage());
-      throw new JUDDIException(ex);
+      String msg = "An invalid or unknown request was passed to ServiceFactory.getService: "+request;
+      log.error(msg);
+      throw new JUDDIException(msg);
     }
 
     return service;
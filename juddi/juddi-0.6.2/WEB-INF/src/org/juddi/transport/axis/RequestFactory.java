@@ -14,7 +14,10 @@ import org.w3c.dom.Element;
 import org.uddi4j.UDDIElement;
 
 import java.lang.reflect.Constructor;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * The RequestFactory's sole responsibility is to transform
@@ -78,10 +81,37 @@ public class RequestFactory
     }
   }
 
+  // Element constructors of the request classes, resolved once, keyed by
+  // both the lower case and the UDDI (mixed case) tag names so that
+  // well-formed requests are found without lower casing the tag. Never
+  // modified after class initialization so needs no locking.
+  static final HashMap constructorTable = new HashMap(89);
+
+  static
+  {
+    Class parameters[] = new Class[] { org.w3c.dom.Element.class };
+    for (Iterator i = classTable.entrySet().iterator(); i.hasNext(); )
+    {
+      Map.Entry entry = (Map.Entry)i.next();
+      Class requestClass = (Class)entry.getValue();
+      try
+      {
+        Constructor requestClassConstructor = requestClass.getConstructor(parameters);
+        constructorTable.put(entry.getKey(),requestClassConstructor);
+        String tag = (String)requestClass.getField("UDDI_TAG").get(null);
+        constructorTable.put(tag,requestClassConstructor);
+      }
+      catch(Exception ex)
+      {
+        log.error("Unable to resolve the constructor of "+requestClass.getName(),ex);
+      }
+    }
+  }
+
   /**
    *
    */
-  public static synchronized Object getRequest(Element requestDOM)
+  public static Object getRequest(Element requestDOM)
     throws JUDDIException
   {
     String requestName = requestDOM.getTagName();
@@ -92,43 +122,35 @@ public class RequestFactory
       throw new JUDDIException(msg);
     }
 
-    // look up the UDDIElement subclass
-    Class requestClass = (Class)classTable.get(requestName.toLowerCase());
+    // look up the constructor of the UDDIElement subclass
+    Constructor requestClassConstructor = (Constructor)constructorTable.get(requestName);
+    if (requestClassConstructor == null)
+      requestClassConstructor = (Constructor)constructorTable.get(requestName.toLowerCase());
 
     // verify that we found a corresponding UDDIElement subclass
-    if (requestClass == null)
+    if (requestClassConstructor == null)
     {
       String msg = "A class was not found for the requestName: " + requestName;
       log.error(msg);
       throw new JUDDIException(msg);
     }
 
-    return instantiateClass(requestClass,requestDOM);
+    return instantiateClass(requestClassConstructor,requestDOM);
   }
 
   /**
    *
    */
-  private static synchronized Object instantiateClass(Class requestClass,Element requestDOM)
+  private static Object instantiateClass(Constructor requestClassConstructor,Element requestDOM)
     throws JUDDIException
   {
     Object instance = null;
+    Class requestClass = requestClassConstructor.getDeclaringClass();
 
     try
     {
-      // what's this doing?
-      Class parameters[] = new Class[1];
-      parameters[0] = org.w3c.dom.Element.class;
-
-      // find a constructor that takes a DOM Element as a parameter
-      Constructor requestClassConstructor = requestClass.getConstructor(parameters);
-
-      // what's this doing?
-      Object constructorParam[] = new Object[1];
-      constructorParam[0] = requestDOM;
-
       // create a new UDDIElement instance using the 'Element' constructor
-      instance = (Object)requestClassConstructor.newInstance(constructorParam);
+      instance = requestClassConstructor.newInstance(new Object[] { requestDOM });
     }
     catch (InstantiationException ex)
     {
@@ -140,12 +162,6 @@ public class RequestFactory
     {
       ex.printStackTrace();
     }
-    catch (NoSuchMethodException ex)
-    {
-      String msg = "Exception finding necessary constructor for specified class: " + requestClass.getName();
-      log.error(msg);
-      throw new JUDDIException(msg);
-    }
     catch (java.lang.reflect.InvocationTargetException ex)
     {
       String msg = "Exception while instantiating the specified class: " + requestClass.getName();
@@ -72,6 +72,10 @@ public class Config
   private static final int DEFAULT_MAX_SORT_CODE_LENGTH = 10;
   private static final int DEFAULT_MAX_URL_TYPE_LENGTH = 16;
   private static final int DEFAULT_MAX_USE_TYPE_LENGTH = 255;
+  private static final int DEFAULT_MAX_CONNECTIONS = 16;
+  private static final int DEFAULT_MIN_IDLE_CONNECTIONS = 1;
+  private static final long DEFAULT_CONNECTION_IDLE_TIMEOUT = 300000;
+  private static final long DEFAULT_CONNECTION_WAIT_TIMEOUT = 60000;
 
   private static final String propertiesFileName = "juddi.properties";
   // Use Config.dbTag as the HashMap key. So ... if process is using more than
@@ -121,6 +125,42 @@ public class Config
     return (b == null) ? false : b.booleanValue();
   }
 
+  /**
+   * Maximum number of connections to the database in use at once.
+   */
+  public static int getMaxConnections()
+  {
+    Integer max = getPropertyInteger("org.juddi.datastore.maxConnections");
+    return (max != null) ? max.intValue() : DEFAULT_MAX_CONNECTIONS;
+  }
+
+  /**
+   * Number of idle connections to the database to keep open.
+   */
+  public static int getMinIdleConnections()
+  {
+    Integer min = getPropertyInteger("org.juddi.datastore.minIdleConnections");
+    return (min != null) ? min.intValue() : DEFAULT_MIN_IDLE_CONNECTIONS;
+  }
+
+  /**
+   * Milliseconds after which an idle connection beyond the minimum is closed.
+   */
+  public static long getConnectionIdleTimeout()
+  {
+    Long timeout = getPropertyLong("org.juddi.datastore.connectionIdleTimeout");
+    return (timeout != null) ? timeout.longValue() : DEFAULT_CONNECTION_IDLE_TIMEOUT;
+  }
+
+  /**
+   * Milliseconds to wait for a connection when all are in use.
+   */
+  public static long getConnectionWaitTimeout()
+  {
+    Long timeout = getPropertyLong("org.juddi.datastore.connectionWaitTimeout");
+    return (timeout != null) ? timeout.longValue() : DEFAULT_CONNECTION_WAIT_TIMEOUT;
+  }
+
   /**
    *
    */
@@ -158,23 +158,25 @@ public class SMTest extends ComponentPlugin {
           public void invoke() {
             call("getAuthToken", null, "B");
           }});
-      // publish the business
-      addYPQ("B", "C",
-             new YPQ() {
-               public YPFuture get(Frame f) {
+      // publish both businesses at once
+      addParallelYPQ("B", "C",
+             new ParallelYPQ() {
+               public YPFuture[] get(Frame f) {
                  System.err.println("Using token "+ getAuthToken());
-                 // Create minimum required data objects
-                 Vector entities = new Vector();
-                 BusinessEntity be = new BusinessEntity("", sampleName);
-                 entities.addElement(be);
-                 return yp.save_business(getAuthToken().getAuthInfoString(),entities);
+                 String authInfo = getAuthToken().getAuthInfoString();
+                 return new YPFuture[] {
+                   yp.save_business(authInfo, business(sampleName)),
+                   yp.save_business(authInfo, business(sampleName2)),
+                 };
                }
-               public void set(Frame f, Object result) {
-                 BusinessDetail bd = (BusinessDetail) result;
-                 // Process returned BusinessDetail object
-                 Vector businessEntities = bd.getBusinessEntityVector();
-                 BusinessEntity returnedBusinessEntity = (BusinessEntity)(businessEntities.elementAt(0));
-                 System.out.println("Returned businessKey:" + returnedBusinessEntity.getBusinessKey());
+               public void set(Frame f, Object[] results) {
+                 for (int i = 0; i < results.length; i++) {
+                   BusinessDetail bd = (BusinessDetail) results[i];
+                   // Process returned BusinessDetail object
+                   Vector businessEntities = bd.getBusinessEntityVector();
+                   BusinessEntity returnedBusinessEntity = (BusinessEntity)(businessEntities.elementAt(0));
+                   System.out.println("Returned businessKey:" + returnedBusinessEntity.getBusinessKey());
+                 }
                }
                public void handle(Frame f, Exception e) {
                  log.error("Caught exception: "+e, e);
@@ -195,6 +197,14 @@ public class SMTest extends ComponentPlugin {
     }
   }
 
+  /** Create minimum required data objects for a business **/
+  private static Vector business(String name) {
+    Vector entities = new Vector();
+    BusinessEntity be = new BusinessEntity("", name);
+    entities.addElement(be);
+    return entities;
+  }
+
   /**
    * Demonstrate use of state machine via blackboard.
    **/
@@ -0,0 +1,182 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/** Tests ChunkedOutputStream and ChunkedInputStream together **/
+public class ChunkedStreamTest extends TestCase {
+  private static final int C = ChunkedOutputStream.CHUNK_SIZE;
+
+  private static byte[] payload(int length) {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; i++) {
+      b[i] = (byte) (i * 31 + length);
+    }
+    return b;
+  }
+
+  private static byte[] readAll(ChunkedInputStream in) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buf = new byte[1000];        // deliberately not a multiple of the chunk size
+    int len;
+    while ((len = in.read(buf, 0, buf.length)) > 0) {
+      bos.write(buf, 0, len);
+    }
+    assertEquals(-1, in.read());
+    return bos.toByteArray();
+  }
+
+  private void roundTrip(int length) throws IOException {
+    byte[] p = payload(length);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bos);
+    ChunkedOutputStream cos = new ChunkedOutputStream(out);
+    cos.write(p);
+    cos.close();
+    assertEquals(length, cos.getTotal());
+    out.writeInt(12345);                // whatever follows the payload
+    out.close();
+
+    // length-prefixed chunks of at most CHUNK_SIZE, and a zero terminator
+    int chunks = (length + C - 1) / C;
+    assertEquals(length + 4 * (chunks + 1) + 4, bos.size());
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    assertTrue("length "+length, Arrays.equals(p, readAll(new ChunkedInputStream(in))));
+    assertEquals(12345, in.readInt());
+  }
+
+  public void testEmptyPayload() throws IOException {
+    roundTrip(0);
+  }
+
+  public void testChunkBoundaries() throws IOException {
+    int[] lengths = { 1, C - 1, C, C + 1, 2 * C, 2 * C + 1, 5 * C - 7 };
+    for (int i = 0; i < lengths.length; i++) {
+      roundTrip(lengths[i]);
+    }
+  }
+
+  public void testSingleByteWrites() throws IOException {
+    byte[] p = payload(C + 3);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bos);
+    ChunkedOutputStream cos = new ChunkedOutputStream(out);
+    for (int i = 0; i < p.length; i++) {
+      cos.write(p[i]);
+    }
+    cos.close();
+    out.close();
+
+    ChunkedInputStream cis = 
+      new ChunkedInputStream(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+    for (int i = 0; i < p.length; i++) {
+      assertEquals(p[i] & 0xff, cis.read());
+    }
+    assertEquals(-1, cis.read());
+  }
+
+  /** DatabaseEnvelope writes a base and a delta back to back on one ObjectOutputStream **/
+  public void testSectionsBackToBack() throws Exception {
+    int[] lengths = { C, 0, 3 * C + 5, 17 };
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bos);
+    out.writeObject("before");
+    for (int i = 0; i < lengths.length; i++) {
+      ChunkedOutputStream cos = new ChunkedOutputStream(out);
+      cos.write(payload(lengths[i]));
+      cos.close();
+    }
+    out.writeObject("after");
+    out.close();
+
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    assertEquals("before", in.readObject());
+    for (int i = 0; i < lengths.length; i++) {
+      assertTrue("section "+i, Arrays.equals(payload(lengths[i]), readAll(new ChunkedInputStream(in))));
+    }
+    assertEquals("after", in.readObject());
+  }
+
+  public void testCloseSkipsUnreadPayload() throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bos);
+    ChunkedOutputStream cos = new ChunkedOutputStream(out);
+    cos.write(payload(2 * C + 9));
+    cos.close();
+    cos = new ChunkedOutputStream(out);
+    cos.write(payload(10));
+    cos.close();
+    out.close();
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    ChunkedInputStream first = new ChunkedInputStream(in);
+    first.read(new byte[100], 0, 100);
+    first.close();
+    assertTrue(Arrays.equals(payload(10), readAll(new ChunkedInputStream(in))));
+  }
+
+  public void testWriteAfterCloseFails() throws IOException {
+    ChunkedOutputStream cos = new ChunkedOutputStream(new DataOutputStream(new ByteArrayOutputStream()));
+    cos.write(1);
+    cos.close();
+    cos.close();                        // closing twice is harmless
+    try {
+      cos.write(2);
+      fail("write(int) after close");
+    } catch (IOException expected) {
+    }
+    try {
+      cos.write(new byte[1], 0, 1);
+      fail("write(byte[]) after close");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testCorruptLengthIsRejected() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bos);
+    out.writeInt(C + 1);
+    out.close();
+    try {
+      new ChunkedInputStream(new DataInputStream(new ByteArrayInputStream(bos.toByteArray()))).read();
+      fail("oversized chunk accepted");
+    } catch (IOException expected) {
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+
+public class ClientResponseCacheTest extends TestCase {
+
+  private static Element parse(String xml) throws Exception {
+    return ResponseCacheTest.parse(xml);
+  }
+
+  private static YPFuture inquiry(String xml, boolean isInquiry) throws Exception {
+    return new YPFutureImpl(null, parse(xml), isInquiry, null, 0);
+  }
+
+  public void testKeys() throws Exception {
+    String a = ClientResponseCache.keyFor(inquiry("<find_business><name>A</name></find_business>", true));
+    assertNotNull(a);
+    assertEquals(a, ClientResponseCache.keyFor(inquiry("<find_business>\n <name>A</name>\n</find_business>", true)));
+    assertFalse(a.equals(ClientResponseCache.keyFor(inquiry("<find_business><name>B</name></find_business>", true))));
+    assertFalse(a.equals(ClientResponseCache.keyFor(
+      new YPFutureImpl(null, parse("<find_business><name>A</name></find_business>"), true, null, 1))));
+    assertNull(ClientResponseCache.keyFor(inquiry("<get_authToken/>", true)));
+    assertNull(ClientResponseCache.keyFor(inquiry("<save_business/>", false)));
+  }
+
+  public void testHitReturnsPrivateCopy() throws Exception {
+    ClientResponseCache cache = new ClientResponseCache(4, 60000, 0);
+    Element response = parse("<businessList/>");
+    cache.put("k", response, "ctx", cache.getGeneration());
+    response.setAttribute("changed", "true");
+
+    ClientResponseCache.Entry e = cache.get("k");
+    assertNotNull(e);
+    assertEquals("ctx", e.getFinalContext());
+    Element a = e.getResponse();
+    Element b = e.getResponse();
+    assertEquals("businessList", a.getNodeName());
+    assertEquals("", a.getAttribute("changed"));
+    assertNotSame(a.getOwnerDocument(), b.getOwnerDocument());
+    assertEquals(1, cache.getLookups());
+  }
+
+  public void testEntriesExpire() throws Exception {
+    ClientResponseCache cache = new ClientResponseCache(4, 50, 0);
+    cache.put("k", parse("<businessList/>"), null, cache.getGeneration());
+    assertNotNull(cache.get("k"));
+    Thread.sleep(100);
+    assertNull(cache.get("k"));
+  }
+
+  public void testNegativeEntries() throws Exception {
+    ClientResponseCache off = new ClientResponseCache(4, 60000, 0);
+    off.put("k", null, null, off.getGeneration());
+    assertNull(off.get("k"));
+
+    ClientResponseCache cache = new ClientResponseCache(4, 60000, 50);
+    cache.put("k", null, null, cache.getGeneration());
+    ClientResponseCache.Entry e = cache.get("k");
+    assertNotNull(e);
+    assertNull(e.getResponse());
+    Thread.sleep(100);
+    assertNull(cache.get("k"));
+  }
+
+  public void testFaultsAreNotCached() throws Exception {
+    ClientResponseCache cache = new ClientResponseCache(4, 60000, 60000);
+    cache.put("k", parse("<SOAP-ENV:Fault xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\"/>"), 
+              null, cache.getGeneration());
+    assertNull(cache.get("k"));
+  }
+
+  public void testStaleGenerationIsNotCached() throws Exception {
+    ClientResponseCache cache = new ClientResponseCache(4, 60000, 60000);
+    long gen = cache.getGeneration();
+    cache.invalidate();         // a publish since the inquiry was submitted
+    cache.put("k", parse("<businessList/>"), null, gen);
+    cache.put("n", null, null, gen);
+    assertNull(cache.get("k"));
+    assertNull(cache.get("n"));
+    cache.put("k", parse("<businessList/>"), null, cache.getGeneration());
+    assertNotNull(cache.get("k"));
+  }
+
+  public void testInvalidateAndEviction() throws Exception {
+    ClientResponseCache cache = new ClientResponseCache(2, 60000, 0);
+    cache.put("a", parse("<a/>"), null, cache.getGeneration());
+    cache.put("b", parse("<b/>"), null, cache.getGeneration());
+    cache.get("a");
+    cache.put("c", parse("<c/>"), null, cache.getGeneration());
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertNotNull(cache.get("c"));
+    cache.invalidate();
+    assertNull(cache.get("a"));
+    assertEquals(0.6, cache.getHitRate(), 0.001);
+  }
+}
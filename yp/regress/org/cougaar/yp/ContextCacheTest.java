@@ -0,0 +1,166 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.naming.directory.BasicAttributes;
+
+import junit.framework.TestCase;
+
+import org.cougaar.core.service.community.Community;
+
+public class ContextCacheTest extends TestCase {
+  private ContextCache cache;
+  private int searches;
+  private Runnable duringSearch;
+
+  protected void setUp() {
+    cache = new ContextCache();
+    searches = 0;
+    duringSearch = null;
+  }
+
+  /** A YP community whose search for servers is counted **/
+  private Community community(final String name) {
+    final Set servers = new HashSet();
+    servers.add(name+"-server");
+    return (Community) Proxy.newProxyInstance(
+      Community.class.getClassLoader(), new Class[] { Community.class },
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method m, Object[] args) {
+          String mn = m.getName();
+          if (mn.equals("getName") || mn.equals("toString")) {
+            return name;
+          } else if (mn.equals("getAttributes")) {
+            return new BasicAttributes("CommunityType", "YPCommunity");
+          } else if (mn.equals("search")) {
+            searches++;
+            if (duringSearch != null) duringSearch.run();
+            return Collections.unmodifiableSet(servers);
+          } else if (mn.equals("hashCode")) {
+            return new Integer(System.identityHashCode(proxy));
+          } else if (mn.equals("equals")) {
+            return Boolean.valueOf(proxy == args[0]);
+          }
+          throw new UnsupportedOperationException(mn);
+        }
+      });
+  }
+
+  /** Records the last context it was given **/
+  private static class Recorder implements YPService.NextContextCallback {
+    Object context = "unset";
+    int calls = 0;
+    public void setNextContext(Object context) {
+      this.context = context;
+      calls++;
+    }
+  }
+
+  public void testKeys() {
+    assertEquals("next:", ContextCache.nextKey(null));
+    assertEquals("next:Society", ContextCache.nextKey(community("Society")));
+    assertEquals("agent:A", ContextCache.agentKey("A"));
+  }
+
+  public void testRememberAndResolve() {
+    Community c = community("Society");
+    Recorder r = new Recorder();
+    assertFalse(cache.resolve("agent:A", r));
+    assertEquals(0, r.calls);
+
+    Recorder first = new Recorder();
+    cache.remember("agent:A", first).setNextContext(c);
+    assertSame(c, first.context);
+
+    assertTrue(cache.resolve("agent:A", r));
+    assertSame(c, r.context);
+    assertEquals(1, r.calls);
+  }
+
+  public void testPeek() {
+    Community c = community("Society");
+    assertNull(cache.peek("next:"));
+    cache.remember("next:", new Recorder()).setNextContext(c);
+    cache.remember("next:Society", new Recorder()).setNextContext(null);
+    assertSame(c, cache.peek("next:"));
+    assertNull(cache.peek("next:Society"));
+    assertTrue(cache.toString(), cache.toString().indexOf("hits=0 misses=0") >= 0);
+  }
+
+  public void testNoNextContextIsRemembered() {
+    cache.remember("next:Top", new Recorder()).setNextContext(null);
+    Recorder r = new Recorder();
+    assertTrue(cache.resolve("next:Top", r));
+    assertNull(r.context);
+  }
+
+  public void testResolutionRacedByChangeIsNotRemembered() {
+    Recorder first = new Recorder();
+    YPService.NextContextCallback cb = cache.remember("agent:A", first);
+    cache.invalidate();
+    cb.setNextContext(community("Old"));
+    assertEquals(1, first.calls);       // still passed on
+    assertFalse(cache.resolve("agent:A", new Recorder()));
+  }
+
+  public void testInvalidateForgetsContexts() {
+    cache.remember("agent:A", new Recorder()).setNextContext(community("Society"));
+    cache.invalidate();
+    assertFalse(cache.resolve("agent:A", new Recorder()));
+  }
+
+  public void testServersAreSearchedOnce() {
+    Community c = community("Society");
+    Set s = cache.getServers(c);
+    assertTrue(s.contains("Society-server"));
+    assertSame(s, cache.getServers(c));
+    assertEquals(1, searches);
+    cache.invalidate();
+    cache.getServers(c);
+    assertEquals(2, searches);
+  }
+
+  public void testServersRacedByChangeAreNotRemembered() {
+    Community c = community("Society");
+    duringSearch = new Runnable() {
+        public void run() { cache.invalidate(); }
+      };
+    cache.getServers(c);
+    duringSearch = null;
+    cache.getServers(c);
+    cache.getServers(c);
+    assertEquals(2, searches);
+  }
+}
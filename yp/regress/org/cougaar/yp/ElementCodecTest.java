@@ -0,0 +1,234 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+public class ElementCodecTest extends TestCase {
+
+  private static Element parse(String xml) throws Exception {
+    return ResponseCacheTest.parse(xml);
+  }
+
+  private static Element roundTrip(Element el) {
+    byte[] encoded = ElementCodec.encode(el);
+    Element decoded = ElementCodec.decode(encoded);
+    assertSameTree(el, decoded);
+    // and again, from the decoded tree
+    assertTrue(Arrays.equals(encoded, ElementCodec.encode(decoded)));
+    return decoded;
+  }
+
+  /** Assert that two trees have the same elements, attributes and text, taking
+   * CDATA sections as text and ignoring comments and processing instructions.
+   **/
+  static void assertSameTree(Element expected, Element actual) {
+    assertEquals(expected.getNodeName(), actual.getNodeName());
+    assertEquals(expected.getNamespaceURI(), actual.getNamespaceURI());
+
+    NamedNodeMap ea = expected.getAttributes();
+    NamedNodeMap aa = actual.getAttributes();
+    assertEquals(expected.getNodeName()+" attributes", ea.getLength(), aa.getLength());
+    for (int i = 0; i < ea.getLength(); i++) {
+      Attr a = (Attr) ea.item(i);
+      Attr b = (a.getNamespaceURI() == null) ?
+        actual.getAttributeNode(a.getNodeName()) :
+        actual.getAttributeNodeNS(a.getNamespaceURI(), a.getLocalName());
+      assertNotNull("missing attribute "+a.getNodeName(), b);
+      assertEquals(a.getNodeName(), b.getNodeName());
+      assertEquals(a.getNodeValue(), b.getNodeValue());
+    }
+
+    Node e = next(expected.getFirstChild());
+    Node a = next(actual.getFirstChild());
+    while (e != null) {
+      assertNotNull("missing child of "+expected.getNodeName(), a);
+      if (e.getNodeType() == Node.ELEMENT_NODE) {
+        assertEquals(Node.ELEMENT_NODE, a.getNodeType());
+        assertSameTree((Element) e, (Element) a);
+      } else {
+        assertEquals(Node.TEXT_NODE, a.getNodeType());
+        assertEquals(e.getNodeValue(), a.getNodeValue());
+      }
+      e = next(e.getNextSibling());
+      a = next(a.getNextSibling());
+    }
+    assertNull("extra child of "+expected.getNodeName(), a);
+  }
+
+  /** @return n or the first following sibling which is an element or text **/
+  private static Node next(Node n) {
+    while (n != null && 
+           n.getNodeType() != Node.ELEMENT_NODE &&
+           n.getNodeType() != Node.TEXT_NODE &&
+           n.getNodeType() != Node.CDATA_SECTION_NODE) {
+      n = n.getNextSibling();
+    }
+    return n;
+  }
+
+  public void testNull() {
+    assertNull(ElementCodec.encode(null));
+    assertNull(ElementCodec.decode(null));
+  }
+
+  public void testPlainElements() throws Exception {
+    roundTrip(parse("<find_business generic=\"2.0\" maxRows=\"10\">" +
+                    "<findQualifiers><findQualifier>exactNameMatch</findQualifier></findQualifiers>" +
+                    "<name>Foo</name><categoryBag><keyedReference tModelKey=\"uuid:1\" keyName=\"n\" keyValue=\"v\"/>" +
+                    "</categoryBag></find_business>"));
+  }
+
+  public void testNamespaces() throws Exception {
+    Element decoded = roundTrip(parse(
+      "<u:find_business xmlns:u=\"urn:uddi-org:api_v2\" xmlns:x=\"urn:x\" generic=\"2.0\" x:extra=\"1\">" +
+      "<u:name xml:lang=\"en\">Foo</u:name>" +
+      "<plain xmlns=\"urn:default\"><inner/></plain>" +
+      "<unqualified xmlns=\"\"/>" +
+      "</u:find_business>"));
+    assertEquals("urn:uddi-org:api_v2", decoded.getNamespaceURI());
+    assertEquals("1", decoded.getAttributeNS("urn:x", "extra"));
+    assertEquals("urn:default", 
+                 decoded.getElementsByTagNameNS("urn:default", "inner").item(0).getNamespaceURI());
+  }
+
+  public void testElementsBuiltWithoutNamespaces() throws Exception {
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    Element el = doc.createElement("businessList");
+    el.setAttribute("operator", "Cougaar");
+    el.appendChild(doc.createElement("businessInfos"));
+    roundTrip(el);
+  }
+
+  public void testManyDistinctStrings() throws Exception {
+    // more than 127 dictionary entries, so indices take two or more bytes
+    StringBuffer sb = new StringBuffer("<businessList><businessInfos>");
+    for (int i = 0; i < 400; i++) {
+      sb.append("<businessInfo businessKey=\"key-"+i+"\"><name>name "+i+"</name>" +
+                "<description xml:lang=\"en\">same</description></businessInfo>");
+    }
+    sb.append("</businessInfos></businessList>");
+    Element el = parse(sb.toString());
+    byte[] encoded = ElementCodec.encode(el);
+    roundTrip(el);
+    assertTrue("repeated strings are written once", encoded.length < sb.length() / 2);
+  }
+
+  public void testLongStrings() throws Exception {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < 20000; i++) sb.append((char) ('a' + i % 26));
+    roundTrip(parse("<name>"+sb+"</name>"));
+  }
+
+  public void testNonASCIIText() throws Exception {
+    // latin-1, CJK, and a character outside the BMP (a surrogate pair)
+    roundTrip(parse("<name a=\"\u00e9\u4e2d\">caf\u00e9 \u4e2d\u6587 \ud834\udd1e</name>"));
+  }
+
+  public void testEmptyText() throws Exception {
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    Element el = doc.createElement("name");
+    el.appendChild(doc.createTextNode(""));
+    el.setAttribute("empty", "");
+    Element decoded = roundTrip(el);
+    assertEquals("", decoded.getAttribute("empty"));
+    assertTrue(decoded.hasAttribute("empty"));
+    roundTrip(parse("<name></name>"));
+  }
+
+  public void testWhitespaceIsKept() throws Exception {
+    roundTrip(parse("<a>\n  <b>  x  </b>\n\t<c/>\n</a>"));
+  }
+
+  public void testCDATABecomesText() throws Exception {
+    Element decoded = roundTrip(parse("<d>before<![CDATA[<not> & markup]]>after<!-- gone --><?pi gone?></d>"));
+    StringBuffer sb = new StringBuffer();
+    for (Node n = decoded.getFirstChild(); n != null; n = n.getNextSibling()) {
+      assertEquals(Node.TEXT_NODE, n.getNodeType());
+      sb.append(n.getNodeValue());
+    }
+    assertEquals("before<not> & markupafter", sb.toString());
+  }
+
+  public void testCorruptInputFails() throws Exception {
+    byte[] encoded = ElementCodec.encode(parse("<a><b/></a>"));
+    byte[] truncated = new byte[encoded.length - 1];
+    System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+    try {
+      ElementCodec.decode(truncated);
+      fail("decoded a truncated encoding");
+    } catch (RuntimeException expected) {
+    }
+  }
+
+  /** YPMessage sends the encoding and only decodes it on demand **/
+  public void testMessageDecodesLazily() throws Exception {
+    Element el = parse("<u:find_service xmlns:u=\"urn:uddi-org:api_v2\" businessKey=\"k\"><u:name>\u00e9</u:name></u:find_service>");
+    MessageAddress a = MessageAddress.getMessageAddress("A");
+    MessageAddress b = MessageAddress.getMessageAddress("B");
+    YPQueryMessage m = new YPQueryMessage(a, b, el, true, "key");
+
+    YPQueryMessage received = (YPQueryMessage) reserialize(m);
+    assertEquals("key", received.getKey());
+    assertTrue(received.isInquiry());
+    Element decoded = received.getElement();
+    assertSameTree(el, decoded);
+    assertSame(decoded, received.getElement());
+
+    // a message can be forwarded before (or after) its element is decoded
+    YPQueryMessage forwarded = (YPQueryMessage) reserialize(reserialize(m));
+    assertSameTree(el, forwarded.getElement());
+    assertSameTree(el, ((YPQueryMessage) reserialize(received)).getElement());
+
+    YPQueryMessage empty = (YPQueryMessage) reserialize(new YPQueryMessage(a, b, null, false, "k"));
+    assertNull(empty.getElement());
+  }
+
+  private static Object reserialize(Object o) throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(bos);
+    oos.writeObject(o);
+    oos.close();
+    return new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+
+public class InquiryCoalescerTest extends TestCase {
+  private static final String FIND = "<find_business><name>A</name></find_business>";
+
+  private static YPFutureImpl inquiry(String xml) throws Exception {
+    YPFutureImpl f = new YPFutureImpl(null, ResponseCacheTest.parse(xml), true, null, 0);
+    f.submitted();
+    f.setInquiryKey(ClientResponseCache.keyFor(f));
+    return f;
+  }
+
+  public void testFollowersGetPrivateCopies() throws Exception {
+    InquiryCoalescer c = new InquiryCoalescer();
+    YPFutureImpl leader = inquiry(FIND);
+    YPFutureImpl f1 = inquiry(FIND);
+    YPFutureImpl f2 = inquiry(FIND);
+    YPFutureImpl other = inquiry("<find_business><name>B</name></find_business>");
+    assertFalse(c.join(leader));
+    assertTrue(c.join(f1));
+    assertTrue(c.join(f2));
+    assertFalse(c.join(other));
+
+    // the leader's caller changes its answer as soon as it has it
+    leader.addCallback(new YPFuture.Callback() {
+        public void ready(YPFuture r) {
+          try {
+            ((Element) r.get()).setAttribute("changed", "true");
+          } catch (Exception e) {
+            fail(e.toString());
+          }
+        }
+      });
+    Element answer = ResponseCacheTest.parse("<businessList/>");
+    List answered = c.answer(leader, "ctx", answer);
+    assertEquals(3, answered.size());
+    assertSame(leader, answered.get(0));
+    assertSame(answer, leader.get());
+
+    Element a1 = (Element) f1.get();
+    Element a2 = (Element) f2.get();
+    assertEquals("businessList", a1.getNodeName());
+    assertEquals("copied before the leader was answered", "", a1.getAttribute("changed"));
+    assertNotSame(answer.getOwnerDocument(), a1.getOwnerDocument());
+    assertNotSame(a1.getOwnerDocument(), a2.getOwnerDocument());
+    assertEquals("ctx", f1.getFinalContext());
+    assertFalse(other.isReady());
+
+    // the next identical inquiry is sent again
+    assertFalse(c.join(inquiry(FIND)));
+  }
+
+  public void testNoJoiningAcrossAPublish() throws Exception {
+    InquiryCoalescer c = new InquiryCoalescer();
+    YPFutureImpl before = inquiry(FIND);
+    YPFutureImpl follower = inquiry(FIND);
+    assertFalse(c.join(before));
+    assertTrue(c.join(follower));
+
+    c.publishing();
+    YPFutureImpl after = inquiry(FIND);
+    YPFutureImpl afterFollower = inquiry(FIND);
+    assertFalse("started after the publish, so sent again", c.join(after));
+    assertTrue(c.join(afterFollower));
+    assertEquals(2, c.size());
+
+    // answering the earlier leader releases only its own followers
+    assertEquals(2, c.answer(before, null, ResponseCacheTest.parse("<businessList/>")).size());
+    assertTrue(follower.isReady());
+    assertFalse(afterFollower.isReady());
+    assertEquals(1, c.size());
+    assertEquals(2, c.answer(after, null, null).size());
+    assertTrue(afterFollower.isReady());
+    assertNull("a search which found nothing", afterFollower.get());
+    assertEquals(0, c.size());
+  }
+
+  public void testFollowersGetTheLeadersError() throws Exception {
+    InquiryCoalescer c = new InquiryCoalescer();
+    YPFutureImpl leader = inquiry(FIND);
+    YPFutureImpl follower = inquiry(FIND);
+    c.join(leader);
+    c.join(follower);
+    c.answer(leader, null, new IllegalStateException("broken"));
+    try {
+      follower.get();
+      fail("expected the leader's exception");
+    } catch (IllegalStateException e) {
+      assertEquals("broken", e.getMessage());
+    }
+  }
+
+  public void testFollowersTimeOutWithTheLeader() throws Exception {
+    InquiryCoalescer c = new InquiryCoalescer();
+    YPFutureImpl leader = inquiry(FIND);
+    YPFutureImpl follower = inquiry(FIND);
+    c.join(leader);
+    c.join(follower);
+    c.answer(leader, null, new YPTimeoutException("no response"));
+    try {
+      follower.get();
+      fail("expected a timeout");
+    } catch (YPTimeoutException e) {
+      // expected
+    }
+    assertEquals(0, c.size());
+  }
+
+  public void testFailFollowersLeavesTheLeader() throws Exception {
+    InquiryCoalescer c = new InquiryCoalescer();
+    YPFutureImpl leader = inquiry(FIND);
+    YPFutureImpl follower = inquiry(FIND);
+    c.join(leader);
+    c.join(follower);
+    RuntimeException unsent = new RuntimeException("unsent");
+    assertEquals(1, c.failFollowers(leader, unsent).size());
+    assertFalse(leader.isReady());
+    try {
+      follower.get();
+      fail("expected the send failure");
+    } catch (RuntimeException e) {
+      assertSame(unsent, e);
+    }
+    assertTrue(c.failFollowers(leader, unsent).isEmpty());
+  }
+}
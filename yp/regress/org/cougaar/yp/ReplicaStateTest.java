@@ -0,0 +1,263 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import java.util.Collections;
+
+import org.cougaar.core.mts.MessageAddress;
+
+import junit.framework.TestCase;
+
+public class ReplicaStateTest extends TestCase {
+  private static final MessageAddress PRIMARY = MessageAddress.getMessageAddress("Primary");
+  private static final MessageAddress REPLICA = MessageAddress.getMessageAddress("Replica");
+  private static final MessageAddress OTHER = MessageAddress.getMessageAddress("Other");
+  private static final long EPOCH = 1000L;
+
+  private ReplicaState state;
+
+  protected void setUp() {
+    state = new ReplicaState();
+  }
+
+  private static YPReplicationMessage log(long epoch, long seq, long latest) {
+    return YPReplicationMessage.log(PRIMARY, REPLICA, 0L, epoch, seq, latest, 0L, false,
+                                    Collections.singletonList("INSERT INTO T VALUES(" + seq + ")"));
+  }
+
+  private static YPReplicationMessage reset(long epoch, long seq) {
+    return YPReplicationMessage.log(PRIMARY, REPLICA, 0L, epoch, seq, seq, 0L, true,
+                                    Collections.EMPTY_LIST);
+  }
+
+  /** receive and, if told to, apply m **/
+  private int deliver(YPReplicationMessage m) {
+    int action = state.receive(m, 0L);
+    if (action == ReplicaState.APPLY) {
+      state.applied(m, 0L);
+    }
+    return action;
+  }
+
+  /** bring the state to entry seq of EPOCH **/
+  private void follow(long seq) {
+    assertEquals(ReplicaState.APPLY, deliver(reset(EPOCH, 1L)));
+    for (long s = 2L; s <= seq; s++) {
+      assertEquals(ReplicaState.APPLY, deliver(log(EPOCH, s, seq)));
+    }
+    assertEquals(seq, state.getSeq());
+  }
+
+  public void testFirstSubscriptionAsksForEverything() {
+    YPReplicationMessage m = state.subscribe(REPLICA, PRIMARY, 0L);
+    assertEquals(YPReplicationMessage.SUBSCRIBE, m.getKind());
+    assertEquals(0L, m.getEpoch());
+    assertEquals(0L, m.getSeq());
+  }
+
+  public void testEntriesAppliedInOrder() {
+    follow(1L);
+    for (long s = 2L; s <= 5L; s++) {
+      assertEquals(ReplicaState.APPLY, deliver(log(EPOCH, s, 5L)));
+      assertEquals(s, state.getSeq());
+    }
+    assertEquals(EPOCH, state.getEpoch());
+    assertEquals(5L, state.getPrimarySeq());
+
+    YPReplicationMessage m = state.subscribe(REPLICA, PRIMARY, 0L);
+    assertEquals(EPOCH, m.getEpoch());
+    assertEquals(5L, m.getSeq());
+  }
+
+  public void testAppliedReportsHowFarBehind() {
+    assertEquals(ReplicaState.APPLY, state.receive(reset(EPOCH, 1L), 0L));
+    state.applied(reset(EPOCH, 1L), 5L);
+    YPReplicationMessage m = log(EPOCH, 2L, 4L);
+    assertEquals(ReplicaState.APPLY, state.receive(m, 0L));
+    assertEquals(2L, state.applied(m, 5L));
+  }
+
+  public void testDuplicateEntryIgnored() {
+    follow(3L);
+    assertEquals(ReplicaState.IGNORE, deliver(log(EPOCH, 3L, 3L)));
+    assertEquals(ReplicaState.IGNORE, deliver(log(EPOCH, 2L, 3L)));
+    assertEquals(3L, state.getSeq());
+  }
+
+  public void testUpToDateHeartbeatIgnoredButNoted() {
+    follow(3L);
+    YPReplicationMessage heartbeat = 
+      YPReplicationMessage.log(PRIMARY, REPLICA, 0L, EPOCH, 3L, 3L, 0L, false, Collections.EMPTY_LIST);
+    state.subscribe(REPLICA, PRIMARY, 0L);
+    assertEquals(ReplicaState.IGNORE, state.receive(heartbeat, 10L));
+    // the subscription was answered
+    assertFalse(state.isQuiet(20L, 15L));
+  }
+
+  public void testGapForcesResubscribe() {
+    follow(3L);
+    assertEquals(ReplicaState.RESUBSCRIBE, deliver(log(EPOCH, 5L, 5L)));
+    assertEquals(3L, state.getSeq());
+
+    // while the subscription is unanswered, further out-of-order entries are dropped
+    YPReplicationMessage m = state.subscribe(REPLICA, PRIMARY, 0L);
+    assertEquals(EPOCH, m.getEpoch());
+    assertEquals(3L, m.getSeq());
+    assertEquals(ReplicaState.IGNORE, deliver(log(EPOCH, 6L, 6L)));
+
+    // the primary catches us up from where we were
+    assertEquals(ReplicaState.APPLY, deliver(log(EPOCH, 4L, 6L)));
+    assertEquals(ReplicaState.APPLY, deliver(log(EPOCH, 5L, 6L)));
+    assertEquals(ReplicaState.APPLY, deliver(log(EPOCH, 6L, 6L)));
+    assertEquals(6L, state.getSeq());
+  }
+
+  public void testGapAnsweredByFullResync() {
+    follow(3L);
+    assertEquals(ReplicaState.RESUBSCRIBE, deliver(log(EPOCH, 200L, 200L)));
+    state.subscribe(REPLICA, PRIMARY, 0L);
+    // the primary no longer has the entries we missed, so sends everything
+    assertEquals(ReplicaState.APPLY, deliver(reset(EPOCH, 200L)));
+    assertEquals(200L, state.getSeq());
+    assertEquals(200L, state.getPrimarySeq());
+    assertEquals(ReplicaState.APPLY, deliver(log(EPOCH, 201L, 201L)));
+  }
+
+  public void testStaleResetIgnored() {
+    follow(3L);
+    assertEquals(ReplicaState.IGNORE, deliver(reset(EPOCH, 2L)));
+    assertEquals(ReplicaState.IGNORE, deliver(reset(EPOCH, 3L)));
+    assertEquals(3L, state.getSeq());
+  }
+
+  public void testResubscribeAfterPrimaryRestart() {
+    follow(3L);
+    long restarted = EPOCH + 500L;
+    // the restarted primary's log starts again at 1
+    assertEquals(ReplicaState.RESUBSCRIBE, deliver(log(restarted, 1L, 1L)));
+    YPReplicationMessage m = state.subscribe(REPLICA, PRIMARY, 0L);
+    assertEquals(EPOCH, m.getEpoch());
+    assertEquals(3L, m.getSeq());
+
+    // which it answers with a reset in its new epoch, even to an earlier entry
+    assertEquals(ReplicaState.APPLY, deliver(reset(restarted, 1L)));
+    assertEquals(restarted, state.getEpoch());
+    assertEquals(1L, state.getSeq());
+    assertEquals(1L, state.getPrimarySeq());
+    assertEquals(ReplicaState.APPLY, deliver(log(restarted, 2L, 2L)));
+  }
+
+  public void testLoseAsksForReset() {
+    follow(3L);
+    state.lose();
+    YPReplicationMessage m = state.subscribe(REPLICA, PRIMARY, 0L);
+    assertEquals(0L, m.getEpoch());
+    assertEquals(0L, m.getSeq());
+    assertEquals(ReplicaState.APPLY, deliver(reset(EPOCH, 3L)));
+  }
+
+  public void testQuietAndFailed() {
+    // never heard from the primary: quiet, but not a copy of it to take over with
+    assertTrue(state.isQuiet(100L, 50L));
+    assertFalse(state.hasFailed(100L, 50L));
+
+    state.applied(reset(EPOCH, 1L), 0L);
+    state.receive(log(EPOCH, 2L, 2L), 100L);
+    assertFalse(state.isQuiet(120L, 50L));
+    assertFalse(state.hasFailed(120L, 50L));
+    assertTrue(state.isQuiet(200L, 50L));
+    assertTrue(state.hasFailed(200L, 50L));
+
+    // an unanswered subscription is quiet even while log entries arrive
+    state.subscribe(REPLICA, PRIMARY, 100L);
+    state.receive(log(EPOCH, 9L, 9L), 160L);
+    assertTrue(state.isQuiet(160L, 50L));
+    assertFalse(state.hasFailed(160L, 50L));
+  }
+
+  public void testGenerationLearnedFromPrimary() {
+    follow(2L);
+    assertEquals(0L, state.getGeneration());
+    YPReplicationMessage m = 
+      YPReplicationMessage.log(PRIMARY, REPLICA, 2L, EPOCH, 3L, 3L, 0L, false, Collections.EMPTY_LIST);
+    assertEquals(ReplicaState.APPLY, deliver(m));
+    assertEquals(2L, state.getGeneration());
+
+    YPReplicationMessage s = state.subscribe(REPLICA, PRIMARY, 0L);
+    assertEquals(2L, s.getGeneration());
+    assertEquals(PRIMARY, s.getPrimary());
+    YPReplicationMessage ack = state.ack(REPLICA, m);
+    assertEquals(YPReplicationMessage.ACK, ack.getKind());
+    assertEquals(PRIMARY, ack.getTarget());
+    assertEquals(2L, ack.getGeneration());
+    assertEquals(3L, ack.getSeq());
+  }
+
+  public void testLeadStartsNextGeneration() {
+    state.setGeneration(4L);
+    assertEquals(5L, state.lead());
+    assertEquals(5L, state.getGeneration());
+  }
+
+  public void testFollowingNewPrimaryAsksForReset() {
+    follow(3L);
+    state.follow(1L);
+    assertEquals(1L, state.getGeneration());
+    YPReplicationMessage m = state.subscribe(REPLICA, OTHER, 0L);
+    assertEquals(OTHER, m.getTarget());
+    assertEquals(1L, m.getGeneration());
+    assertEquals(0L, m.getEpoch());
+    assertEquals(0L, m.getSeq());
+
+    // the new primary's log is of another epoch, so only its reset is applied
+    long epoch = EPOCH + 1L;
+    assertEquals(ReplicaState.IGNORE, deliver(log(epoch, 4L, 4L)));
+    assertEquals(ReplicaState.APPLY, deliver(reset(epoch, 4L)));
+    assertEquals(epoch, state.getEpoch());
+  }
+
+  public void testSupersedes() {
+    assertTrue(ReplicaState.supersedes(OTHER, 1L, PRIMARY, 0L));
+    assertFalse(ReplicaState.supersedes(PRIMARY, 0L, OTHER, 1L));
+    // later generations win whatever the names
+    assertTrue(ReplicaState.supersedes(PRIMARY, 2L, OTHER, 1L));
+    // standbys which take over at once are ordered by name
+    assertTrue(ReplicaState.supersedes(PRIMARY, 1L, OTHER, 1L));
+    assertFalse(ReplicaState.supersedes(OTHER, 1L, PRIMARY, 1L));
+    assertFalse(ReplicaState.supersedes(PRIMARY, 1L, PRIMARY, 1L));
+  }
+
+  public void testPrimaryMessage() {
+    YPReplicationMessage m = YPReplicationMessage.primary(REPLICA, PRIMARY, OTHER, 3L);
+    assertEquals(YPReplicationMessage.PRIMARY, m.getKind());
+    assertEquals(REPLICA, m.getOriginator());
+    assertEquals(PRIMARY, m.getTarget());
+    assertEquals(OTHER, m.getPrimary());
+    assertEquals(3L, m.getGeneration());
+  }
+}
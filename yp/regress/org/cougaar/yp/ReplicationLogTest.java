@@ -0,0 +1,321 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.juddi.datastore.jdbc.HSQLDataStoreFactory;
+import org.juddi.util.Config;
+
+import junit.framework.TestCase;
+
+/** Runs a primary's publish log against file databases, as YPServer does,
+ * and applies it to a replica's database.
+ **/
+public class ReplicationLogTest extends TestCase {
+  private static final MessageAddress PRIMARY = MessageAddress.getMessageAddress("Primary");
+  private static final MessageAddress REPLICA = MessageAddress.getMessageAddress("Replica");
+  private static final MessageAddress OTHER = MessageAddress.getMessageAddress("Other");
+  private static final long GENERATION = 2L;
+
+  private String primaryTag;
+  private String replicaTag;
+  private ReplicationLog log;
+
+  protected void setUp() throws Exception {
+    long now = System.currentTimeMillis();
+    primaryTag = makeHome("ReplicationLogTest-primary@" + now);
+    replicaTag = makeHome("ReplicationLogTest-replica@" + now);
+
+    Config.dbTag.set(replicaTag);
+    HSQLDataStoreFactory.openDatabase();
+
+    Config.dbTag.set(primaryTag);
+    HSQLDataStoreFactory.openDatabase();
+    execute("CREATE TABLE T (K VARCHAR(41) NOT NULL,V VARCHAR(255),PRIMARY KEY (K))");
+    execute("INSERT INTO T VALUES('a','first')");
+    log = new ReplicationLog(PRIMARY, new File(Config.getHomeDir(), 
+                                               "hsql" + File.separator + "juddidb.script"),
+                             GENERATION);
+  }
+
+  protected void tearDown() {
+    String[] tags = { primaryTag, replicaTag };
+    for (int i = 0; i < tags.length; i++) {
+      Config.dbTag.set(tags[i]);
+      HSQLDataStoreFactory.closeDatabase(); // the last connection, so shuts it down
+      delete(new File(System.getProperty("juddi.homeDir"), tags[i]));
+    }
+    Config.dbTag.set("");
+  }
+
+  /** Make a juddi home for tag, configured as the default one is **/
+  private static String makeHome(String tag) throws IOException {
+    File home = new File(System.getProperty("juddi.homeDir"));
+    File conf = new File(new File(home, tag), "conf");
+    conf.mkdirs();
+    SnapshotBase.copyFile(new File(new File(home, "conf"), "juddi.properties"),
+                          new File(conf, "juddi.properties"));
+    return tag;
+  }
+
+  /** Publish on the primary: statements executed between begin and end **/
+  private List publish(String sql) throws Exception {
+    Config.dbTag.set(primaryTag);
+    log.begin();
+    execute(sql);
+    return log.end();
+  }
+
+  /** Apply a LOG message to the replica's database, as YPServer does **/
+  private void apply(YPReplicationMessage m) throws SQLException {
+    assertEquals(YPReplicationMessage.LOG, m.getKind());
+    Config.dbTag.set(replicaTag);
+    if (m.isReset()) {
+      HSQLDataStoreFactory.replaceDatabase(m.getStatements());
+    } else {
+      HSQLDataStoreFactory.replayScript(m.getStatements());
+    }
+  }
+
+  private void applyAll(List messages) throws SQLException {
+    for (Iterator i = messages.iterator(); i.hasNext(); ) {
+      apply((YPReplicationMessage) i.next());
+    }
+  }
+
+  private List subscribe(MessageAddress replica, long epoch, long seq) throws SQLException {
+    Config.dbTag.set(primaryTag);
+    return log.subscribe(YPReplicationMessage.subscribe(replica, PRIMARY, GENERATION, epoch, seq));
+  }
+
+  private void ack(MessageAddress replica, long epoch, long seq) {
+    log.ack(YPReplicationMessage.ack(replica, PRIMARY, GENERATION, epoch, seq, 0L));
+  }
+
+  private static YPReplicationMessage only(List messages) {
+    assertEquals(1, messages.size());
+    return (YPReplicationMessage) messages.get(0);
+  }
+
+  public void testNothingLoggedWithoutSubscribers() throws Exception {
+    assertTrue(publish("INSERT INTO T VALUES('b','second')").isEmpty());
+  }
+
+  public void testFirstSubscriptionGetsReset() throws Exception {
+    YPReplicationMessage m = only(subscribe(REPLICA, 0L, 0L));
+    assertEquals(REPLICA, m.getTarget());
+    assertTrue(m.isReset());
+    assertEquals(0L, m.getSeq());
+    apply(m);
+    assertSameRows();
+  }
+
+  public void testPublishStreamedInOrder() throws Exception {
+    YPReplicationMessage reset = only(subscribe(REPLICA, 0L, 0L));
+    apply(reset);
+    long epoch = reset.getEpoch();
+
+    YPReplicationMessage m = only(publish("INSERT INTO T VALUES('b','second')"));
+    assertFalse(m.isReset());
+    assertEquals(epoch, m.getEpoch());
+    assertEquals(GENERATION, m.getGeneration());
+    assertEquals(PRIMARY, m.getPrimary());
+    assertEquals(1L, m.getSeq());
+    assertEquals(1L, m.getLatestSeq());
+    apply(m);
+    ack(REPLICA, epoch, 1L);
+
+    m = only(publish("UPDATE T SET V='changed' WHERE K='a'"));
+    assertEquals(2L, m.getSeq());
+    apply(m);
+    assertSameRows();
+
+    // a query modifies nothing, so is not logged
+    assertTrue(publish("SELECT * FROM T").isEmpty());
+  }
+
+  public void testNonASCIISurvivesTheLog() throws Exception {
+    apply(only(subscribe(REPLICA, 0L, 0L)));
+    applyAll(publish("INSERT INTO T VALUES('b','caf\u00e9 \u65e5\u672c \\u0041')"));
+    assertSameRows();
+    Config.dbTag.set(replicaTag);
+    assertEquals("caf\u00e9 \u65e5\u672c \\u0041", queryValue("b"));
+  }
+
+  public void testCatchUpFromRetainedEntries() throws Exception {
+    YPReplicationMessage reset = only(subscribe(REPLICA, 0L, 0L));
+    apply(reset);
+    long epoch = reset.getEpoch();
+    apply(only(publish("INSERT INTO T VALUES('b','1')")));
+    // the replica misses these
+    publish("INSERT INTO T VALUES('c','2')");
+    publish("DELETE FROM T WHERE K='a'");
+
+    List messages = subscribe(REPLICA, epoch, 1L);
+    assertEquals(2, messages.size());
+    assertEquals(2L, ((YPReplicationMessage) messages.get(0)).getSeq());
+    assertEquals(3L, ((YPReplicationMessage) messages.get(1)).getSeq());
+    assertFalse(((YPReplicationMessage) messages.get(0)).isReset());
+    applyAll(messages);
+    assertSameRows();
+  }
+
+  public void testUpToDateSubscriptionGetsHeartbeat() throws Exception {
+    YPReplicationMessage reset = only(subscribe(REPLICA, 0L, 0L));
+    apply(reset);
+    apply(only(publish("INSERT INTO T VALUES('b','1')")));
+
+    YPReplicationMessage m = only(subscribe(REPLICA, reset.getEpoch(), 1L));
+    assertFalse(m.isReset());
+    assertEquals(1L, m.getSeq());
+    assertTrue(m.getStatements().isEmpty());
+  }
+
+  public void testOtherEpochGetsReset() throws Exception {
+    YPReplicationMessage reset = only(subscribe(REPLICA, 0L, 0L));
+    apply(reset);
+    publish("INSERT INTO T VALUES('b','1')");
+
+    // e.g. the replica followed this primary before it restarted
+    YPReplicationMessage m = only(subscribe(REPLICA, reset.getEpoch() - 1L, 1L));
+    assertTrue(m.isReset());
+    assertEquals(1L, m.getSeq());
+    apply(m);
+    assertSameRows();
+  }
+
+  public void testRewrittenScriptLoggedAsReset() throws Exception {
+    YPReplicationMessage reset = only(subscribe(REPLICA, 0L, 0L));
+    apply(reset);
+    apply(only(publish("INSERT INTO T VALUES('b','1')")));
+
+    Config.dbTag.set(primaryTag);
+    log.begin();
+    execute("INSERT INTO T VALUES('c','2')");
+    HSQLDataStoreFactory.checkpoint();
+    YPReplicationMessage m = only(log.end());
+    assertTrue(m.isReset());
+    assertEquals(2L, m.getSeq());
+    apply(m);
+    assertSameRows();
+
+    // and the log goes on from there
+    m = only(publish("INSERT INTO T VALUES('d','3')"));
+    assertFalse(m.isReset());
+    assertEquals(3L, m.getSeq());
+  }
+
+  public void testLaggingReplicaDropped() throws Exception {
+    YPReplicationMessage reset = only(subscribe(REPLICA, 0L, 0L));
+    long epoch = reset.getEpoch();
+    subscribe(OTHER, 0L, 0L);
+    ack(OTHER, epoch + 1L, 1000L); // stale, so ignored
+
+    // OTHER never acks, so is dropped once more than the retained log behind
+    int size = Integer.getInteger("org.cougaar.yp.ReplicationLogSize", 100).intValue();
+    for (int i = 1; i <= size; i++) {
+      assertEquals(2, publish("INSERT INTO T VALUES('k" + i + "','" + i + "')").size());
+      ack(REPLICA, epoch, i);
+    }
+    YPReplicationMessage m = only(publish("INSERT INTO T VALUES('last','x')"));
+    assertEquals(REPLICA, m.getTarget());
+
+    // until it subscribes again, from too far back to catch up
+    List messages = subscribe(OTHER, epoch, 0L);
+    assertTrue(only(messages).isReset());
+    assertEquals(2, publish("DELETE FROM T WHERE K='last'").size());
+  }
+
+  private void execute(String sql) throws SQLException {
+    Connection c = DriverManager.getConnection(HSQLDataStoreFactory.getURL(), "sa", "");
+    try {
+      Statement s = c.createStatement();
+      s.execute(sql);
+      s.close();
+    } finally {
+      c.close();
+    }
+  }
+
+  private String queryValue(String key) throws SQLException {
+    Connection c = DriverManager.getConnection(HSQLDataStoreFactory.getURL(), "sa", "");
+    try {
+      Statement s = c.createStatement();
+      ResultSet rs = s.executeQuery("SELECT V FROM T WHERE K='" + key + "'");
+      String v = rs.next() ? rs.getString(1) : null;
+      s.close();
+      return v;
+    } finally {
+      c.close();
+    }
+  }
+
+  private List rows(String tag) throws SQLException {
+    Config.dbTag.set(tag);
+    Connection c = DriverManager.getConnection(HSQLDataStoreFactory.getURL(), "sa", "");
+    try {
+      List rows = new ArrayList();
+      Statement s = c.createStatement();
+      ResultSet rs = s.executeQuery("SELECT K, V FROM T ORDER BY K");
+      while (rs.next()) {
+        rows.add(rs.getString(1) + "=" + rs.getString(2));
+      }
+      s.close();
+      return rows;
+    } finally {
+      c.close();
+    }
+  }
+
+  private void assertSameRows() throws SQLException {
+    assertEquals(rows(primaryTag), rows(replicaTag));
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (int i = 0; i < children.length; i++) {
+        delete(children[i]);
+      }
+    }
+    f.delete();
+  }
+}
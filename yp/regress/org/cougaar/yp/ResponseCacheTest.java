@@ -0,0 +1,202 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+
+public class ResponseCacheTest extends TestCase {
+
+  static Element parse(String xml) throws Exception {
+    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    dbf.setNamespaceAware(true);
+    return dbf.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement();
+  }
+
+  static String key(String xml) throws Exception {
+    return ResponseCache.canonicalKey(parse(xml));
+  }
+
+  public void testFormattingIsIgnored() throws Exception {
+    assertEquals(key("<find_business generic=\"2.0\" maxRows=\"5\"><name>Foo</name></find_business>"),
+                 key("<find_business maxRows=\"5\"   generic=\"2.0\">\n  <name>Foo</name>\n</find_business>"));
+    assertEquals(key("<find_business><name>Foo</name><!-- note --></find_business>"),
+                 key("<find_business><name>Foo</name></find_business>"));
+  }
+
+  public void testSignificantWhitespaceIsKept() throws Exception {
+    assertFalse(key("<find_business><name>Foo</name></find_business>").equals(
+                key("<find_business><name> Foo</name></find_business>")));
+    assertFalse(key("<find_business><name>Foo Bar</name></find_business>").equals(
+                key("<find_business><name>Foo  Bar</name></find_business>")));
+    assertFalse(key("<k keyValue=\"a\"/>").equals(key("<k keyValue=\"a \"/>")));
+  }
+
+  public void testCDATAMatchesText() throws Exception {
+    assertEquals(key("<name>a&lt;b</name>"), key("<name><![CDATA[a<b]]></name>"));
+    assertFalse(key("<name>&lt;b/&gt;</name>").equals(key("<name><b/></name>")));
+  }
+
+  public void testAttributeValuesCannotForgeAttributes() throws Exception {
+    assertFalse(key("<k a=\"x&quot; b=&quot;y\"/>").equals(key("<k a=\"x\" b=\"y\"/>")));
+  }
+
+  public void testNamespacesDistinguish() throws Exception {
+    assertFalse(key("<p:find_business xmlns:p=\"urn:uddi-org:api_v2\"/>").equals(
+                key("<p:find_business xmlns:p=\"urn:other\"/>")));
+  }
+
+  public void testCacheable() throws Exception {
+    assertTrue(ResponseCache.isCacheable(parse("<find_service/>")));
+    assertTrue(ResponseCache.isCacheable(parse("<u:get_businessDetail xmlns:u=\"urn:x\"/>")));
+    assertFalse(ResponseCache.isCacheable(parse("<get_authToken/>")));
+    assertFalse(ResponseCache.isCacheable(parse("<save_business/>")));
+  }
+
+  public void testGetReturnsPrivateCopies() throws Exception {
+    ResponseCache cache = new ResponseCache(4);
+    Element response = parse("<businessList><businessInfos/></businessList>");
+    cache.put("k", response, cache.getGeneration());
+    response.setAttribute("changed", "true");   // the caller's copy is not retained
+
+    Element a = cache.get("k");
+    Element b = cache.get("k");
+    assertNotSame(a, b);
+    assertNotSame(a.getOwnerDocument(), b.getOwnerDocument());
+    assertNotSame(response.getOwnerDocument(), a.getOwnerDocument());
+    assertEquals("", a.getAttribute("changed"));
+    a.setAttribute("mine", "yes");
+    assertEquals("", cache.get("k").getAttribute("mine"));
+    assertEquals(3, cache.getHits());
+  }
+
+  public void testStaleGenerationIsRefused() throws Exception {
+    ResponseCache cache = new ResponseCache(4);
+    long gen = cache.getGeneration();
+    cache.invalidate();
+    cache.put("k", parse("<r/>"), gen);
+    assertNull(cache.get("k"));
+    cache.put("k", parse("<r/>"), cache.getGeneration());
+    assertNotNull(cache.get("k"));
+    cache.invalidate();
+    assertNull(cache.get("k"));
+    assertEquals(2, cache.getInvalidations());
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() throws Exception {
+    ResponseCache cache = new ResponseCache(2);
+    long gen = cache.getGeneration();
+    cache.put("a", parse("<a/>"), gen);
+    cache.put("b", parse("<b/>"), gen);
+    cache.get("a");
+    cache.put("c", parse("<c/>"), gen);
+    assertEquals(2, cache.size());
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertNotNull(cache.get("c"));
+    assertEquals(1, cache.getEvictions());
+  }
+
+  public void testConcurrentGets() throws Exception {
+    final ResponseCache cache = new ResponseCache(4);
+    StringBuffer xml = new StringBuffer("<businessList><businessInfos>");
+    for (int i = 0; i < 50; i++) {
+      xml.append("<businessInfo businessKey=\"k"+i+"\"><name>n"+i+"</name></businessInfo>");
+    }
+    xml.append("</businessInfos></businessList>");
+    cache.put("k", parse(xml.toString()), cache.getGeneration());
+    final String expected = ResponseCache.canonicalKey(cache.get("k"));
+
+    final List failures = new ArrayList();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+          public void run() {
+            for (int i = 0; i < 200; i++) {
+              Element el = cache.get("k");
+              el.setAttribute("touched", "yes");   // callers may modify their copy
+              el.removeAttribute("touched");
+              if (!expected.equals(ResponseCache.canonicalKey(el))) {
+                synchronized (failures) { failures.add(el); }
+              }
+            }
+          }
+        };
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+    }
+    assertEquals(0, failures.size());
+  }
+
+  public void testCopiesDoNotShareAGlobalLock() throws Exception {
+    final Element el = parse("<businessList><name>A</name></businessList>");
+    final Object[] copies = new Object[2];
+    final boolean[] go = new boolean[1];
+    Thread t = new Thread() {
+        public void run() {
+          synchronized (copies) {
+            copies[0] = ResponseCache.copyDocument(el); // this thread's builder
+            copies.notifyAll();
+            while (!go[0]) {
+              try {
+                copies.wait();
+              } catch (InterruptedException ie) {
+                return;
+              }
+            }
+          }
+          copies[1] = ResponseCache.copyDocument(el);
+        }
+      };
+    synchronized (copies) {
+      t.start();
+      while (copies[0] == null) {
+        copies.wait();
+      }
+    }
+    synchronized (ResponseCache.class) {
+      synchronized (copies) {
+        go[0] = true;
+        copies.notifyAll();
+      }
+      t.join(10000);
+      assertNotNull("copied while another thread held ResponseCache.class", copies[1]);
+    }
+    assertEquals(ResponseCache.canonicalKey(el), ResponseCache.canonicalKey((Element) copies[1]));
+    assertNotSame(((Element) copies[0]).getOwnerDocument(), ((Element) copies[1]).getOwnerDocument());
+  }
+}
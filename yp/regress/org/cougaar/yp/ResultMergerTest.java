@@ -0,0 +1,180 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class ResultMergerTest extends TestCase {
+
+  private static Element parse(String xml) throws Exception {
+    return ResponseCacheTest.parse(xml);
+  }
+
+  private static Element businessList(String keys, boolean truncated) throws Exception {
+    StringBuffer sb = new StringBuffer("<businessList generic=\"2.0\" operator=\"Cougaar\"");
+    if (truncated) sb.append(" truncated=\"true\"");
+    sb.append(">");
+    if (keys != null) {
+      sb.append("<businessInfos>");
+      for (int i = 0; i < keys.length(); i++) {
+        char k = keys.charAt(i);
+        sb.append("<businessInfo businessKey=\""+k+"\"><name>"+k+"</name><serviceInfos/></businessInfo>");
+      }
+      sb.append("</businessInfos>");
+    }
+    sb.append("</businessList>");
+    return parse(sb.toString());
+  }
+
+  private static List list(Element[] answers) {
+    List l = new ArrayList();
+    for (int i = 0; i < answers.length; i++) l.add(answers[i]);
+    return l;
+  }
+
+  /** @return the keys of the entries of a merged answer, in order **/
+  private static String keys(Element merged, String container, String attribute) {
+    StringBuffer sb = new StringBuffer();
+    Element c = (container == null)?merged:(Element) merged.getElementsByTagName(container).item(0);
+    if (c == null) return "";
+    for (Node n = c.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n.getNodeType() == Node.ELEMENT_NODE) {
+        sb.append(((Element) n).getAttribute(attribute));
+      }
+    }
+    return sb.toString();
+  }
+
+  public void testMergeable() throws Exception {
+    assertTrue(ResultMerger.isMergeable(parse("<find_business/>")));
+    assertTrue(ResultMerger.isMergeable(parse("<u:find_tModel xmlns:u=\"urn:uddi-org:api_v2\"/>")));
+    assertFalse(ResultMerger.isMergeable(parse("<get_businessDetail/>")));
+  }
+
+  public void testOverlappingAnswers() throws Exception {
+    Element a = businessList("ABC", false);
+    Element b = businessList("CDA", false);
+    Element c = businessList("EB", false);
+    Element merged = ResultMerger.merge(list(new Element[] { a, b, c }), 0);
+    assertEquals("ABCDE", keys(merged, "businessInfos", "businessKey"));
+    assertEquals("", merged.getAttribute("truncated"));
+    assertEquals("Cougaar", merged.getAttribute("operator"));
+    // the answers themselves are left alone
+    assertEquals("ABC", keys(a, "businessInfos", "businessKey"));
+    assertEquals("CDA", keys(b, "businessInfos", "businessKey"));
+  }
+
+  public void testDuplicatesWithinOneAnswer() throws Exception {
+    Element merged = ResultMerger.merge(list(new Element[] { businessList("AAB", false) }), 0);
+    assertEquals("AB", keys(merged, "businessInfos", "businessKey"));
+  }
+
+  public void testMaxRowsTruncates() throws Exception {
+    Element merged = ResultMerger.merge(list(new Element[] {
+      businessList("AB", false), businessList("BCD", false) }), 3);
+    assertEquals("ABC", keys(merged, "businessInfos", "businessKey"));
+    assertEquals("true", merged.getAttribute("truncated"));
+
+    merged = ResultMerger.merge(list(new Element[] {
+      businessList("ABCD", false), businessList("E", false) }), 2);
+    assertEquals("AB", keys(merged, "businessInfos", "businessKey"));
+    assertEquals("true", merged.getAttribute("truncated"));
+  }
+
+  public void testDuplicatesBeyondMaxRowsDoNotTruncate() throws Exception {
+    Element merged = ResultMerger.merge(list(new Element[] {
+      businessList("ABA", false), businessList("BA", false) }), 2);
+    assertEquals("AB", keys(merged, "businessInfos", "businessKey"));
+    assertEquals("", merged.getAttribute("truncated"));
+  }
+
+  public void testTruncatedAnswerTruncatesMerge() throws Exception {
+    Element merged = ResultMerger.merge(list(new Element[] {
+      businessList("A", false), businessList("B", true) }), 0);
+    assertEquals("AB", keys(merged, "businessInfos", "businessKey"));
+    assertEquals("true", merged.getAttribute("truncated"));
+
+    merged = ResultMerger.merge(list(new Element[] {
+      businessList("A", true), businessList("B", false) }), 0);
+    assertEquals("true", merged.getAttribute("truncated"));
+  }
+
+  public void testEmptyFirstAnswer() throws Exception {
+    Element merged = ResultMerger.merge(list(new Element[] {
+      businessList(null, false), businessList(null, false), businessList("BA", false) }), 0);
+    assertEquals("BA", keys(merged, "businessInfos", "businessKey"));
+
+    merged = ResultMerger.merge(list(new Element[] { businessList(null, false) }), 0);
+    assertEquals("", keys(merged, "businessInfos", "businessKey"));
+  }
+
+  public void testServiceAndTModelLists() throws Exception {
+    Element s1 = parse("<serviceList><serviceInfos>" +
+                       "<serviceInfo serviceKey=\"1\" businessKey=\"A\"/>" +
+                       "<serviceInfo serviceKey=\"2\" businessKey=\"A\"/>" +
+                       "</serviceInfos></serviceList>");
+    Element s2 = parse("<serviceList><serviceInfos>" +
+                       "<serviceInfo serviceKey=\"2\" businessKey=\"A\"/>" +
+                       "<serviceInfo serviceKey=\"3\" businessKey=\"A\"/>" +
+                       "</serviceInfos></serviceList>");
+    // services of the same business are told apart by their serviceKey
+    assertEquals("123", keys(ResultMerger.merge(list(new Element[] { s1, s2 }), 0),
+                             "serviceInfos", "serviceKey"));
+
+    Element t1 = parse("<tModelList><tModelInfos><tModelInfo tModelKey=\"uuid:x\"><name>x</name></tModelInfo>" +
+                       "</tModelInfos></tModelList>");
+    Element t2 = parse("<tModelList>\n <tModelInfos>\n  <tModelInfo tModelKey=\"uuid:y\"><name>y</name></tModelInfo>\n" +
+                       "  <tModelInfo tModelKey=\"uuid:x\"><name>x</name></tModelInfo>\n </tModelInfos>\n</tModelList>");
+    assertEquals("uuid:xuuid:y", keys(ResultMerger.merge(list(new Element[] { t1, t2 }), 0),
+                                      "tModelInfos", "tModelKey"));
+  }
+
+  public void testDetailAnswers() throws Exception {
+    Element d1 = parse("<bindingDetail><bindingTemplate bindingKey=\"1\"/><bindingTemplate bindingKey=\"2\"/></bindingDetail>");
+    Element d2 = parse("<bindingDetail><bindingTemplate bindingKey=\"2\"/><bindingTemplate bindingKey=\"3\"/></bindingDetail>");
+    assertEquals("123", keys(ResultMerger.merge(list(new Element[] { d1, d2 }), 0), null, "bindingKey"));
+  }
+
+  public void testEntriesWithoutKeysAreComparedByContent() throws Exception {
+    Element a = parse("<relatedBusinessesList><relatedBusinessInfos>" +
+                      "<relatedBusinessInfo><name>x</name></relatedBusinessInfo>" +
+                      "</relatedBusinessInfos></relatedBusinessesList>");
+    Element b = parse("<relatedBusinessesList><relatedBusinessInfos>" +
+                      "<relatedBusinessInfo><name>x</name></relatedBusinessInfo>" +
+                      "<relatedBusinessInfo><name>y</name></relatedBusinessInfo>" +
+                      "</relatedBusinessInfos></relatedBusinessesList>");
+    Element merged = ResultMerger.merge(list(new Element[] { a, b }), 0);
+    assertEquals(2, merged.getElementsByTagName("relatedBusinessInfo").getLength());
+  }
+}
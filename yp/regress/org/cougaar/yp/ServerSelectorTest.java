@@ -0,0 +1,194 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.w3c.dom.Element;
+
+public class ServerSelectorTest extends TestCase {
+  private static final MessageAddress A = MessageAddress.getMessageAddress("A");
+  private static final MessageAddress B = MessageAddress.getMessageAddress("B");
+  private static final MessageAddress C = MessageAddress.getMessageAddress("C");
+
+  /** listed by the community in an order other than by name **/
+  private static List servers() {
+    return new ArrayList(Arrays.asList(new MessageAddress[] { C, A, B }));
+  }
+
+  public void testPolicyNames() {
+    assertTrue(ServerSelector.getInstance("first") instanceof ServerSelector.First);
+    assertTrue(ServerSelector.getInstance("roundRobin") instanceof ServerSelector.RoundRobin);
+    assertTrue(ServerSelector.getInstance("leastOutstanding") instanceof ServerSelector.LeastOutstanding);
+    assertTrue(ServerSelector.getInstance("latency") instanceof ServerSelector.LatencyWeighted);
+    assertTrue(ServerSelector.getInstance(ServerSelector.RoundRobin.class.getName())
+               instanceof ServerSelector.RoundRobin);
+    assertTrue(ServerSelector.getInstance("no.such.Policy") instanceof ServerSelector.First);
+  }
+
+  public void testSingleServer() {
+    String[] policies = { "first", "roundRobin", "leastOutstanding", "latency" };
+    for (int i = 0; i < policies.length; i++) {
+      ServerSelector s = ServerSelector.getInstance(policies[i]);
+      List one = Arrays.asList(new MessageAddress[] { B });
+      assertSame(B, s.select(one, true));
+      assertSame(B, s.select(one, false));
+      assertSame(B, s.select(one, true, B));
+    }
+  }
+
+  public void testFirst() {
+    ServerSelector s = ServerSelector.getInstance("first");
+    for (int i = 0; i < 5; i++) {
+      assertSame(C, s.select(servers(), true));
+      assertSame(C, s.select(servers(), false));
+    }
+  }
+
+  public void testPublishesGoToFirstByName() {
+    String[] policies = { "roundRobin", "leastOutstanding", "latency" };
+    for (int i = 0; i < policies.length; i++) {
+      ServerSelector s = ServerSelector.getInstance(policies[i]);
+      for (int j = 0; j < 5; j++) {
+        assertSame(policies[i], A, s.select(servers(), false));
+      }
+    }
+  }
+
+  public void testAuthTokenGoesToPublishServer() {
+    YPProxyImpl yp = new YPProxyImpl(A, null, false);
+    YPFuture token = yp.get_authToken("user", "pass");
+    YPFuture save = yp.save_business("token", new Vector());
+    YPFuture find = yp.find_business(new Vector(), null, null, null, null, null, 0);
+    assertTrue(token.isAuthBound());
+    assertTrue(yp.get_registeredInfo("token").isAuthBound());
+    assertTrue(yp.discard_authToken("token").isAuthBound());
+    assertFalse(find.isAuthBound());
+    assertFalse(ServerSelector.isSpreadable(token));
+    assertTrue(ServerSelector.isSpreadable(find));
+
+    String[] policies = { "first", "roundRobin", "leastOutstanding", "latency" };
+    for (int i = 0; i < policies.length; i++) {
+      ServerSelector s = ServerSelector.getInstance(policies[i]);
+      s.sent(A);                // make the publish server look busy
+      Set inquiries = new HashSet();
+      for (int j = 0; j < 20; j++) {
+        MessageAddress publishServer = s.select(servers(), save, null);
+        assertSame(policies[i], publishServer, s.select(servers(), token, null));
+        inquiries.add(s.select(servers(), find, null));
+      }
+      if (policies[i].equals("roundRobin")) {
+        assertEquals("other inquiries are spread", 3, inquiries.size());
+      }
+    }
+  }
+
+  public void testAuthBoundElements() throws Exception {
+    assertTrue(YPProxyImpl.isAuthBound(parse("<get_authToken userID='u' cred='p'/>")));
+    assertTrue(YPProxyImpl.isAuthBound(parse("<get_registeredInfo><authInfo>t</authInfo></get_registeredInfo>")));
+    assertTrue(YPProxyImpl.isAuthBound(parse("<u:discard_authToken xmlns:u='urn:uddi-org:api_v2'><u:authInfo>t</u:authInfo></u:discard_authToken>")));
+    assertFalse(YPProxyImpl.isAuthBound(parse("<find_business><name>authInfo</name></find_business>")));
+  }
+
+  private static Element parse(String xml) throws Exception {
+    return ResponseCacheTest.parse(xml);
+  }
+
+  public void testRoundRobinUsesEachServer() {
+    ServerSelector s = ServerSelector.getInstance("roundRobin");
+    Set seen = new HashSet();
+    for (int i = 0; i < 3; i++) {
+      seen.add(s.select(servers(), true));
+    }
+    assertEquals(3, seen.size());
+  }
+
+  public void testLeastOutstanding() {
+    ServerSelector s = ServerSelector.getInstance("leastOutstanding");
+    s.sent(C);
+    s.sent(C);
+    s.sent(A);
+    for (int i = 0; i < 5; i++) {
+      assertSame(B, s.select(servers(), true));
+    }
+    s.sent(B);
+    s.sent(B);
+    s.answered(C, 10);
+    s.answered(C, 10);
+    for (int i = 0; i < 5; i++) {
+      assertSame(C, s.select(servers(), true));
+    }
+  }
+
+  public void testLatencyWeighted() {
+    ServerSelector s = ServerSelector.getInstance("latency");
+    s.answered(C, 1000);
+    s.answered(A, 1000);
+    // B has never been tried, so it is tried first
+    assertSame(B, s.select(servers(), true));
+    s.sent(B);
+    s.answered(B, 1);
+    int fast = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (s.select(servers(), true) == B) fast++;
+    }
+    assertTrue("fast server chosen "+fast+" of 1000 times", fast > 950);
+
+    // a timeout raises the server's latency to at least the time waited
+    s.timedOut(B, 100000);
+    fast = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (s.select(servers(), true) == B) fast++;
+    }
+    assertTrue("slow server chosen "+fast+" of 1000 times", fast < 50);
+  }
+
+  public void testAvoid() {
+    String[] policies = { "first", "roundRobin", "leastOutstanding", "latency" };
+    for (int i = 0; i < policies.length; i++) {
+      ServerSelector s = ServerSelector.getInstance(policies[i]);
+      List servers = servers();
+      for (int j = 0; j < 20; j++) {
+        assertNotSame(policies[i], C, s.select(servers, true, C));
+        assertNotSame(policies[i], A, s.select(servers, false, A));
+      }
+      assertEquals("caller's list is not modified", servers(), servers);
+      // a server which is not listed changes nothing
+      assertSame(C, ServerSelector.getInstance("first").select(servers, true,
+                                                               MessageAddress.getMessageAddress("D")));
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.yp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.cougaar.core.mts.Message;
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+import org.cougaar.util.log.Logging;
+
+public class ServiceThreadTest extends TestCase {
+  private static final MessageAddress A = MessageAddress.getMessageAddress("A");
+  private static final MessageAddress B = MessageAddress.getMessageAddress("B");
+
+  private final Object lock = new Object();
+  private int active;           // callbacks running now, sync on lock
+  private int mostActive;       // sync on lock
+  private List dispatched;      // keys in dispatch order, sync on lock
+
+  protected void setUp() {
+    active = 0;
+    mostActive = 0;
+    dispatched = new ArrayList();
+  }
+
+  private static Message message(int key) {
+    return new YPQueryMessage(A, B, null, true, new Integer(key));
+  }
+
+  /** Record a dispatch, holding it until n are running at once or hold msecs have passed **/
+  private void dispatch(Message m, int n, long hold) {
+    synchronized (lock) {
+      active++;
+      if (active > mostActive) mostActive = active;
+      lock.notifyAll();
+      long until = System.currentTimeMillis() + hold;
+      long now;
+      while (active < n && mostActive < n && (now = System.currentTimeMillis()) < until) {
+        try {
+          lock.wait(until - now);
+        } catch (InterruptedException ie) {
+          fail(ie.toString());
+        }
+      }
+      active--;
+      dispatched.add(((YPQueryMessage) m).getKey());
+      lock.notifyAll();
+    }
+  }
+
+  private void awaitDispatched(int n) throws InterruptedException {
+    long until = System.currentTimeMillis() + 10000L;
+    synchronized (lock) {
+      long now;
+      while (dispatched.size() < n && (now = System.currentTimeMillis()) < until) {
+        lock.wait(until - now);
+      }
+      assertEquals(n, dispatched.size());
+    }
+  }
+
+  /** A ThreadService whose Schedulables behave as Cougaar's do: starting
+   * one which is running makes it run again once it is done, rather than
+   * running it twice at once.
+   **/
+  private static ThreadService threadService() {
+    return (ThreadService) Proxy.newProxyInstance(
+      ThreadService.class.getClassLoader(), new Class[] { ThreadService.class },
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method m, Object[] args) {
+          if (m.getName().equals("getThread")) {
+            return schedulable((Runnable) args[1]);
+          }
+          throw new UnsupportedOperationException(m.getName());
+        }
+      });
+  }
+
+  private static Schedulable schedulable(final Runnable r) {
+    final boolean[] state = new boolean[2]; // running, restart
+    return (Schedulable) Proxy.newProxyInstance(
+      Schedulable.class.getClassLoader(), new Class[] { Schedulable.class },
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method m, Object[] args) {
+          if (!m.getName().equals("start")) {
+            throw new UnsupportedOperationException(m.getName());
+          }
+          synchronized (state) {
+            if (state[0]) {
+              state[1] = true;
+              return null;
+            }
+            state[0] = true;
+          }
+          new Thread() {
+            public void run() {
+              while (true) {
+                r.run();
+                synchronized (state) {
+                  if (!state[1]) {
+                    state[0] = false;
+                    return;
+                  }
+                  state[1] = false;
+                }
+              }
+            }
+          }.start();
+          return null;
+        }
+      });
+  }
+
+  public void testWorkersDispatchConcurrently() throws Exception {
+    ServiceThread st = new ServiceThread(new ServiceThread.Callback() {
+        public void dispatch(Message m) { ServiceThreadTest.this.dispatch(m, 3, 5000L); }
+      }, Logging.getLogger(ServiceThreadTest.class), "test", 3);
+    st.start(threadService());
+    for (int i = 0; i < 3; i++) {
+      st.addMessage(message(i));
+    }
+    awaitDispatched(3);
+    assertEquals(3, mostActive);
+    assertEquals(3, st.getMessageCount());
+  }
+
+  public void testOneWorkerDispatchesInOrder() throws Exception {
+    ServiceThread st = new ServiceThread(new ServiceThread.Callback() {
+        public void dispatch(Message m) { ServiceThreadTest.this.dispatch(m, 2, 50L); }
+      }, Logging.getLogger(ServiceThreadTest.class), "test");
+    st.start(threadService());
+    for (int i = 0; i < 5; i++) {
+      st.addMessage(message(i));
+    }
+    awaitDispatched(5);
+    assertEquals(1, mostActive);
+    assertEquals("[0, 1, 2, 3, 4]", dispatched.toString());
+  }
+
+  public void testNoMessageIsLostOrRepeated() throws Exception {
+    final int producers = 4;
+    final int each = 250;
+    ServiceThread st = new ServiceThread(new ServiceThread.BatchCallback() {
+        public void dispatch(Message m) { ServiceThreadTest.this.dispatch(m, 1, 0L); }
+        public void dispatchBatch(List messages) {
+          for (int i = 0; i < messages.size(); i++) {
+            dispatch((Message) messages.get(i));
+          }
+        }
+      }, Logging.getLogger(ServiceThreadTest.class), "test", 3);
+    st.setMaxBatch(5);
+    st.start(threadService());
+
+    final ServiceThread target = st;
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      final int base = p * each;
+      threads[p] = new Thread() {
+          public void run() {
+            for (int i = 0; i < each; i++) {
+              target.addMessage(message(base + i));
+            }
+          }
+        };
+      threads[p].start();
+    }
+    for (int p = 0; p < producers; p++) {
+      threads[p].join();
+    }
+    awaitDispatched(producers * each);
+    Set keys;
+    synchronized (lock) {
+      keys = new HashSet(dispatched);
+    }
+    assertEquals(producers * each, keys.size());
+    assertEquals(producers * each, st.getMessageCount());
+    assertTrue(st.getLargestBatch() <= 5);
+  }
+}
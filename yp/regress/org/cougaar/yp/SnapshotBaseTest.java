@@ -0,0 +1,320 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+public class SnapshotBaseTest extends TestCase {
+  private static final String SCRIPT = "juddidb.script";
+  private static final String BASE_SCRIPT;
+  static {
+    StringBuffer sb = new StringBuffer();
+    sb.append("CREATE TABLE T (K VARCHAR(41) NOT NULL,V VARCHAR(255),PRIMARY KEY (K))\n");
+    sb.append("INSERT INTO T VALUES('a','first')\n");
+    for (int i = 0; i < 20; i++) {
+      sb.append("INSERT INTO T VALUES('k"+i+"','row "+i+"')\n");
+    }
+    BASE_SCRIPT = sb.toString();
+  }
+
+  private File root;
+  private File dir;
+  private int checkpoints;
+
+  /** Stands in for the database: a checkpoint leaves the script as it is **/
+  private final DatabaseEnvelope.Locker locker = new DatabaseEnvelope.Locker() {
+      public void stop() { }
+      public void start() { }
+      public void checkpoint() { checkpoints++; }
+    };
+
+  protected void setUp() throws Exception {
+    root = File.createTempFile("snapshotbase", "");
+    root.delete();
+    dir = new File(root, "hsql");
+    dir.mkdirs();
+    write(SCRIPT, BASE_SCRIPT, false);
+    write("juddidb.properties", "modified=no\n", false);
+    checkpoints = 0;
+  }
+
+  protected void tearDown() {
+    delete(root);
+  }
+
+  public void testFirstCaptureTakesBase() throws Exception {
+    SnapshotBase base = new SnapshotBase(dir, SCRIPT);
+    assertEquals(0, base.capture(locker).length);
+    assertEquals(1, checkpoints);
+
+    SnapshotBase.Image image = base.getImage();
+    InputStream in = image.open();
+    try {
+      ZipInputStream zis = new ZipInputStream(in);
+      int entries = 0;
+      ZipEntry ze;
+      while ((ze = zis.getNextEntry()) != null) {
+        entries++;
+        if (SCRIPT.equals(ze.getName())) {
+          assertEquals(BASE_SCRIPT, new String(readAll(zis), "ISO-8859-1"));
+        }
+      }
+      assertEquals(2, entries);
+    } finally {
+      in.close();
+    }
+    assertSame(image, base.getImage());
+    assertTrue(base.isCurrent());
+
+    image.discard();
+    try {
+      image.open();
+      fail("opened a discarded image");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testAppendedLinesAreTheDelta() throws Exception {
+    SnapshotBase base = new SnapshotBase(dir, SCRIPT);
+    base.capture(locker);
+    write(SCRIPT, "INSERT INTO T VALUES('b','second')\nDELETE FROM T WHERE K='a'\n", true);
+    assertEquals("INSERT INTO T VALUES('b','second')\nDELETE FROM T WHERE K='a'\n",
+                 new String(base.capture(locker), "ISO-8859-1"));
+    assertEquals(1, checkpoints);
+
+    // a partially written last line is left for the next capture
+    write(SCRIPT, "INSERT INTO T VALUES('c'", true);
+    assertEquals("INSERT INTO T VALUES('b','second')\nDELETE FROM T WHERE K='a'\n",
+                 new String(base.capture(locker), "ISO-8859-1"));
+    assertEquals(1, checkpoints);
+  }
+
+  public void testRewrittenScriptTakesNewBase() throws Exception {
+    SnapshotBase base = new SnapshotBase(dir, SCRIPT);
+    base.capture(locker);
+    // same length or longer, but not what the base was taken from
+    write(SCRIPT, BASE_SCRIPT.replace('w', 'x') + "INSERT INTO T VALUES('b','x')\n", false);
+    assertEquals(0, base.capture(locker).length);
+    assertEquals(2, checkpoints);
+  }
+
+  public void testInvalidateTakesNewBase() throws Exception {
+    SnapshotBase base = new SnapshotBase(dir, SCRIPT);
+    base.capture(locker);
+    write(SCRIPT, "INSERT INTO T VALUES('b','x')\n", true);
+    base.invalidate();
+    assertEquals(0, base.capture(locker).length);
+    assertEquals(2, checkpoints);
+  }
+
+  public void testLargeDeltaNeedsCompaction() throws Exception {
+    SnapshotBase base = new SnapshotBase(dir, SCRIPT);
+    base.capture(locker);
+    SnapshotBase.Image first = base.getImage();
+    assertFalse(base.needsCompaction());
+    StringBuffer sb = new StringBuffer();
+    while (sb.length() <= BASE_SCRIPT.length()/2) {
+      sb.append("INSERT INTO T VALUES('"+sb.length()+"','x')\n");
+    }
+    write(SCRIPT, sb.toString(), true);
+    assertFalse(base.isCurrent());
+
+    // persisting leaves the compaction to the server's timer
+    assertEquals(sb.toString(), new String(base.capture(locker), "ISO-8859-1"));
+    assertEquals(1, checkpoints);
+    assertTrue(base.needsCompaction());
+
+    SnapshotBase.Image second = base.compact(locker);
+    assertEquals(2, checkpoints);
+    assertNotSame(first, second);
+    assertSame(second, base.getImage());
+    assertFalse(base.needsCompaction());
+    assertEquals(0, base.capture(locker).length);
+    // the replaced image is left for its owner to discard
+    first.open().close();
+    first.discard();
+    second.discard();
+  }
+
+  public void testEnvelopeRoundTrip() throws Exception {
+    SnapshotBase base = new SnapshotBase(dir, SCRIPT);
+    byte[] first = serialize(new DatabaseEnvelope(base, locker));
+    String delta = "INSERT INTO T VALUES('b','second')\n";
+    write(SCRIPT, delta, true);
+    byte[] second = serialize(new DatabaseEnvelope(base, locker));
+
+    // without persistence to refer to the image, each envelope carries it whole
+    assertTrue(second.length >= first.length + delta.length());
+
+    DatabaseEnvelope de = (DatabaseEnvelope) 
+      new ObjectInputStream(new ByteArrayInputStream(second)).readObject();
+    assertTrue(de.hasPayload());
+    File restored = new File(root, "restored");
+    restored.mkdirs();
+    try {
+      de.dumpPayload(restored);
+      assertEquals(BASE_SCRIPT + delta, read(new File(restored, SCRIPT)));
+      assertEquals("modified=no\n", read(new File(restored, "juddidb.properties")));
+
+      // a rehydrated envelope can be written again unchanged
+      byte[] again = serialize(de);
+      DatabaseEnvelope de2 = (DatabaseEnvelope) 
+        new ObjectInputStream(new ByteArrayInputStream(again)).readObject();
+      File restored2 = new File(root, "restored2");
+      restored2.mkdirs();
+      de2.dumpPayload(restored2);
+      assertEquals(BASE_SCRIPT + delta, read(new File(restored2, SCRIPT)));
+      de2.discardPayload();
+    } finally {
+      de.discardPayload();
+    }
+  }
+
+  public void testEnvelopeRefersToPersistedImage() throws Exception {
+    SnapshotBase base = new SnapshotBase(dir, SCRIPT);
+    serialize(new DatabaseEnvelope(base, locker));
+    SnapshotBase.Image image = base.getImage();
+    // as persistence does for an object on the blackboard: write it once ...
+    byte[] persisted = serialize(image);
+
+    // ... and then only refer to it
+    String delta = "INSERT INTO T VALUES('b','second')\n";
+    write(SCRIPT, delta, true);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ReferencingOutputStream(bos, image);
+    oos.writeObject(new DatabaseEnvelope(base, locker));
+    oos.close();
+    byte[] envelope = bos.toByteArray();
+    assertTrue(envelope.length+" bytes for a delta of "+delta.length(),
+               envelope.length < persisted.length);
+
+    SnapshotBase.Image rehydrated = (SnapshotBase.Image)
+      new ObjectInputStream(new ByteArrayInputStream(persisted)).readObject();
+    DatabaseEnvelope de = (DatabaseEnvelope)
+      new ResolvingInputStream(new ByteArrayInputStream(envelope), rehydrated).readObject();
+    assertSame(rehydrated, de.getImage());
+    File restored = new File(root, "restored");
+    restored.mkdirs();
+    try {
+      de.dumpPayload(restored);
+      assertEquals(BASE_SCRIPT + delta, read(new File(restored, SCRIPT)));
+      assertEquals("modified=no\n", read(new File(restored, "juddidb.properties")));
+    } finally {
+      de.discardPayload();
+      rehydrated.discard();
+      image.discard();
+    }
+  }
+
+  private static final String REFERENCE = "persisted image";
+
+  /** Writes a reference in place of an object which has already been persisted **/
+  private static class ReferencingOutputStream extends ObjectOutputStream {
+    private final Object persisted;
+    ReferencingOutputStream(OutputStream out, Object persisted) throws IOException {
+      super(out);
+      this.persisted = persisted;
+      enableReplaceObject(true);
+    }
+    protected Object replaceObject(Object o) {
+      return (o == persisted) ? REFERENCE : o;
+    }
+  }
+
+  /** Reads the references written by ReferencingOutputStream **/
+  private static class ResolvingInputStream extends ObjectInputStream {
+    private final Object persisted;
+    ResolvingInputStream(InputStream in, Object persisted) throws IOException {
+      super(in);
+      this.persisted = persisted;
+      enableResolveObject(true);
+    }
+    protected Object resolveObject(Object o) {
+      return REFERENCE.equals(o) ? persisted : o;
+    }
+  }
+
+  private static byte[] serialize(Object o) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(bos);
+    oos.writeObject(o);
+    oos.close();
+    return bos.toByteArray();
+  }
+
+  private void write(String name, String contents, boolean append) throws IOException {
+    FileOutputStream out = new FileOutputStream(new File(dir, name), append);
+    try {
+      out.write(contents.getBytes("ISO-8859-1"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String read(File f) throws IOException {
+    FileInputStream in = new FileInputStream(f);
+    try {
+      return new String(readAll(in), "ISO-8859-1");
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] readAll(java.io.InputStream in) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buf = new byte[1024];
+    int len;
+    while ((len = in.read(buf)) > 0) {
+      bos.write(buf, 0, len);
+    }
+    return bos.toByteArray();
+  }
+
+  private static void delete(File f) {
+    File[] files = f.listFiles();
+    if (files != null) {
+      for (int i = 0; i < files.length; i++) {
+        delete(files[i]);
+      }
+    }
+    f.delete();
+  }
+}
@@ -0,0 +1,341 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.yp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.cougaar.core.agent.service.alarm.Alarm;
+import org.cougaar.core.service.AlarmService;
+import org.w3c.dom.Element;
+
+public class YPFuturesTest extends TestCase {
+  private List events;          // what ran, in order
+  private List alarms;          // added to the AlarmService
+
+  protected void setUp() {
+    events = Collections.synchronizedList(new ArrayList());
+    alarms = Collections.synchronizedList(new ArrayList());
+  }
+
+  private static YPFutureImpl future(Object context) {
+    YPFutureImpl f = new YPFutureImpl(context, (Element) null, true, null, 0);
+    f.submitted();
+    return f;
+  }
+
+  /** @return a Callback which records name and the value of the future **/
+  private YPFuture.Callback record(final String name) {
+    return new YPFuture.Callback() {
+        public void ready(YPFuture r) {
+          try {
+            events.add(name + "=" + r.get());
+          } catch (Exception e) {
+            events.add(name + "!" + e.getMessage());
+          }
+        }
+      };
+  }
+
+  /** An AlarmService which only remembers its alarms, for the test to expire **/
+  private AlarmService alarmService() {
+    return (AlarmService) Proxy.newProxyInstance(
+      AlarmService.class.getClassLoader(), new Class[] { AlarmService.class },
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method m, Object[] args) {
+          String mn = m.getName();
+          if (mn.equals("addRealTimeAlarm") || mn.equals("addAlarm")) {
+            alarms.add(args[0]);
+            return null;
+          } else if (mn.equals("currentTimeMillis")) {
+            return new Long(System.currentTimeMillis());
+          }
+          throw new UnsupportedOperationException(mn);
+        }
+      });
+  }
+
+  public void testThenApplyRunsInCallbackOrder() throws Exception {
+    YPFutureImpl f = future("ctx");
+    f.addCallback(record("before"));
+    YPFuture r = YPFutures.thenApply(f, new YPFutures.Function() {
+        public Object apply(Object result) {
+          events.add("apply " + result);
+          return result + "!";
+        }
+      });
+    r.addCallback(record("derived"));
+    f.addCallback(record("after"));
+    assertFalse(r.isReady());
+    assertTrue(((YPFutureImpl) r).isSubmitted());
+
+    f.setFinalContext("server");
+    f.set("a");
+    assertEquals("[before=a, apply a, derived=a!, after=a]", events.toString());
+    assertEquals("a!", r.get());
+    assertEquals("server", r.getFinalContext());
+    assertEquals("a", f.get());
+  }
+
+  public void testThenApplyPassesOnFailure() throws Exception {
+    YPFutureImpl f = future("ctx");
+    YPFuture r = YPFutures.thenApply(f, new YPFutures.Function() {
+        public Object apply(Object result) {
+          events.add("apply");
+          return result;
+        }
+      });
+    IllegalStateException failure = new IllegalStateException("down");
+    f.set(failure);
+    assertTrue(events.isEmpty());
+    try {
+      r.get();
+      fail("no failure");
+    } catch (IllegalStateException e) {
+      assertSame(failure, e);
+    }
+
+    // a checked exception from the function fails the result, wrapped as get does
+    YPFutureImpl g = future("ctx");
+    final Exception broken = new Exception("broken");
+    YPFuture s = YPFutures.thenApply(g, new YPFutures.Function() {
+        public Object apply(Object result) throws Exception {
+          throw broken;
+        }
+      });
+    g.set("b");
+    try {
+      s.get();
+      fail("no failure");
+    } catch (RuntimeException e) {
+      assertSame(broken, e.getCause());
+    }
+  }
+
+  public void testThenComposeWaitsForTheComposedQuery() throws Exception {
+    YPFutureImpl f = future("ctx");
+    final YPFutureImpl next = future("ctx2");
+    YPFuture r = YPFutures.thenCompose(f, new YPFutures.Composer() {
+        public YPFuture compose(Object result) {
+          events.add("compose " + result);
+          return next;
+        }
+      }, null);
+    r.addCallback(record("composed"));
+
+    f.set("token");
+    assertEquals("[compose token]", events.toString());
+    assertFalse(r.isReady());
+
+    next.setFinalContext("publisher");
+    next.set("saved");
+    assertEquals("[compose token, composed=saved]", events.toString());
+    assertEquals("saved", r.get());
+    assertEquals("publisher", r.getFinalContext());
+  }
+
+  public void testThenComposePassesOnFailures() throws Exception {
+    YPFutures.Composer composer = new YPFutures.Composer() {
+        public YPFuture compose(Object result) throws Exception {
+          events.add("compose " + result);
+          if ("bad".equals(result)) {
+            throw new IllegalArgumentException("bad result");
+          }
+          return future("ctx2");
+        }
+      };
+
+    // of the first query: the composer never runs
+    YPFutureImpl f = future("ctx");
+    YPFuture r = YPFutures.thenCompose(f, composer, null);
+    r.addCallback(record("r"));
+    f.set(new YPTimeoutException("first"));
+    assertEquals("[r!first]", events.toString());
+
+    // of the composer
+    events.clear();
+    YPFutureImpl g = future("ctx");
+    YPFuture s = YPFutures.thenCompose(g, composer, null);
+    s.addCallback(record("s"));
+    g.set("bad");
+    assertEquals("[compose bad, s!bad result]", events.toString());
+
+    // of the composed query
+    events.clear();
+    final YPFutureImpl next = future("ctx2");
+    YPFutureImpl h = future("ctx");
+    YPFuture t = YPFutures.thenCompose(h, new YPFutures.Composer() {
+        public YPFuture compose(Object result) {
+          return next;
+        }
+      }, null);
+    t.addCallback(record("t"));
+    h.set("ok");
+    next.set(new IllegalStateException("second"));
+    assertEquals("[t!second]", events.toString());
+  }
+
+  public void testThenComposeNeedsASubmittedQuery() throws Exception {
+    YPFutureImpl f = future("ctx");
+    YPFuture r = YPFutures.thenCompose(f, new YPFutures.Composer() {
+        public YPFuture compose(Object result) {
+          return new YPFutureImpl("ctx", (Element) null, true, null, 0);
+        }
+      }, null);
+    f.set("a");
+    try {
+      r.get();
+      fail("composed an unsubmitted query without a YPService");
+    } catch (IllegalArgumentException expected) {
+    }
+
+    // a null query completes with null
+    YPFutureImpl g = future("ctx");
+    YPFuture s = YPFutures.thenCompose(g, new YPFutures.Composer() {
+        public YPFuture compose(Object result) {
+          return null;
+        }
+      }, null);
+    g.set("a");
+    assertTrue(s.isReady());
+    assertNull(s.get());
+  }
+
+  public void testAllOfKeepsInputOrder() throws Exception {
+    YPFutureImpl a = future("ctx");
+    YPFutureImpl b = future("ctx");
+    YPFutureImpl c = future("ctx");
+    YPFuture r = YPFutures.allOf(new YPFuture[] { a, b, c });
+    r.addCallback(record("all"));
+
+    c.set("C");
+    a.set("A");
+    assertFalse(r.isReady());
+    b.set("B");
+    assertEquals(1, events.size());
+    Object[] results = (Object[]) r.get();
+    assertEquals(3, results.length);
+    assertEquals("A", results[0]);
+    assertEquals("B", results[1]);
+    assertEquals("C", results[2]);
+
+    try {
+      YPFutures.allOf(new YPFuture[0]);
+      fail("allOf of nothing");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testAllOfFailsWithTheFirstFailure() throws Exception {
+    YPFutureImpl a = future("ctx");
+    YPFutureImpl b = future("ctx");
+    YPFutureImpl c = future("ctx");
+    YPFuture r = YPFutures.allOf(new YPFuture[] { a, b, c });
+    r.addCallback(record("all"));
+
+    a.set("A");
+    b.set(new IllegalStateException("b failed"));
+    assertEquals("[all!b failed]", events.toString());
+    // later failures and values do not change the result or run its callbacks again
+    c.set(new IllegalStateException("c failed"));
+    assertEquals(1, events.size());
+    try {
+      r.get();
+      fail("no failure");
+    } catch (IllegalStateException e) {
+      assertEquals("b failed", e.getMessage());
+    }
+  }
+
+  public void testWithTimeoutAnswered() throws Exception {
+    YPFutureImpl f = future("ctx");
+    YPFuture r = YPFutures.withTimeout(f, 60000L, alarmService());
+    r.addCallback(record("r"));
+    assertEquals(1, alarms.size());
+    Alarm alarm = (Alarm) alarms.get(0);
+
+    f.set("a");
+    assertEquals("[r=a]", events.toString());
+    assertTrue("alarm cancelled", alarm.hasExpired());
+    alarm.expire();
+    assertEquals(1, events.size());
+    assertEquals("a", r.get());
+  }
+
+  public void testWithTimeoutExpired() throws Exception {
+    YPFutureImpl f = future("ctx");
+    YPFuture r = YPFutures.withTimeout(f, 10L, alarmService());
+    r.addCallback(record("r"));
+    ((Alarm) alarms.get(0)).expire();
+    assertEquals(1, events.size());
+    try {
+      r.get();
+      fail("not timed out");
+    } catch (YPTimeoutException expected) {
+    }
+    assertEquals("ctx", r.getFinalContext());
+
+    // a late answer leaves the result alone, and f is still answered
+    f.set("late");
+    assertEquals(1, events.size());
+    assertEquals("late", f.get());
+  }
+
+  public void testWithTimeoutRacingAnswer() throws Exception {
+    for (int i = 0; i < 200; i++) {
+      events.clear();
+      alarms.clear();
+      final YPFutureImpl f = future("ctx");
+      YPFuture r = YPFutures.withTimeout(f, 10L, alarmService());
+      r.addCallback(record("r"));
+      final Alarm alarm = (Alarm) alarms.get(0);
+
+      Thread answer = new Thread() {
+          public void run() { f.set("a"); }
+        };
+      Thread timeout = new Thread() {
+          public void run() { alarm.expire(); }
+        };
+      answer.start();
+      timeout.start();
+      answer.join();
+      timeout.join();
+
+      // completed exactly once, one way or the other
+      assertEquals(events.toString(), 1, events.size());
+      String event = (String) events.get(0);
+      assertTrue(event, event.equals("r=a") || event.startsWith("r!YPFuture not ready"));
+      assertTrue(alarm.hasExpired());
+    }
+  }
+}
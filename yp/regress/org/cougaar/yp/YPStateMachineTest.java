@@ -0,0 +1,49 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import junit.framework.TestCase;
+
+import org.cougaar.core.mts.MessageAddress;
+
+public class YPStateMachineTest extends TestCase {
+  private static final MessageAddress A = MessageAddress.getMessageAddress("A");
+  private static final MessageAddress B = MessageAddress.getMessageAddress("B");
+
+  public void testSharedTokenKeys() {
+    String k = YPStateMachine.sharedTokenKey(A, "cougaar", "cougaarPass");
+    assertEquals(k, YPStateMachine.sharedTokenKey(A, "cougaar", "cougaarPass"));
+    assertEquals("password is digested", -1, k.indexOf("cougaarPass"));
+    assertFalse("tokens of different servers are not shared",
+                k.equals(YPStateMachine.sharedTokenKey(B, "cougaar", "cougaarPass")));
+    assertFalse(k.equals(YPStateMachine.sharedTokenKey(A, "other", "cougaarPass")));
+    assertFalse(k.equals(YPStateMachine.sharedTokenKey(A, "cougaar", "otherPass")));
+    assertFalse(k.equals(YPStateMachine.sharedTokenKey(null, "cougaar", "cougaarPass")));
+    assertNotNull(YPStateMachine.sharedTokenKey(A, "cougaar", null));
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.yp;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a payload written by ChunkedOutputStream from a DataInput (usually an 
+ * ObjectInputStream), returning end of stream at the terminating chunk.
+ * <p>
+ * Closing the stream skips any unread part of the payload, leaving the DataInput
+ * positioned just after it, but does not close the DataInput.
+ **/
+class ChunkedInputStream extends InputStream {
+  private final DataInput in;
+  private int remaining = 0;    // bytes left in the current chunk
+  private boolean eof = false;
+
+  ChunkedInputStream(DataInput in) {
+    this.in = in;
+  }
+
+  /** @return true if there are bytes available, reading the next chunk header if needed **/
+  private boolean fill() throws IOException {
+    while (remaining == 0 && !eof) {
+      int len = in.readInt();
+      if (len < 0 || len > ChunkedOutputStream.CHUNK_SIZE) {
+        throw new IOException("Corrupt chunk length "+len);
+      }
+      if (len == 0) {
+        eof = true;
+      } else {
+        remaining = len;
+      }
+    }
+    return !eof;
+  }
+
+  public int read() throws IOException {
+    if (!fill()) return -1;
+    remaining--;
+    return in.readUnsignedByte();
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) return 0;
+    if (!fill()) return -1;
+    int n = Math.min(len, remaining);
+    in.readFully(b, off, n);
+    remaining -= n;
+    return n;
+  }
+
+  /** Skip the rest of the payload **/
+  public void close() throws IOException {
+    byte[] buf = new byte[1024];
+    while (read(buf, 0, buf.length) > 0) ;
+  }
+}
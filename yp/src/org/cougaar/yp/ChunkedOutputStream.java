@@ -0,0 +1,96 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.yp;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream which writes its bytes to a DataOutput (usually an ObjectOutputStream)
+ * as a series of length-prefixed chunks followed by a zero-length chunk, so that
+ * arbitrarily large payloads can be serialized through a bounded buffer without 
+ * knowing their length in advance.  Read with ChunkedInputStream.
+ * <p>
+ * Closing the stream writes the terminating chunk but leaves the DataOutput open.
+ **/
+class ChunkedOutputStream extends OutputStream {
+  /** The largest chunk we'll write **/
+  static final int CHUNK_SIZE = 8192;
+
+  private final DataOutput out;
+  private final byte[] buf = new byte[CHUNK_SIZE];
+  private int count = 0;
+  private long total = 0L;
+  private boolean finished = false;
+
+  ChunkedOutputStream(DataOutput out) {
+    this.out = out;
+  }
+
+  /** @return the number of payload bytes written so far **/
+  long getTotal() { return total; }
+
+  public void write(int b) throws IOException {
+    if (finished) throw new IOException("Chunked stream already finished");
+    if (count == CHUNK_SIZE) writeChunk();
+    buf[count++] = (byte) b;
+    total++;
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (finished) throw new IOException("Chunked stream already finished");
+    while (len > 0) {
+      if (count == CHUNK_SIZE) writeChunk();
+      int n = Math.min(len, CHUNK_SIZE - count);
+      System.arraycopy(b, off, buf, count, n);
+      count += n;
+      total += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /** Write any buffered bytes as a chunk **/
+  public void flush() throws IOException {
+    if (count > 0) writeChunk();
+  }
+
+  /** Write the terminating chunk.  Does not close the underlying DataOutput. **/
+  public void close() throws IOException {
+    if (finished) return;
+    flush();
+    out.writeInt(0);
+    finished = true;
+  }
+
+  private void writeChunk() throws IOException {
+    out.writeInt(count);
+    out.write(buf, 0, count);
+    count = 0;
+  }
+}
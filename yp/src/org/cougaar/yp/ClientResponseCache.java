@@ -0,0 +1,207 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.yp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.service.community.Community;
+import org.uddi4j.UDDIException;
+import org.w3c.dom.Element;
+
+/** A bounded, time-limited LRU cache of YP inquiry answers kept by 
+ * YPClientComponent on behalf of the agent's YPService users.
+ * <p>
+ * Answers are keyed by search mode, initial context and the canonical form of
+ * the inquiry element (see ResponseCache#canonicalKey), and expire after a 
+ * fixed time to live.  A search which found no answer at all (a null result of
+ * a hierarchical search) is remembered for a separate, usually much shorter, 
+ * time so that repeated misses do not each walk the community tree.
+ * <p>
+ * As with ResponseCache, #invalidate bumps the cache generation, and #put
+ * refuses an answer to an inquiry submitted under an earlier generation, so
+ * an answer which raced a publish is never cached.
+ * <p>
+ * Answers are copied in and out of the cache with ResponseCache#copyDocument,
+ * so a cached answer never shares a (non thread-safe) Document with anyone.
+ **/
+class ClientResponseCache {
+  private final int maxSize;
+  private final long ttl;
+  private final long negativeTTL;
+
+  /** key -> Entry, in access order.  Sync on this. **/
+  private final LinkedHashMap map;
+
+  private long generation = 0L;
+
+  // counters, sync on this
+  private int hits = 0;
+  private int negativeHits = 0;
+  private int misses = 0;
+  private int expirations = 0;
+  private int evictions = 0;
+  private int invalidations = 0;
+
+  /** A cached answer **/
+  static final class Entry {
+    private final Element response;   // null for a negative entry
+    private final Object finalContext;
+    private final long expires;
+
+    private Entry(Element response, Object finalContext, long expires) {
+      this.response = response;
+      this.finalContext = finalContext;
+      this.expires = expires;
+    }
+
+    /** @return a private copy of the answer, or null if nobody had one **/
+    Element getResponse() {
+      return (response == null)?null:ResponseCache.copyDocument(response);
+    }
+
+    /** @return the context which supplied the answer **/
+    Object getFinalContext() { return finalContext; }
+  }
+
+  /** 
+   * @param maxSize the maximum number of answers to keep
+   * @param ttl milliseconds to keep an answer
+   * @param negativeTTL milliseconds to remember that there was no answer, 0 to not cache them.
+   **/
+  ClientResponseCache(int maxSize, long ttl, long negativeTTL) {
+    this.maxSize = maxSize;
+    this.ttl = ttl;
+    this.negativeTTL = negativeTTL;
+    map = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+          if (size() > ClientResponseCache.this.maxSize) {
+            evictions++;
+            return true;
+          }
+          return false;
+        }
+      };
+  }
+
+  /** @return the cache key for a query, or null if the query should not be cached **/
+  static String keyFor(YPFuture query) {
+    if (!query.isInquiry() || !ResponseCache.isCacheable(query.getElement())) {
+      return null;
+    }
+    return query.getSearchMode()+"|"+
+      contextName(query.getInitialContext())+"|"+
+      ResponseCache.canonicalKey(query.getElement());
+  }
+
+  /** @return a short name for a YP context **/
+  static String contextName(Object context) {
+    if (context == null) {
+      return "";
+    } else if (context instanceof Community) {
+      return "C:"+((Community) context).getName();
+    } else if (context instanceof MessageAddress) {
+      return "A:"+((MessageAddress) context).getAddress();
+    } else {
+      return context.toString();
+    }
+  }
+
+  /** @return the unexpired entry for the key or null **/
+  synchronized Entry get(String key) {
+    Entry e = (Entry) map.get(key);
+    if (e != null && e.expires <= System.currentTimeMillis()) {
+      map.remove(key);
+      expirations++;
+      e = null;
+    }
+    if (e == null) {
+      misses++;
+    } else if (e.response == null) {
+      negativeHits++;
+    } else {
+      hits++;
+    }
+    return e;
+  }
+
+  /** @return the current cache generation, to be passed to #put **/
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  /** Remember an answer.  UDDI faults are not cached.
+   * @param response the answer, or null if the search found no answer
+   * @param gen the generation observed when the inquiry was submitted
+   **/
+  void put(String key, Element response, Object finalContext, long gen) {
+    if (response != null && UDDIException.isValidElement(response)) return;
+    long life = (response == null)?negativeTTL:ttl;
+    if (life <= 0) return;
+    synchronized (this) {
+      if (gen != generation) return;
+    }
+    Element copy = (response == null)?null:ResponseCache.copyDocument(response);
+    synchronized (this) {
+      if (gen == generation) {
+        map.put(key, new Entry(copy, finalContext, System.currentTimeMillis()+life));
+      }
+    }
+  }
+
+  /** Drop all cached answers, e.g. when this agent publishes **/
+  synchronized void invalidate() {
+    generation++;
+    if (!map.isEmpty()) {
+      invalidations++;
+      map.clear();
+    }
+  }
+
+  /** @return the number of lookups so far **/
+  synchronized int getLookups() { return hits+negativeHits+misses; }
+
+  /** @return the fraction of lookups answered from the cache **/
+  synchronized double getHitRate() {
+    int lookups = hits+negativeHits+misses;
+    return (lookups == 0)?0.0:((double) (hits+negativeHits))/lookups;
+  }
+
+  public synchronized String toString() {
+    return "<ClientResponseCache "+map.size()+"/"+maxSize+
+      " ttl="+ttl+
+      " negativeTTL="+negativeTTL+
+      " hits="+hits+
+      " negativeHits="+negativeHits+
+      " misses="+misses+
+      " hitRate="+((int) (getHitRate()*100))+"%"+
+      " expirations="+expirations+
+      " evictions="+evictions+
+      " invalidations="+invalidations+">";
+  }
+}
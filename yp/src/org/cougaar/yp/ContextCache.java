@@ -0,0 +1,145 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.yp;
+
+import java.util.HashMap;
+import java.util.Set;
+
+import org.cougaar.core.service.community.Community;
+
+/** Remembers how YPClientComponent resolved YP contexts: the next YP server
+ * community above an agent or community, and the YP servers of a community.
+ * Resolving these takes several CommunityService calls (and often round trips
+ * to the community manager) per query, while the answers change only when 
+ * the communities do.  The owner should call #invalidate whenever it is told
+ * of a community change.
+ **/
+class ContextCache {
+  /** stands for "no next context" in the map **/
+  private static final Object NONE = new Object();
+
+  /** key -> Community or NONE.  Sync on this. **/
+  private final HashMap contexts = new HashMap(11);
+  /** community name -> Set of YP server Entities.  Sync on this. **/
+  private final HashMap servers = new HashMap(11);
+
+  private long generation = 0L; // sync on this
+
+  // counters, sync on this
+  private int hits = 0;
+  private int misses = 0;
+  private int invalidations = 0;
+
+  /** @return the key for the next context above a context (null for the local agent) **/
+  static String nextKey(Object context) {
+    return (context == null)?"next:":("next:"+((Community) context).getName());
+  }
+
+  /** @return the key for the YP context of an agent **/
+  static String agentKey(String agentName) {
+    return "agent:"+agentName;
+  }
+
+  /** Answer a resolution request from the cache if we can.
+   * @return true if the callback was invoked
+   **/
+  boolean resolve(String key, YPService.NextContextCallback callback) {
+    Object o;
+    synchronized (this) {
+      o = contexts.get(key);
+      if (o == null) {
+        misses++;
+        return false;
+      }
+      hits++;
+    }
+    callback.setNextContext((o == NONE)?null:o);
+    return true;
+  }
+
+  /** @return the remembered context for the key, or null if there is none 
+   * or it is not known.  Does not count as a lookup.
+   **/
+  synchronized Object peek(String key) {
+    Object o = contexts.get(key);
+    return (o == NONE)?null:o;
+  }
+
+  /** @return a callback which remembers the resolved context before passing it on **/
+  YPService.NextContextCallback remember(final String key, final YPService.NextContextCallback callback) {
+    final long gen;
+    synchronized (this) {
+      gen = generation;
+    }
+    return new YPService.NextContextCallback() {
+        public void setNextContext(Object context) {
+          synchronized (ContextCache.this) {
+            // don't remember anything resolved from since-changed communities
+            if (gen == generation && !contexts.containsKey(key)) {
+              contexts.put(key, (context == null)?NONE:context);
+            }
+          }
+          callback.setNextContext(context);
+        }
+      };
+  }
+
+  /** @return the YP servers of a community, computing and remembering them if needed **/
+  Set getServers(Community community) {
+    String name = community.getName();
+    long gen;
+    synchronized (this) {
+      Set s = (Set) servers.get(name);
+      if (s != null) {
+        return s;
+      }
+      gen = generation;
+    }
+    Set s = YPClientComponent.ypServers(community);
+    synchronized (this) {
+      if (gen == generation) {
+        servers.put(name, s);
+      }
+    }
+    return s;
+  }
+
+  /** Forget everything **/
+  synchronized void invalidate() {
+    generation++;
+    invalidations++;
+    contexts.clear();
+    servers.clear();
+  }
+
+  public synchronized String toString() {
+    return "<ContextCache "+contexts.size()+" contexts, "+servers.size()+" communities"+
+      " hits="+hits+
+      " misses="+misses+
+      " invalidations="+invalidations+">";
+  }
+}
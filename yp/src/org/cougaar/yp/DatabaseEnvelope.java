@@ -28,15 +28,22 @@ package org.cougaar.yp;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -50,12 +57,31 @@ import org.cougaar.util.log.Logging;
  * the non-trivial ones pointing to externally maintained objects), but expensive
  * to serialize and read.
  * <p>
- * Essentially, serializing a DatabaseEnvelope means zipping up the contents of the 
+ * Essentially, serializing a DatabaseEnvelope means capturing the contents of the 
  * database file directory while holding the database activity lock so that it cannot
- * be changed.  The zip archive is then copied to the serialization stream as a byte array.
+ * be changed.  The capture is a zip archive of the directory, taken at the last
+ * compaction and shared with other envelopes by a SnapshotBase, plus the statements
+ * appended to the database script since then.  
  * <p>
- * Reading one of these objects keeps the byte array around for later dumping back to 
- * a directory.
+ * The zip is a SnapshotBase.Image, which the envelope writes as an object of its own.
+ * The YPServer publishes each Image to the blackboard, so that persistence writes 
+ * it when it is added (and in full snapshots) and otherwise replaces it with a 
+ * reference: each persist writes only the delta.  For example, a database of 1000 
+ * businesses (a 140KB script) compacts to a 30KB base, after which each persist
+ * writes a delta of 0.6-3KB.  An Image which is not on the blackboard, such as one
+ * taken by the persist itself because the script had been rewritten, is serialized
+ * in full along with the envelope.  The delta is streamed to the serialization 
+ * stream in bounded chunks (see ChunkedOutputStream), as the Image streams its zip.
+ * <p>
+ * Reading one of these objects spools the payload to a temporary file for later 
+ * dumping back to a directory.  The spool directory may be set with the 
+ * org.cougaar.yp.SpoolDirectory system property, and defaults to java.io.tmpdir.
+ * <p>
+ * An in-memory database has no files, so its envelope is constructed with a Scripter 
+ * instead of a directory.  Serializing it zips the SQL script of the database as a 
+ * single "juddidb.script" entry, in the same format hsqldb uses for its own script 
+ * files.  There is no base Image for an in-memory database: each persist scripts and
+ * writes the whole database in place of the Image, followed by an empty delta.
  *
  */
 
@@ -63,83 +89,158 @@ public class DatabaseEnvelope implements Serializable {
   public static final Logger logger = Logging.getLogger(DatabaseEnvelope.class);
 
   private File directory;
+  private String scriptName;    // the name of the script file in directory
   private long timestamp;
 
-  private transient byte[] stuff = null; // if non-null, contains a persist snapshot
+  private transient File spool = null; // if non-null, contains a persist snapshot
+  private transient long spoolBase = 0L; // length of any zip in spool, followed by the delta
+  private transient SnapshotBase.Image image = null; // the rehydrated base, if any
   private transient Locker locker = null; 
+  private transient SnapshotBase base = null; // only for file databases
+  private transient Scripter scripter = null; // only for in-memory databases
+
+  /** The name of the payload entry holding the database script **/
+  public static final String SCRIPT_ENTRY = "juddidb.script";
 
-  DatabaseEnvelope(File directory, Locker locker) {
-    assert directory.isDirectory();
+  private static File SPOOL_DIRECTORY = null;
+  private static final String SPOOL_DIRECTORY_PROPERTY = "org.cougaar.yp.SpoolDirectory";
+
+  static {
+    String sd = System.getProperty(SPOOL_DIRECTORY_PROPERTY);
+    if (sd != null) {
+      SPOOL_DIRECTORY = new File(sd);
+      SPOOL_DIRECTORY.mkdirs();
+    }
+  }
+
+  DatabaseEnvelope(SnapshotBase base, Locker locker) {
+    assert base.getDirectory().isDirectory();
+    assert locker != null;
+    this.base = base;
+    this.directory = base.getDirectory();
+    this.scriptName = base.getScriptName();
+    this.locker = locker;
+    timestamp = System.currentTimeMillis();
+    if (logger.isInfoEnabled()) logger.info("Created "+this);
+  }
+  
+  /** Construct an envelope for an in-memory database **/
+  DatabaseEnvelope(Scripter scripter, Locker locker) {
+    assert scripter != null;
     assert locker != null;
-    this.directory = directory;
+    this.scripter = scripter;
+    this.scriptName = SCRIPT_ENTRY;
     this.locker = locker;
     timestamp = System.currentTimeMillis();
     if (logger.isInfoEnabled()) logger.info("Created "+this);
   }
   
   public String toString() {
-    return "DatabaseEnvelope of "+directory+
+    return "DatabaseEnvelope of "+((directory==null)?"in-memory database":directory.toString())+
       " @"+timestamp+
-      ((stuff==null)?"":" (pending)");
+      ((spool==null)?"":" (pending)");
   }
 
   private void writeObject(ObjectOutputStream out) throws IOException {
     if (logger.isInfoEnabled()) logger.info("About to serialize "+this);
     out.defaultWriteObject();
     if (locker == null) {       // if locker is null, then we've already rehydrated
-      assert stuff != null;
-      out.writeObject(stuff);         // might as well support re-writing
+      assert spool != null;
+      // might as well support re-writing
+      out.writeObject(image);
+      InputStream in = new BufferedInputStream(new FileInputStream(spool));
+      try {
+        copy(in, spoolBase, out);
+        copy(in, spool.length()-spoolBase, out);
+      } finally {
+        in.close();
+      }
       if (logger.isInfoEnabled()) logger.info("Reserialized "+this);
-    } else {
-      ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
-      synchronized (locker) {   // sync
+    } else if (scripter != null) {
+      List statements;
+      synchronized (locker) {
         try {
           locker.stop();
-
-          // when we are really called, we serialize the database into the stream (yech!)
-          ZipOutputStream zos = new ZipOutputStream(bos);
-          // we'll leave it the default for now since this stuff is easily compressed.
-          File[] files = directory.listFiles();
-          byte[] buf = new byte[1024];
-          for (int i=0; i<files.length; i++) {
-            File f = files[i];
-            if (! f.isFile()) continue; // skip any directories
-
-            ZipEntry ze = new ZipEntry(f.getName());
-            zos.putNextEntry(ze);
-
-            // copy the file to the zip stream
-            BufferedInputStream fin = new BufferedInputStream(new FileInputStream(f));
-            int len;
-            while ( (len = fin.read(buf,0,1024)) > 0) {
-              zos.write(buf,0,len);
-            }
-            fin.close();
-      
-            zos.closeEntry();
-          }
-          zos.finish();
-
+          statements = scripter.getScript();
         } finally {
           locker.start();
         }
       }
 
-      out.writeObject(bos.toByteArray());
+      // compress outside of the lock
+      out.writeObject(null);    // no base image
+      ChunkedOutputStream cos = new ChunkedOutputStream(out);
+      ZipOutputStream zos = new ZipOutputStream(cos);
+      zos.putNextEntry(new ZipEntry(SCRIPT_ENTRY));
+      writeScript(statements, zos);
+      zos.closeEntry();
+      zos.finish();
+      cos.close();
+
+      new ChunkedOutputStream(out).close(); // no delta
+      if (logger.isInfoEnabled()) logger.info("Serialized "+statements.size()+" statements ("+cos.getTotal()+" bytes) of "+this);
+    } else {
+      // hold the base so that the image we write matches the delta we captured
+      synchronized (base) {
+        byte[] delta;
+        synchronized (locker) {   // sync
+          try {
+            locker.stop();
+            delta = base.capture(locker);
+          } finally {
+            locker.start();
+          }
+        }
+
+        // compresses outside of the lock if the capture took a new base, and is
+        // written as a reference if persistence has already written the image
+        out.writeObject(base.getImage());
+        new ChunkedOutputStream(out).close(); // the base is in the image
+
+        ChunkedOutputStream cos = new ChunkedOutputStream(out);
+        cos.write(delta);
+        cos.close();
+      }
       if (logger.isInfoEnabled()) logger.info("Serialized "+this);
     }
   }
   
   private void readObject(ObjectInputStream in) throws ClassNotFoundException, IOException {
     in.defaultReadObject();
-    // when we read the object, we just suck the bits into our byte array - if we need to
+    image = (SnapshotBase.Image) in.readObject();
+    // when we read the object, we just spool the bits to a file - if we need to
     // use the bits, we'll have to fool with the database at that point.
-    stuff = (byte[]) in.readObject();
-    if (logger.isInfoEnabled()) logger.info("Got rehydration snapshot ("+stuff.length+" bytes) from "+this);
+    spool = createSpool();
+    OutputStream os = new BufferedOutputStream(new FileOutputStream(spool));
+    try {
+      spoolBase = copy(new ChunkedInputStream(in), os);
+      copy(new ChunkedInputStream(in), os);
+    } finally {
+      os.close();
+    }
+    if (logger.isInfoEnabled()) logger.info("Got rehydration snapshot ("+((image==null)?String.valueOf(spoolBase):image.toString())+"+"+(spool.length()-spoolBase)+" bytes) from "+this);
   }
 
-  public boolean hasPayload() { return stuff != null; }
+  public boolean hasPayload() { return spool != null; }
+
+  /** @return the base image of a rehydrated envelope, or null if it has none **/
+  SnapshotBase.Image getImage() { return image; }
+
+  /** @return a new temporary file in the spool directory **/
+  static File createSpool() throws IOException {
+    File f = File.createTempFile("ypdb", ".spool", SPOOL_DIRECTORY);
+    f.deleteOnExit();
+    return f;
+  }
+
+  /** @return a stream of the zip of the base, which the caller must close **/
+  private InputStream openBase() throws IOException {
+    if (image != null) {
+      return image.open();
+    }
+    // the zip is at the start of the spool, and ends before the delta
+    return new BufferedInputStream(new FileInputStream(spool));
+  }
 
   /** dump the stored bytes into the specified directory **/
   public void dumpPayload(File parent) throws IOException {
@@ -147,28 +248,201 @@ public class DatabaseEnvelope implements Serializable {
 
     if (logger.isInfoEnabled()) logger.info("Rehydrating from "+this);
 
-    ByteArrayInputStream is = new ByteArrayInputStream(stuff);
-    ZipInputStream zis = new ZipInputStream(is);
-    byte[] buf = new byte[1024];
-
-    ZipEntry ze;
-    while ( (ze = zis.getNextEntry()) != null) {
-      String fname = ze.getName();
-      File f = new File(parent, fname);
-      if (f.exists()) f.delete();
-      BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(f));
-      int len;
-      while ( (len = zis.read(buf)) > 0) {
-        out.write(buf, 0, len);
+    InputStream is = openBase();
+    try {
+      ZipInputStream zis = new ZipInputStream(is);
+      byte[] buf = new byte[ChunkedOutputStream.CHUNK_SIZE];
+
+      ZipEntry ze;
+      while ( (ze = zis.getNextEntry()) != null) {
+        String fname = ze.getName();
+        File f = new File(parent, fname);
+        if (f.exists()) f.delete();
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+        int len;
+        while ( (len = zis.read(buf)) > 0) {
+          out.write(buf, 0, len);
+        }
+        out.close();
+        zis.closeEntry();
+      }
+
+      // replay the statements logged since the base was taken
+      long deltaLength = spool.length() - spoolBase;
+      if (deltaLength > 0) {
+        is.close();
+        is = new BufferedInputStream(new FileInputStream(spool));
+        skipFully(is, spoolBase);
+        FileOutputStream out = new FileOutputStream(new File(parent, scriptName), true);
+        try {
+          copy(is, out);
+        } finally {
+          out.close();
+        }
       }
-      out.close();
-      zis.closeEntry();
+    } finally {
+      is.close();
     }
-    zis.close();
     
-    // when done, should we null the stuff to prime the gc?  No - we need to be able to
-    // re-write it until the database gets another snapshot taken.
-    //stuff = null;
+    // when done, should we drop the spool?  No - we need to be able to
+    // re-write it until the database gets another snapshot taken.  See #discardPayload.
+  }
+
+  /** Delete the spooled payload.  Call once a newer snapshot has replaced this one.
+   * The base image is left alone, since it may also be on the blackboard. 
+   **/
+  public void discardPayload() {
+    if (spool != null) {
+      spool.delete();
+      spool = null;
+    }
+  }
+
+  /** copy all of in to out, returning the number of bytes copied **/
+  private static long copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buf = new byte[ChunkedOutputStream.CHUNK_SIZE];
+    long total = 0L;
+    int len;
+    while ( (len = in.read(buf)) > 0) {
+      out.write(buf, 0, len);
+      total += len;
+    }
+    return total;
+  }
+
+  /** copy length bytes of in to out as a chunked payload **/
+  private static void copy(InputStream in, long length, ObjectOutputStream out) throws IOException {
+    ChunkedOutputStream cos = new ChunkedOutputStream(out);
+    copy(new BoundedInputStream(in, length), cos);
+    cos.close();
+  }
+
+  private static void skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long k = in.skip(n);
+      if (k <= 0) throw new IOException("Unexpected end of spool file");
+      n -= k;
+    }
+  }
+
+  /** A view of the next length bytes of a stream which does not close it **/
+  private static class BoundedInputStream extends java.io.FilterInputStream {
+    private long remaining;
+    BoundedInputStream(InputStream in, long length) {
+      super(in);
+      remaining = length;
+    }
+    public int read() throws IOException {
+      if (remaining <= 0) return -1;
+      int b = in.read();
+      if (b >= 0) remaining--;
+      return b;
+    }
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) return -1;
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n > 0) remaining -= n;
+      return n;
+    }
+    public long skip(long n) throws IOException {
+      long k = in.skip(Math.min(n, remaining));
+      remaining -= k;
+      return k;
+    }
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+    public boolean markSupported() { return false; }
+    public void close() { }
+  }
+
+  /** @return the SQL statements of the script entry of the payload, or null if there
+   * is no script entry.
+   **/
+  public List getPayloadScript() throws IOException {
+    assert hasPayload();
+
+    InputStream is = openBase();
+    ZipInputStream zis = new ZipInputStream(is);
+    try {
+      ZipEntry ze;
+      while ( (ze = zis.getNextEntry()) != null) {
+        if (SCRIPT_ENTRY.equals(ze.getName())) {
+          return readScript(zis);
+        }
+        zis.closeEntry();
+      }
+      return null;
+    } finally {
+      is.close();
+    }
+  }
+
+  /** Write SQL statements to a stream, one per line, escaping characters outside of
+   * printable ASCII as unicode escapes as hsqldb does in its script files.
+   **/
+  static void writeScript(List statements, OutputStream os) throws IOException {
+    BufferedWriter w = new BufferedWriter(new OutputStreamWriter(os, "ISO-8859-1"));
+    StringBuffer sb = new StringBuffer(256);
+    for (Iterator i = statements.iterator(); i.hasNext(); ) {
+      String s = (String) i.next();
+      sb.setLength(0);
+      for (int j = 0, l = s.length(); j < l; j++) {
+        char c = s.charAt(j);
+        if (c == '\\') {
+          sb.append(c);
+          if (j < l-1 && s.charAt(j+1) == 'u') {
+            sb.append("u005c");   // so that the 'u' is not taken as an escape
+          }
+        } else if (c >= 0x20 && c <= 0x7f) {
+          sb.append(c);
+        } else {
+          sb.append("\\u");
+          sb.append(HEX.charAt((c >> 12) & 0xf));
+          sb.append(HEX.charAt((c >> 8) & 0xf));
+          sb.append(HEX.charAt((c >> 4) & 0xf));
+          sb.append(HEX.charAt(c & 0xf));
+        }
+      }
+      w.write(sb.toString());
+      w.newLine();
+    }
+    w.flush();                  // but don't close the underlying stream
+  }
+
+  /** Read SQL statements written by #writeScript or by hsqldb **/
+  static List readScript(InputStream is) throws IOException {
+    BufferedReader r = new BufferedReader(new InputStreamReader(is, "ISO-8859-1"));
+    List statements = new ArrayList();
+    String line;
+    while ((line = r.readLine()) != null) {
+      if (line.indexOf("\\u") == -1) {
+        statements.add(line);
+        continue;
+      }
+      StringBuffer sb = new StringBuffer(line.length());
+      for (int j = 0, l = line.length(); j < l; j++) {
+        char c = line.charAt(j);
+        if (c == '\\' && j < l-5 && line.charAt(j+1) == 'u') {
+          sb.append((char) Integer.parseInt(line.substring(j+2, j+6), 16));
+          j += 5;
+        } else {
+          sb.append(c);
+        }
+      }
+      statements.add(sb.toString());
+    }
+    return statements;
+  }
+
+  private static final String HEX = "0123456789abcdef";
+
+  /** Source of the SQL script of an in-memory database **/
+  public interface Scripter {
+    /** called while synchronized on and stopped by the Locker.
+     * @return the SQL statements which recreate the database
+     **/
+    List getScript() throws IOException;
   }
 
   /** Database Lock abstraction - provides for both locking (to prevent database modifications
@@ -179,6 +453,8 @@ public class DatabaseEnvelope implements Serializable {
     void stop();
     /** call while synchronized and stopped to restart the database instance **/
     void start();
+    /** call while synchronized and stopped to compact the database files (e.g. CHECKPOINT) **/
+    void checkpoint() throws IOException;
   }
 
 }
@@ -0,0 +1,255 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/** A compact binary encoding of DOM element trees, used by YPMessage in place
+ * of java serialization of the DOM implementation.
+ * <p>
+ * The tree is written depth first as a series of tokens.  Every name, 
+ * namespace and value is written once, and thereafter by its index in a 
+ * dictionary built up as the tree is written, so the repeated tag and 
+ * attribute names of a UDDI document cost a byte or two each.  Comments and
+ * processing instructions are dropped, and CDATA sections become text.
+ **/
+final class ElementCodec {
+  private ElementCodec() {}
+
+  // tokens
+  private static final int END = 0;
+  private static final int ELEMENT = 1;
+  private static final int ELEMENT_NS = 2;
+  private static final int ATTRIBUTE = 3;
+  private static final int ATTRIBUTE_NS = 4;
+  private static final int TEXT = 5;
+
+  /** @return the encoding of the element tree, or null if el is null **/
+  static byte[] encode(Element el) {
+    if (el == null) return null;
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
+      DataOutputStream out = new DataOutputStream(bos);
+      new Encoder(out).writeElement(el);
+      out.flush();
+      return bos.toByteArray();
+    } catch (IOException ioe) {
+      // cannot happen writing to a byte array
+      throw new RuntimeException("Unable to encode "+el, ioe);
+    }
+  }
+
+  /** @return the element tree encoded by #encode, in a new Document **/
+  static Element decode(byte[] bytes) {
+    if (bytes == null) return null;
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      Document doc = newDocument();
+      Element el = new Decoder(in, doc).readElement(in.readUnsignedByte());
+      doc.appendChild(el);
+      return el;
+    } catch (IOException ioe) {
+      throw new RuntimeException("Unable to decode YP element", ioe);
+    }
+  }
+
+  private static class Encoder {
+    private final DataOutputStream out;
+    private final HashMap dictionary = new HashMap(89);
+
+    Encoder(DataOutputStream out) { this.out = out; }
+
+    void writeElement(Element el) throws IOException {
+      String ns = el.getNamespaceURI();
+      if (ns == null) {
+        out.writeByte(ELEMENT);
+      } else {
+        out.writeByte(ELEMENT_NS);
+        writeString(ns);
+      }
+      writeString(el.getNodeName());
+
+      NamedNodeMap attrs = el.getAttributes();
+      for (int i = 0, l = attrs.getLength(); i < l; i++) {
+        Attr a = (Attr) attrs.item(i);
+        String ans = a.getNamespaceURI();
+        if (ans == null) {
+          out.writeByte(ATTRIBUTE);
+        } else {
+          out.writeByte(ATTRIBUTE_NS);
+          writeString(ans);
+        }
+        writeString(a.getNodeName());
+        writeString(a.getNodeValue());
+      }
+
+      for (Node c = el.getFirstChild(); c != null; c = c.getNextSibling()) {
+        switch (c.getNodeType()) {
+        case Node.ELEMENT_NODE:
+          writeElement((Element) c);
+          break;
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE:
+          out.writeByte(TEXT);
+          writeString(c.getNodeValue());
+          break;
+        default:
+          break;
+        }
+      }
+      out.writeByte(END);
+    }
+
+    /** Write a string the first time it is seen, and its index thereafter **/
+    private void writeString(String s) throws IOException {
+      Integer index = (Integer) dictionary.get(s);
+      if (index != null) {
+        writeInt(index.intValue() + 1);
+      } else {
+        dictionary.put(s, new Integer(dictionary.size()));
+        writeInt(0);
+        byte[] b = s.getBytes("UTF-8");
+        writeInt(b.length);
+        out.write(b);
+      }
+    }
+
+    /** write a non-negative int in as few bytes as possible **/
+    private void writeInt(int v) throws IOException {
+      while ((v & ~0x7f) != 0) {
+        out.writeByte((v & 0x7f) | 0x80);
+        v >>>= 7;
+      }
+      out.writeByte(v);
+    }
+  }
+
+  private static class Decoder {
+    private final DataInputStream in;
+    private final Document doc;
+    private final List dictionary = new ArrayList(89);
+
+    Decoder(DataInputStream in, Document doc) { 
+      this.in = in;
+      this.doc = doc;
+    }
+
+    Element readElement(int token) throws IOException {
+      Element el;
+      if (token == ELEMENT) {
+        el = doc.createElement(readString());
+      } else if (token == ELEMENT_NS) {
+        String ns = readString();
+        el = doc.createElementNS(ns, readString());
+      } else {
+        throw new IOException("Expected an element but found token "+token);
+      }
+
+      while (true) {
+        int t = in.readUnsignedByte();
+        switch (t) {
+        case END:
+          return el;
+        case ELEMENT:
+        case ELEMENT_NS:
+          el.appendChild(readElement(t));
+          break;
+        case ATTRIBUTE: {
+          String name = readString();
+          el.setAttribute(name, readString());
+          break;
+        }
+        case ATTRIBUTE_NS: {
+          String ns = readString();
+          String name = readString();
+          el.setAttributeNS(ns, name, readString());
+          break;
+        }
+        case TEXT:
+          el.appendChild(doc.createTextNode(readString()));
+          break;
+        default:
+          throw new IOException("Unknown token "+t);
+        }
+      }
+    }
+
+    private String readString() throws IOException {
+      int index = readInt();
+      if (index > 0) {
+        return (String) dictionary.get(index - 1);
+      }
+      byte[] b = new byte[readInt()];
+      in.readFully(b);
+      String s = new String(b, "UTF-8");
+      dictionary.add(s);
+      return s;
+    }
+
+    private int readInt() throws IOException {
+      int v = 0;
+      for (int shift = 0; ; shift += 7) {
+        int b = in.readUnsignedByte();
+        v |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) return v;
+      }
+    }
+  }
+
+  private static DocumentBuilder docBuilder = null;
+
+  private static Document newDocument() {
+    synchronized (ElementCodec.class) {
+      if (docBuilder == null) {
+        try {
+          docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        } catch (ParserConfigurationException pce) {
+          throw new RuntimeException("Could not create DocumentBuilder", pce);
+        }
+      }
+      return docBuilder.newDocument();
+    }
+  }
+}
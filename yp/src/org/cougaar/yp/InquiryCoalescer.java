@@ -0,0 +1,150 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.uddi4j.UDDIElement;
+import org.w3c.dom.Element;
+
+/** Lets YPClientComponent answer identical inquiries which are in progress
+ * at the same time with a single query to the YP servers.  The first (the
+ * leader) is sent, and the others follow it: they wait for its answer.
+ * <p>
+ * The owner calls #publishing whenever it submits or completes a publish,
+ * after which no inquiry joins one which started earlier, since that one's
+ * answer may not reflect the publish.
+ * <p>
+ * Each follower is given a copy of the answer in a Document of its own 
+ * (see ResponseCache#copyDocument).  The copies are made before the leader
+ * is answered, while nobody else can be using the answer.
+ **/
+class InquiryCoalescer {
+  /** coalesce key -> List of the followers of the leader with that key.  Sync on this. **/
+  private final HashMap inFlight = new HashMap(11);
+
+  /** Part of every coalesce key, bumped by #publishing.  Sync on this. **/
+  private long generation = 0L;
+
+  private int joined = 0;       // sync on this
+
+  /** Follow an identical inquiry in progress if there is one, otherwise 
+   * lead any which follow.  Call with each cacheable inquiry before sending it.
+   * @return true if the inquiry will be answered along with another
+   **/
+  synchronized boolean join(YPFutureImpl r) {
+    String key = generation + "|" + r.getInquiryKey();
+    r.setCoalesceKey(key);
+    List followers = (List) inFlight.get(key);
+    if (followers == null) {
+      inFlight.put(key, new ArrayList(1));
+      return false;
+    }
+    followers.add(r);
+    joined++;
+    return true;
+  }
+
+  /** Note that the owner has submitted or completed a publish **/
+  synchronized void publishing() {
+    generation++;
+  }
+
+  /** Answer a query and any which follow it.  None may follow it after this.
+   * @param value the answer: an Element, a typed response, null or a Throwable
+   * @return the queries which were answered, r first
+   **/
+  List answer(YPFutureImpl r, Object finalContext, Object value) {
+    List followers = takeFollowers(r);
+    Object[] answers = copyAnswer(followers, value);
+    r.setFinalContext(finalContext);
+    r.set(value);
+    if (followers == null) {
+      return Collections.singletonList(r);
+    }
+    List answered = new ArrayList(followers.size()+1);
+    answered.add(r);
+    for (int i = 0, l = followers.size(); i < l; i++) {
+      YPFutureImpl f = (YPFutureImpl) followers.get(i);
+      f.setFinalContext(finalContext);
+      f.set(answers[i]);
+      answered.add(f);
+    }
+    return answered;
+  }
+
+  /** Fail the queries which follow r, e.g. because r could not be sent.
+   * r itself is left alone.
+   * @return the queries which were answered
+   **/
+  List failFollowers(YPFutureImpl r, Throwable t) {
+    List followers = takeFollowers(r);
+    if (followers == null) {
+      return Collections.EMPTY_LIST;
+    }
+    for (int i = 0, l = followers.size(); i < l; i++) {
+      ((YPFutureImpl) followers.get(i)).set(t);
+    }
+    return followers;
+  }
+
+  /** @return the queries which follow r, or null **/
+  private List takeFollowers(YPFutureImpl r) {
+    String key = r.getCoalesceKey();
+    if (key == null) return null;
+    synchronized (this) {
+      return (List) inFlight.remove(key);
+    }
+  }
+
+  /** @return a copy of the answer for each of the followers **/
+  private static Object[] copyAnswer(List followers, Object value) {
+    if (followers == null) return null;
+    Object[] answers = new Object[followers.size()];
+    for (int i = 0; i < answers.length; i++) {
+      if (value instanceof Element) {
+        answers[i] = ResponseCache.copyDocument((Element) value);
+      } else if (value instanceof UDDIElement) {
+        answers[i] = YPProxyImpl.toXML((UDDIElement) value); // don't share the object
+      } else {
+        answers[i] = value;     // null or a Throwable
+      }
+    }
+    return answers;
+  }
+
+  /** @return the number of inquiries in progress which have followers or may get them **/
+  synchronized int size() { return inFlight.size(); }
+
+  public synchronized String toString() {
+    return "<InquiryCoalescer inFlight="+inFlight.size()+" joined="+joined+">";
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import org.cougaar.core.mts.MessageAddress;
+
+/**
+ * Where a read-only replica is in the publish log of its primary (see
+ * ReplicationLog), and what it should do with each LOG message it gets.
+ * <p>
+ * A replica applies the entries of an epoch in order.  An entry it has
+ * already applied is ignored, as is a reset to an entry it has moved past.
+ * An entry beyond the next, or of another epoch (the primary has restarted),
+ * means it has lost its place, so it subscribes again with the last entry it
+ * applied and the primary answers with the entries it missed or with a reset.
+ * <p>
+ * The state also holds the generation of the primary we follow (or, once we
+ * have taken over, lead), which orders the primaries of a group as standbys
+ * take over from them.  See #supersedes.
+ * <p>
+ * Times are passed in, rather than read from the clock, so that the
+ * decisions are easy to test.
+ **/
+class ReplicaState {
+  /** #receive: drop the message **/
+  static final int IGNORE = 0;
+  /** #receive: apply the message, then call #applied **/
+  static final int APPLY = 1;
+  /** #receive: drop the message and subscribe again **/
+  static final int RESUBSCRIBE = 2;
+
+  /** generation of the primary we follow or lead **/
+  private long generation = 0L;
+  /** epoch of the primary's log which we are following, 0 if none **/
+  private long epoch = 0L;
+  /** the last entry of the primary's log we have applied **/
+  private long seq = 0L;
+  /** the latest entry of the primary's log we have heard of **/
+  private long primarySeq = 0L;
+  /** millis between the primary committing the last entry we applied and our applying it **/
+  private long lag = -1L;
+  /** when we last heard from the primary **/
+  private long lastHeard = 0L;
+  /** true (since subscribedAt) while a subscription is unanswered **/
+  private boolean subscribing = false;
+  private long subscribedAt = 0L;
+
+  /** Decide what to do with a LOG message from our primary, received at now.
+   * @return IGNORE, APPLY or RESUBSCRIBE
+   **/
+  synchronized int receive(YPReplicationMessage m, long now) {
+    lastHeard = now;
+    if (m.getGeneration() > generation) {
+      generation = m.getGeneration();
+    }
+    if (m.isReset()) {
+      if (m.getEpoch() == epoch && m.getSeq() <= seq) {
+        subscribing = false;
+        return IGNORE;          // we've already moved past it
+      }
+      return APPLY;
+    }
+    if (m.getEpoch() != epoch || m.getSeq() > seq+1) {
+      // we've missed some of the log, or the primary has restarted,
+      // so subscribe again unless we're already waiting for an answer
+      return subscribing ? IGNORE : RESUBSCRIBE;
+    }
+    subscribing = false;
+    if (m.getLatestSeq() > primarySeq) {
+      primarySeq = m.getLatestSeq();
+    }
+    if (m.getSeq() <= seq) {
+      return IGNORE;            // already applied, or just telling us we're up to date
+    }
+    return APPLY;
+  }
+
+  /** Note that a message for which #receive returned APPLY has been applied.
+   * @param lag millis since the primary committed the entry
+   * @return the number of entries we are still behind the primary
+   **/
+  synchronized long applied(YPReplicationMessage m, long lag) {
+    subscribing = false;
+    epoch = m.getEpoch();
+    seq = m.getSeq();
+    if (m.isReset() || m.getLatestSeq() > primarySeq) {
+      primarySeq = m.getLatestSeq();
+    }
+    this.lag = lag;
+    return primarySeq - seq;
+  }
+
+  /** Forget our place in the log, e.g. because an entry could not be applied,
+   * so that our next subscription is answered with a reset.
+   **/
+  synchronized void lose() {
+    epoch = 0L;
+    seq = 0L;
+  }
+
+  /** Start following a primary of another generation, which will send us a reset **/
+  synchronized void follow(long generation) {
+    this.generation = generation;
+    lose();
+    primarySeq = 0L;
+    subscribing = false;
+  }
+
+  /** Take over as the primary of the next generation.
+   * @return the new generation
+   **/
+  synchronized long lead() {
+    return ++generation;
+  }
+
+  /** @return a subscription to the log following the last entry we applied, sent at now **/
+  synchronized YPReplicationMessage subscribe(MessageAddress replica, MessageAddress primary,
+                                              long now) {
+    subscribing = true;
+    subscribedAt = now;
+    return YPReplicationMessage.subscribe(replica, primary, generation, epoch, seq);
+  }
+
+  /** @return an acknowledgement that we have applied the LOG message m **/
+  synchronized YPReplicationMessage ack(MessageAddress replica, YPReplicationMessage m) {
+    return YPReplicationMessage.ack(replica, m.getOriginator(), generation, 
+                                    m.getEpoch(), m.getSeq(), lag);
+  }
+
+  /** @return true if we have not heard from the primary, or had an answer to
+   * our subscription, for longer than interval
+   **/
+  synchronized boolean isQuiet(long now, long interval) {
+    return (now - lastHeard > interval) ||
+      (subscribing && (now - subscribedAt > interval));
+  }
+
+  /** @return true if we hold a copy of the primary's database but have not
+   * heard from it for longer than interval
+   **/
+  synchronized boolean hasFailed(long now, long interval) {
+    // never take over with a database that was not copied from the primary
+    return epoch != 0L && (now - lastHeard > interval);
+  }
+
+  /** @return true if primary, leading generation, has superseded thanPrimary,
+   * leading thanGeneration.  Later generations supersede earlier ones; should
+   * two standbys take over at once, the one with the greater name wins.
+   **/
+  static boolean supersedes(MessageAddress primary, long generation,
+                            MessageAddress thanPrimary, long thanGeneration) {
+    if (generation != thanGeneration) {
+      return generation > thanGeneration;
+    }
+    return primary.toString().compareTo(thanPrimary.toString()) > 0;
+  }
+
+  synchronized long getGeneration() { return generation; }
+  synchronized void setGeneration(long generation) { this.generation = generation; }
+  synchronized long getEpoch() { return epoch; }
+  synchronized long getSeq() { return seq; }
+  synchronized long getPrimarySeq() { return primarySeq; }
+
+  public synchronized String toString() {
+    return "in generation " + generation + " at log entry " + seq + " of " + primarySeq +
+      " (lag " + lag + "ms)";
+  }
+}
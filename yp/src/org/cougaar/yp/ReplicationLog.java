@@ -0,0 +1,296 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.yp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+import org.juddi.datastore.jdbc.HSQLDataStoreFactory;
+
+/**
+ * The publish log which a primary YPServer streams to its read-only replicas.
+ * <p>
+ * hsqldb (1.7) appends each modifying statement to the script of a file database,
+ * so the log entry of a publish is just the lines appended to the script while
+ * it ran, and a replica applies it by executing them.  We ship the statements
+ * rather than the UDDI publish requests because juddi assigns new keys on each
+ * save_*, so replaying the requests would not reproduce the primary's registry.
+ * An in-memory database has no script, so each of its publishes is shipped as
+ * a reset: a script of the whole database, which replaces the replica's.
+ * <p>
+ * The most recent entries are retained so that a replica which has fallen behind
+ * or missed a message may catch up without a reset.  A replica which falls
+ * further behind than that is dropped, and must subscribe again.
+ * <p>
+ * All methods must be called while synchronized on, and with Config.dbTag set 
+ * for, the database of the primary.
+ **/
+class ReplicationLog {
+  private static final Logger logger = Logging.getLogger(ReplicationLog.class);
+
+  /** Number of log entries retained for replicas which fall behind **/
+  private static int LOG_SIZE = 100;
+  private static final String LOG_SIZE_PROPERTY = "org.cougaar.yp.ReplicationLogSize";
+
+  static {
+    LOG_SIZE = Integer.getInteger(LOG_SIZE_PROPERTY, LOG_SIZE).intValue();
+  }
+
+  private static final class Entry {
+    final long seq;
+    final long time;
+    final boolean reset;
+    final List statements;
+    Entry(long seq, long time, boolean reset, List statements) {
+      this.seq = seq;
+      this.time = time;
+      this.reset = reset;
+      this.statements = statements;
+    }
+  }
+
+  private static final class Subscriber {
+    long acked = 0L;            // last entry the replica has applied
+    long lag = -1L;             // its last reported lag in millis, if known
+  }
+
+  private final MessageAddress origin;
+  private final File script;    // null for an in-memory database
+  private final long generation; // of the primary, see YPReplicationMessage
+  private final long epoch = System.currentTimeMillis();
+  private long seq = 0L;        // the latest entry
+  private long time = epoch;    // when the latest entry was committed
+  /** retained Entries, oldest first **/
+  private final LinkedList entries = new LinkedList();
+  /** replica MessageAddress -> Subscriber **/
+  private final HashMap subscribers = new HashMap(5);
+
+  /** true if a publish could not be logged, so the next must be logged as a reset **/
+  private boolean lost = false;
+
+  // state of the script noted by #begin, offset is -1 if not noted
+  private long offset = -1L;
+  private long fingerprint = 0L;
+
+  /**
+   * @param origin the primary
+   * @param script the hsqldb script file of the primary's database, or null if in-memory
+   * @param generation the primary's generation
+   **/
+  ReplicationLog(MessageAddress origin, File script, long generation) {
+    this.origin = origin;
+    this.script = script;
+    this.generation = generation;
+  }
+
+  /** Note the state of the script before a publish **/
+  void begin() throws IOException, SQLException {
+    offset = -1L;
+    if (script == null || subscribers.isEmpty()) {
+      return;
+    }
+    // the script may have been reopened with hsqldb's default write delay
+    HSQLDataStoreFactory.syncScript();
+    offset = script.length();
+    fingerprint = SnapshotBase.fingerprint(script, offset);
+  }
+
+  /** Log the publish executed since #begin.
+   * @return the YPReplicationMessages to send to the subscribers
+   **/
+  List end() throws IOException, SQLException {
+    long start = offset;
+    offset = -1L;
+    if (subscribers.isEmpty()) {
+      return Collections.EMPTY_LIST;
+    }
+
+    boolean wasLost = lost;
+    lost = true;                // until we have the entry
+    Entry e;
+    if (!wasLost && start >= 0L && script.length() >= start && 
+        fingerprint == SnapshotBase.fingerprint(script, start)) {
+      List statements = toStatements(SnapshotBase.readTail(script, start, script.length()));
+      if (statements.isEmpty()) {
+        lost = false;
+        return Collections.EMPTY_LIST; // nothing was modified
+      }
+      e = new Entry(seq+1, System.currentTimeMillis(), false, statements);
+    } else {
+      // in-memory, or the script was rewritten behind our back
+      e = new Entry(seq+1, System.currentTimeMillis(), true, 
+                    HSQLDataStoreFactory.scriptDatabase());
+    }
+    append(e);
+    lost = false;
+
+    List messages = new ArrayList(subscribers.size());
+    for (Iterator i = subscribers.entrySet().iterator(); i.hasNext(); ) {
+      Map.Entry me = (Map.Entry) i.next();
+      MessageAddress replica = (MessageAddress) me.getKey();
+      Subscriber s = (Subscriber) me.getValue();
+      if (seq - s.acked > LOG_SIZE) {
+        if (logger.isWarnEnabled()) {
+          logger.warn(origin + " dropping replica " + replica + ", which has only applied " +
+                      s.acked + " of " + seq + " log entries");
+        }
+        i.remove();
+        continue;
+      }
+      messages.add(toMessage(e, replica));
+    }
+    return messages;
+  }
+
+  /** Add a replica, or restart one which has lost its place.
+   * @return the YPReplicationMessages which bring the replica up to date
+   **/
+  List subscribe(YPReplicationMessage m) throws SQLException {
+    MessageAddress replica = m.getOriginator();
+    Subscriber s = (Subscriber) subscribers.get(replica);
+    if (s == null) {
+      s = new Subscriber();
+      subscribers.put(replica, s);
+    }
+
+    long from = m.getSeq();
+    if (m.getEpoch() == epoch && from <= seq &&
+        (from == seq || (!entries.isEmpty() && ((Entry) entries.getFirst()).seq <= from+1))) {
+      s.acked = from;
+      if (from == seq) {
+        // up to date: just tell the replica so
+        return Collections.singletonList(YPReplicationMessage.log(origin, replica, generation,
+                                                                  epoch, seq, seq, time, false,
+                                                                  Collections.EMPTY_LIST));
+      }
+      List messages = new ArrayList();
+      for (Iterator i = entries.iterator(); i.hasNext(); ) {
+        Entry e = (Entry) i.next();
+        if (e.seq > from) {
+          messages.add(toMessage(e, replica));
+        }
+      }
+      if (logger.isInfoEnabled()) {
+        logger.info(origin + " catching up replica " + replica + " from log entry " + from + 
+                    " to " + seq);
+      }
+      return messages;
+    }
+
+    s.acked = seq;              // the reset brings the replica to the latest entry
+    if (logger.isInfoEnabled()) {
+      logger.info(origin + " resetting replica " + replica + " to log entry " + seq);
+    }
+    return Collections.singletonList(YPReplicationMessage.log(origin, replica, generation,
+                                                              epoch, seq, seq, time, true,
+                                                              HSQLDataStoreFactory.scriptDatabase()));
+  }
+
+  /** Note a replica's progress **/
+  void ack(YPReplicationMessage m) {
+    Subscriber s = (Subscriber) subscribers.get(m.getOriginator());
+    if (s == null || m.getEpoch() != epoch) {
+      return;                   // stale
+    }
+    if (m.getSeq() > s.acked) {
+      s.acked = m.getSeq();
+    }
+    s.lag = m.getTime();
+    if (logger.isDebugEnabled()) {
+      logger.debug(origin + " replica " + m.getOriginator() + " has applied log entry " +
+                   s.acked + " of " + seq + ", lag " + s.lag + "ms");
+    }
+  }
+
+  private void append(Entry e) {
+    if (e.reset) {
+      entries.clear();          // a reset replaces everything before it
+    }
+    entries.addLast(e);
+    while (entries.size() > LOG_SIZE) {
+      entries.removeFirst();
+    }
+    seq = e.seq;
+    time = e.time;
+  }
+
+  private YPReplicationMessage toMessage(Entry e, MessageAddress replica) {
+    return YPReplicationMessage.log(origin, replica, generation, epoch, e.seq, seq, e.time,
+                                    e.reset, e.statements);
+  }
+
+  /** @return the lines of a script tail as SQL statements, without the
+   * session statements which hsqldb logs as connections come and go
+   **/
+  private static List toStatements(byte[] tail) throws IOException {
+    // hsqldb writes non-ascii characters as unicode escapes, which must be
+    // decoded before the statements are executed elsewhere
+    List lines = DatabaseEnvelope.readScript(new ByteArrayInputStream(tail));
+    List statements = new ArrayList(lines.size());
+    for (Iterator i = lines.iterator(); i.hasNext(); ) {
+      String line = ((String) i.next()).trim();
+      String sql = line;
+      if (sql.startsWith("/*")) {
+        int end = sql.indexOf("*/");   // a session marker, e.g. "/*C1*/"
+        if (end > 0) {
+          sql = sql.substring(end+2).trim();
+        }
+      }
+      if (sql.length() > 0 && !sql.startsWith("CONNECT ") && !sql.startsWith("DISCONNECT")) {
+        statements.add(line);
+      }
+    }
+    return statements;
+  }
+
+  public String toString() {
+    StringBuffer buf = new StringBuffer();
+    buf.append("publish log at entry ").append(seq).append(" of epoch ").append(epoch);
+    for (Iterator i = subscribers.entrySet().iterator(); i.hasNext(); ) {
+      Map.Entry me = (Map.Entry) i.next();
+      Subscriber s = (Subscriber) me.getValue();
+      buf.append(", replica ").append(me.getKey()).append(" at ").append(s.acked);
+      if (s.lag >= 0L) {
+        buf.append(" (lag ").append(s.lag).append("ms)");
+      }
+    }
+    return buf.toString();
+  }
+}
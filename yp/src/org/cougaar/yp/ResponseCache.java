@@ -0,0 +1,266 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.yp;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/** A bounded LRU cache of YP inquiry responses, keyed by a canonical
+ * serialization of the inquiry element.
+ * <p>
+ * Every change to the underlying data should call #invalidate(), which
+ * drops all entries and bumps the cache generation.  Responses computed
+ * under an earlier generation are silently refused by #put so that a
+ * response raced by a publish is never cached.
+ * <p>
+ * DOM documents are not thread-safe, so each cached response is copied
+ * into a Document of its own, and #get copies it out into a new Document
+ * (see #copyDocument).  Nothing outside the cache ever shares a Document 
+ * with a cached response, and the cached responses are only ever read, so
+ * they are copied without holding the cache's lock.
+ **/
+class ResponseCache {
+  private final int maxSize;
+
+  /** canonical key -> response Element, in access order.  Sync on this. **/
+  private final LinkedHashMap map;
+
+  private long generation = 0L;
+
+  // counters, sync on this
+  private int hits = 0;
+  private int misses = 0;
+  private int evictions = 0;
+  private int invalidations = 0;
+
+  /** @param maxSize the maximum number of responses to keep **/
+  ResponseCache(int maxSize) {
+    this.maxSize = maxSize;
+    map = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+          if (size() > ResponseCache.this.maxSize) {
+            evictions++;
+            return true;
+          }
+          return false;
+        }
+      };
+  }
+
+  /** Is the query element a pure inquiry whose answer depends only on the
+   * content of the database?  Find and get-detail queries qualify, 
+   * requests which are tied to a publisher (get_authToken, get_registeredInfo,
+   * etc) do not.
+   **/
+  static boolean isCacheable(Element qel) {
+    String tag = localName(qel);
+    return 
+      tag.startsWith("find_") ||
+      (tag.startsWith("get_") && (tag.endsWith("Detail") || tag.endsWith("DetailExt")));
+  }
+
+  private static String localName(Node n) {
+    String tag = n.getLocalName();
+    if (tag == null) {
+      tag = n.getNodeName();
+      int i = tag.indexOf(':');
+      if (i >= 0) {
+        tag = tag.substring(i+1);
+      }
+    }
+    return tag;
+  }
+
+  /** Compute a canonical string form of an element.  Attributes are
+   * sorted by name and whitespace-only text nodes are ignored, so elements
+   * which differ only in formatting have the same key.  Any other text is
+   * kept exactly, since whitespace inside a name or a keyedReference value
+   * may change the answer.
+   **/
+  static String canonicalKey(Element el) {
+    StringBuffer sb = new StringBuffer(256);
+    appendCanonical(sb, el);
+    return sb.toString();
+  }
+
+  private static void appendCanonical(StringBuffer sb, Node n) {
+    switch (n.getNodeType()) {
+    case Node.ELEMENT_NODE:
+      {
+        String name = n.getNodeName();
+        sb.append('<').append(name);
+        String ns = n.getNamespaceURI();
+        if (ns != null) {
+          sb.append(" {").append(ns).append('}');
+        }
+        NamedNodeMap attrs = n.getAttributes();
+        int l = attrs.getLength();
+        if (l > 0) {
+          String[] as = new String[l];
+          for (int i = 0; i < l; i++) {
+            Node a = attrs.item(i);
+            StringBuffer ab = new StringBuffer();
+            ab.append(a.getNodeName()).append("=\"");
+            appendEscaped(ab, a.getNodeValue());
+            as[i] = ab.append('"').toString();
+          }
+          Arrays.sort(as);
+          for (int i = 0; i < l; i++) {
+            sb.append(' ').append(as[i]);
+          }
+        }
+        sb.append('>');
+        for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+          appendCanonical(sb, c);
+        }
+        sb.append("</").append(name).append('>');
+      }
+      break;
+    case Node.TEXT_NODE:
+    case Node.CDATA_SECTION_NODE:
+      {
+        String text = n.getNodeValue();
+        if (text.trim().length() > 0) {
+          appendEscaped(sb, text);
+        }
+      }
+      break;
+    default:
+      // comments, processing instructions, etc do not affect the query
+      break;
+    }
+  }
+
+  private static void appendEscaped(StringBuffer sb, String text) {
+    for (int i = 0, l = text.length(); i < l; i++) {
+      char c = text.charAt(i);
+      if (c == '<') {
+        sb.append("&lt;");
+      } else if (c == '&') {
+        sb.append("&amp;");
+      } else if (c == '"') {
+        sb.append("&quot;");
+      } else {
+        sb.append(c);
+      }
+    }
+  }
+
+  /** @return the current cache generation, to be passed to #put **/
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  /** @return a private copy of the cached response, in a Document of
+   * its own, or null
+   **/
+  Element get(String key) {
+    Element el;
+    synchronized (this) {
+      el = (Element) map.get(key);
+      if (el == null) {
+        misses++;
+        return null;
+      } 
+      hits++;
+    }
+    return copyDocument(el);
+  }
+
+  /** Cache a copy of the response to the query with the specified key.
+   * The response itself is not retained.
+   * @param gen the generation observed before the response was computed
+   **/
+  void put(String key, Element response, long gen) {
+    synchronized (this) {
+      if (gen != generation) return;
+    }
+    Element copy = copyDocument(response);
+    synchronized (this) {
+      if (gen == generation) {
+        map.put(key, copy);
+      }
+    }
+  }
+
+  /** Builds the Documents made by #copyDocument.  DocumentBuilders are not
+   * thread-safe, so each thread has its own.
+   **/
+  private static final ThreadLocal docBuilder = new ThreadLocal() {
+      protected Object initialValue() {
+        synchronized (ResponseCache.class) { // nor are the factories
+          try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+          } catch (ParserConfigurationException pce) {
+            throw new RuntimeException("Could not create DocumentBuilder", pce);
+          }
+        }
+      }
+    };
+
+  /** @return a deep copy of el as the document element of a new Document.
+   * el is only read, so an element which nobody modifies (e.g. a cached 
+   * response) may be copied by several threads at once.
+   **/
+  static Element copyDocument(Element el) {
+    Document doc = ((DocumentBuilder) docBuilder.get()).newDocument();
+    Element copy = (Element) doc.importNode(el, true);
+    doc.appendChild(copy);
+    return copy;
+  }
+
+  /** Drop all cached responses **/
+  synchronized void invalidate() {
+    generation++;
+    invalidations++;
+    map.clear();
+  }
+
+  synchronized int size() { return map.size(); }
+  synchronized int getHits() { return hits; }
+  synchronized int getMisses() { return misses; }
+  synchronized int getEvictions() { return evictions; }
+  synchronized int getInvalidations() { return invalidations; }
+
+  public synchronized String toString() {
+    return "<ResponseCache "+map.size()+"/"+maxSize+
+      " hits="+hits+
+      " misses="+misses+
+      " evictions="+evictions+
+      " invalidations="+invalidations+">";
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.yp;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/** Merges the answers of several YP servers to the same find_* inquiry 
+ * into a single answer, for YPService#scatter.
+ * <p>
+ * The list answers (businessList, serviceList, tModelList, etc) hold their
+ * entries in a single "...Infos" child, the detail answers (bindingDetail, etc)
+ * hold them directly.  Entries are identified by their bindingKey, serviceKey, 
+ * tModelKey and businessKey attributes together (a serviceInfo also carries 
+ * the businessKey of its business, for instance), so an entry held by several
+ * servers appears only once.
+ **/
+final class ResultMerger {
+  private ResultMerger() {}
+
+  private static final String[] KEY_ATTRIBUTES = {
+    "bindingKey", "serviceKey", "tModelKey", "businessKey"
+  };
+
+  /** Can the answers to this query be merged? **/
+  static boolean isMergeable(Element qel) {
+    return localName(qel).startsWith("find_");
+  }
+
+  /** Merge answers.
+   * @param answers a non-empty List of answer Elements, in order of preference
+   * @param maxRows the most entries to keep, or 0 for all
+   * @return a new Element holding the merged answer
+   **/
+  static Element merge(List answers, int maxRows) {
+    Element merged = (Element) ((Element) answers.get(0)).cloneNode(true);
+    Element container = getContainer(merged);
+    Document doc = merged.getOwnerDocument();
+    boolean truncated = "true".equals(merged.getAttribute("truncated"));
+
+    Set seen = new HashSet();
+    int count = 0;
+    // dedup and trim the first answer in place
+    for (Node n = (container == null)?null:container.getFirstChild(); n != null; ) {
+      Node next = n.getNextSibling();
+      if (n.getNodeType() == Node.ELEMENT_NODE) {
+        if (!seen.add(keyOf((Element) n))) {
+          container.removeChild(n);
+        } else if (maxRows > 0 && count >= maxRows) {
+          truncated = true;
+          container.removeChild(n);
+        } else {
+          count++;
+        }
+      }
+      n = next;
+    }
+
+    for (int i = 1, l = answers.size(); i < l; i++) {
+      Element answer = (Element) answers.get(i);
+      if ("true".equals(answer.getAttribute("truncated"))) {
+        truncated = true;
+      }
+      Element c = getContainer(answer);
+      if (c == null) continue;  // empty list
+      if (container == null) {
+        // the first answer was an empty list with no ...Infos
+        container = (Element) doc.importNode(c, false);
+        merged.appendChild(container);
+      }
+      for (Node n = c.getFirstChild(); n != null; n = n.getNextSibling()) {
+        if (n.getNodeType() != Node.ELEMENT_NODE) continue;
+        if (!seen.add(keyOf((Element) n))) continue;
+        if (maxRows > 0 && count >= maxRows) {
+          truncated = true;
+          break;
+        }
+        container.appendChild(doc.importNode(n, true));
+        count++;
+      }
+    }
+
+    if (truncated) {
+      merged.setAttribute("truncated", "true");
+    }
+    return merged;
+  }
+
+  /** @return the element holding the entries of an answer, or null if it is
+   * a list without any
+   **/
+  private static Element getContainer(Element answer) {
+    if (localName(answer).endsWith("List")) {
+      for (Node n = answer.getFirstChild(); n != null; n = n.getNextSibling()) {
+        if (n.getNodeType() == Node.ELEMENT_NODE && localName(n).endsWith("Infos")) {
+          return (Element) n;
+        }
+      }
+      return null;
+    }
+    return answer;
+  }
+
+  /** @return the identity of an entry: all of its key attributes, or its
+   * whole content if it has none
+   **/
+  private static String keyOf(Element entry) {
+    StringBuffer sb = null;
+    for (int i = 0; i < KEY_ATTRIBUTES.length; i++) {
+      String v = entry.getAttribute(KEY_ATTRIBUTES[i]);
+      if (v != null && v.length() > 0) {
+        if (sb == null) sb = new StringBuffer();
+        sb.append(KEY_ATTRIBUTES[i]).append('=').append(v).append(' ');
+      }
+    }
+    return (sb == null)?ResponseCache.canonicalKey(entry):sb.toString();
+  }
+
+  private static String localName(Node n) {
+    String tag = n.getLocalName();
+    if (tag == null) {
+      tag = n.getNodeName();
+      int i = tag.indexOf(':');
+      if (i >= 0) {
+        tag = tag.substring(i+1);
+      }
+    }
+    return tag;
+  }
+}
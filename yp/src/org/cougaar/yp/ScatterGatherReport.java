@@ -0,0 +1,77 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.yp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.cougaar.core.mts.MessageAddress;
+
+/** The final context of a YPFuture submitted with YPService#scatter: which
+ * of the YP servers asked answered, which answered with a fault and which 
+ * did not answer in time.
+ **/
+public class ScatterGatherReport implements java.io.Serializable {
+  private final List answered = new ArrayList();
+  private final List faulted = new ArrayList();
+  private final List timedOut = new ArrayList();
+
+  ScatterGatherReport() {}
+
+  synchronized void addAnswered(MessageAddress server) { answered.add(server); }
+  synchronized void addFaulted(MessageAddress server) { faulted.add(server); }
+  synchronized void addTimedOut(MessageAddress server) { timedOut.add(server); }
+
+  /** @return the MessageAddresses of the servers whose answers were merged **/
+  public synchronized List getAnswered() { 
+    return Collections.unmodifiableList(new ArrayList(answered)); 
+  }
+
+  /** @return the MessageAddresses of the servers which answered with a UDDI fault **/
+  public synchronized List getFaulted() { 
+    return Collections.unmodifiableList(new ArrayList(faulted)); 
+  }
+
+  /** @return the MessageAddresses of the servers which did not answer in time
+   * or could not be reached.
+   **/
+  public synchronized List getTimedOut() { 
+    return Collections.unmodifiableList(new ArrayList(timedOut)); 
+  }
+
+  /** @return true if every server asked answered without a fault **/
+  public synchronized boolean isComplete() {
+    return faulted.isEmpty() && timedOut.isEmpty();
+  }
+
+  public synchronized String toString() {
+    return "<ScatterGatherReport answered="+answered+
+      " faulted="+faulted+
+      " timedOut="+timedOut+">";
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.yp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/** Chooses which of a community's YP servers should receive a query.
+ * <p>
+ * Publishes always go to the same server (by default, the one whose name sorts
+ * first) so that all of a community's publishes are applied in one place, as
+ * do queries tied to an authToken (see YPFuture#isAuthBound), since only the
+ * server which issued a token honors it.  Other inquiries
+ * are spread over the servers according to the policy implemented by 
+ * #selectInquiryServer.  YPClientComponent tells the selector when a query
+ * is sent and when its response arrives, so that policies may take the 
+ * number of outstanding queries and the observed response times into account.
+ * <p>
+ * The policy is chosen with the org.cougaar.yp.ServerSelection system property,
+ * which may be "first" (the default, which always uses the first server listed
+ * by the community), "roundRobin", "leastOutstanding", "latency", or the name of
+ * a ServerSelector subclass with a public no-argument constructor.
+ **/
+public abstract class ServerSelector {
+  private static final Logger logger = Logging.getLogger(ServerSelector.class);
+
+  public static final String SERVER_SELECTION_PROPERTY = "org.cougaar.yp.ServerSelection";
+
+  /** weight of a new latency observation in the running average **/
+  private static final double LATENCY_WEIGHT = 0.25;
+
+  /** MessageAddress -> ServerStats.  Sync on this. **/
+  private final HashMap stats = new HashMap(11);
+
+  /** Per-server statistics **/
+  protected static final class ServerStats {
+    /** queries sent but not yet answered **/
+    int outstanding = 0;
+    /** running average of the response time, in milliseconds, or -1 if unknown **/
+    double latency = -1.0;
+  }
+
+  /** Create the selector named by the org.cougaar.yp.ServerSelection property **/
+  public static ServerSelector getInstance() {
+    return getInstance(System.getProperty(SERVER_SELECTION_PROPERTY, "first"));
+  }
+
+  public static ServerSelector getInstance(String policy) {
+    if (policy.equals("first")) {
+      return new First();
+    } else if (policy.equals("roundRobin")) {
+      return new RoundRobin();
+    } else if (policy.equals("leastOutstanding")) {
+      return new LeastOutstanding();
+    } else if (policy.equals("latency")) {
+      return new LatencyWeighted();
+    } else {
+      try {
+        return (ServerSelector) Class.forName(policy).newInstance();
+      } catch (Exception e) {
+        logger.error("Unknown "+SERVER_SELECTION_PROPERTY+" \""+policy+"\", using \"first\"", e);
+        return new First();
+      }
+    }
+  }
+
+  /** Choose the server for a query.
+   * @param servers a non-empty List of MessageAddresses, in the order listed by the community
+   * @param isInquiry true if the query does not modify the database
+   **/
+  public MessageAddress select(List servers, boolean isInquiry) {
+    if (servers.size() == 1) {
+      return (MessageAddress) servers.get(0);
+    }
+    return isInquiry?selectInquiryServer(servers):selectPublishServer(servers);
+  }
+
+  /** @return true if the query may go to any server of a community: an 
+   * inquiry which is not tied to an authToken.
+   **/
+  public static boolean isSpreadable(YPFuture query) {
+    return query.isInquiry() && !query.isAuthBound();
+  }
+
+  /** Choose the server for a query, sending it where publishes go unless
+   * it #isSpreadable.
+   * @see #select(List, boolean, MessageAddress)
+   **/
+  public MessageAddress select(List servers, YPFuture query, MessageAddress avoid) {
+    return select(servers, isSpreadable(query), avoid);
+  }
+
+  /** Choose the server for a query, avoiding one which has not answered if
+   * there are others to choose from.
+   * @param servers a non-empty List of MessageAddresses, in the order listed by the community
+   * @param isInquiry true if the query does not modify the database
+   * @param avoid a server not to use if there are others, or null
+   **/
+  public MessageAddress select(List servers, boolean isInquiry, MessageAddress avoid) {
+    if (avoid != null && servers.size() > 1 && servers.contains(avoid)) {
+      servers = new ArrayList(servers);
+      servers.remove(avoid);
+    }
+    return select(servers, isInquiry);
+  }
+
+  /** @return the server whose name sorts first, so that every client picks the same one **/
+  protected MessageAddress selectPublishServer(List servers) {
+    MessageAddress best = null;
+    for (Iterator i = servers.iterator(); i.hasNext(); ) {
+      MessageAddress ma = (MessageAddress) i.next();
+      if (best == null || ma.getAddress().compareTo(best.getAddress()) < 0) {
+        best = ma;
+      }
+    }
+    return best;
+  }
+
+  /** Choose the server for an inquiry from a list of at least two **/
+  protected abstract MessageAddress selectInquiryServer(List servers);
+
+  /** Note that a query has been sent to a server **/
+  public synchronized void sent(MessageAddress server) {
+    getStats(server).outstanding++;
+  }
+
+  /** Note that a server did not answer a query in time.  Its average response
+   * time is raised to at least the time we waited.
+   * @param elapsed milliseconds since the query was sent
+   **/
+  public synchronized void timedOut(MessageAddress server, long elapsed) {
+    ServerStats s = getStats(server);
+    if (s.outstanding > 0) s.outstanding--;
+    s.latency = Math.max(s.latency, elapsed);
+  }
+
+  /** Note that a server answered a query.
+   * @param elapsed milliseconds since the query was sent
+   **/
+  public synchronized void answered(MessageAddress server, long elapsed) {
+    ServerStats s = getStats(server);
+    if (s.outstanding > 0) s.outstanding--;
+    if (s.latency < 0) {
+      s.latency = elapsed;
+    } else {
+      s.latency += LATENCY_WEIGHT * (elapsed - s.latency);
+    }
+  }
+
+  /** @return the statistics for a server.  Call while synchronized on this. **/
+  protected ServerStats getStats(MessageAddress server) {
+    ServerStats s = (ServerStats) stats.get(server);
+    if (s == null) {
+      s = new ServerStats();
+      stats.put(server, s);
+    }
+    return s;
+  }
+
+  public synchronized String toString() {
+    StringBuffer sb = new StringBuffer();
+    sb.append('<').append(getClass().getName());
+    for (Iterator i = stats.entrySet().iterator(); i.hasNext(); ) {
+      java.util.Map.Entry e = (java.util.Map.Entry) i.next();
+      ServerStats s = (ServerStats) e.getValue();
+      sb.append(' ').append(e.getKey()).
+        append("(outstanding=").append(s.outstanding).
+        append(" latency=").append((long) s.latency).append(')');
+    }
+    sb.append('>');
+    return sb.toString();
+  }
+
+  /** Always use the first server, as YPClientComponent always has **/
+  public static class First extends ServerSelector {
+    protected MessageAddress selectPublishServer(List servers) {
+      return (MessageAddress) servers.get(0);
+    }
+    protected MessageAddress selectInquiryServer(List servers) {
+      return (MessageAddress) servers.get(0);
+    }
+  }
+
+  /** Use each server in turn **/
+  public static class RoundRobin extends ServerSelector {
+    private int next = 0;       // sync on this
+    protected synchronized MessageAddress selectInquiryServer(List servers) {
+      next = (next+1) % servers.size();
+      return (MessageAddress) servers.get(next);
+    }
+  }
+
+  /** Use the server with the fewest unanswered queries from this agent **/
+  public static class LeastOutstanding extends ServerSelector {
+    private int next = 0;       // tie breaker, sync on this
+    protected synchronized MessageAddress selectInquiryServer(List servers) {
+      int n = servers.size();
+      next = (next+1) % n;
+      MessageAddress best = null;
+      int least = Integer.MAX_VALUE;
+      for (int i = 0; i < n; i++) {
+        MessageAddress ma = (MessageAddress) servers.get((next+i) % n);
+        int o = getStats(ma).outstanding;
+        if (o < least) {
+          least = o;
+          best = ma;
+        }
+      }
+      return best;
+    }
+  }
+
+  /** Choose servers at random, weighted by the inverse of their average
+   * response time.  Servers we haven't heard from yet are tried first.
+   **/
+  public static class LatencyWeighted extends ServerSelector {
+    private final Random random = new Random();
+    protected synchronized MessageAddress selectInquiryServer(List servers) {
+      int n = servers.size();
+      double[] weights = new double[n];
+      double total = 0.0;
+      for (int i = 0; i < n; i++) {
+        ServerStats s = getStats((MessageAddress) servers.get(i));
+        if (s.latency < 0) {
+          if (s.outstanding == 0) {
+            return (MessageAddress) servers.get(i); // go find out
+          }
+          weights[i] = 0.0;     // still waiting for its first answer
+        } else {
+          weights[i] = 1.0 / Math.max(1.0, s.latency);
+        }
+        total += weights[i];
+      }
+      if (total == 0.0) {
+        return (MessageAddress) servers.get(random.nextInt(n));
+      }
+      double r = random.nextDouble() * total;
+      for (int i = 0; i < n; i++) {
+        r -= weights[i];
+        if (r < 0) {
+          return (MessageAddress) servers.get(i);
+        }
+      }
+      return (MessageAddress) servers.get(n-1);
+    }
+  }
+}
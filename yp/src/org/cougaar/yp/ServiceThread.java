@@ -26,6 +26,9 @@
 
 package org.cougaar.yp;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.cougaar.core.mts.Message;
 import org.cougaar.core.service.ThreadService;
 import org.cougaar.core.thread.Schedulable;
@@ -38,40 +41,100 @@ public class ServiceThread {
     void dispatch(Message m);
   }
 
+  /** A Callback which would rather be handed all the messages
+   * drained in one cycle at once.
+   **/
+  public interface BatchCallback extends Callback {
+    /** @param messages a List of one or more Messages, in queue order **/
+    void dispatchBatch(List messages);
+  }
+
   private final Logger logger;
   private final String name;
   private final Callback callback;
 
+  private final int workers;
+
   public ServiceThread(Callback callback, Logger logger, String name) {
+    this(callback, logger, name, 1);
+  }
+
+  /** Construct a ServiceThread which may dispatch messages
+   * on up to <em>workers</em> pooled threads at once.  With
+   * more than one worker, callbacks may be invoked concurrently
+   * and in no particular order.
+   **/
+  public ServiceThread(Callback callback, Logger logger, String name, int workers) {
     this.callback = callback;
     this.logger = logger;
     this.name = name;
+    this.workers = (workers<1)?1:workers;
+  }
+
+  /** maximum number of messages to drain per cycle **/
+  private int maxBatch = 1;
+
+  /** Set the maximum number of queued messages to handle each time
+   * the service thread runs.  Values less than 1 mean drain
+   * everything available.  The default is 1.
+   **/
+  public void setMaxBatch(int maxBatch) {
+    this.maxBatch = maxBatch;
   }
 
   /** queue for incoming YP Messages - dequeued by the service pseudo-thread **/
   private final CircularQueue inQ = new CircularQueue(11);
 
-  /** The service thread **/
-  private Schedulable thread = null;
+  /** The service threads **/
+  private Schedulable[] threads = null;
+
+  /** index of the next thread to wake **/
+  private int nextThread = 0;   // sync on inQ
 
   public void start(ThreadService threadService) {
-    // set up the service thread
-    thread = threadService.getThread(this, new Runnable() {
+    Runnable runnable = new Runnable() {
         public void run() {
           try {
             cycle();
           } catch (Throwable e) {
             logger.error("Uncaught exception for "+callback, e);
           }
-        }}, name);
+        }};
+    // set up the service thread(s)
+    threads = new Schedulable[workers];
+    for (int i = 0; i < workers; i++) {
+      threads[i] = threadService.getThread(this, runnable, (workers==1)?name:(name+"#"+i));
+    }
   }
 
   // useful counters to tell if everything is getting dealt with
   private int ic = 0;           // sync on inQ
   private int oc = 0;           // sync on inQ
+  private int bc = 0;           // number of batches, sync on inQ
+  private int largestBatch = 0; // sync on inQ
+
+  /** @return the number of messages handled so far **/
+  public int getMessageCount() {
+    synchronized (inQ) { return oc; }
+  }
+
+  /** @return the number of cycles (batches) which handled at least one message **/
+  public int getBatchCount() {
+    synchronized (inQ) { return bc; }
+  }
+
+  /** @return the largest number of messages handled in a single cycle **/
+  public int getLargestBatch() {
+    synchronized (inQ) { return largestBatch; }
+  }
 
   /** Used to (re)start the service thread to handle queued YP messages **/
   private void wake() {
+    Schedulable thread;
+    synchronized (inQ) {
+      thread = threads[nextThread];
+      nextThread = (nextThread+1) % threads.length;
+    }
     thread.start();
   }
 
@@ -89,42 +152,55 @@ public class ServiceThread {
     wake();
   }
 
-  private final static boolean batchRequests = false;
-
   private void cycle() {
-    if (batchRequests) {
-      // service everything we can
-      while (true) {
-        if (! dispatchNext()) {
-          return;
-        }
-      }
+    List batch = nextBatch();
+    if (batch == null) {
+      return;
+    }
+
+    // handle it outside the inQ lock
+    if (callback instanceof BatchCallback) {
+      ((BatchCallback) callback).dispatchBatch(batch);
     } else {
-      if (! dispatchNext() ) {
-        return;
+      for (int i = 0, l = batch.size(); i < l; i++) {
+        callback.dispatch((Message) batch.get(i));
       }
+    }
+
+    boolean more;
+    synchronized (inQ) {
+      more = !inQ.isEmpty();
+    }
+    if (more) {
       wake();
     }
   }
 
-  private boolean dispatchNext() {
-    Message m;
-    // get the next message
+  /** @return up to maxBatch queued messages or null if the queue is empty **/
+  private List nextBatch() {
     synchronized (inQ) {
-      m = (Message) inQ.next();
-      if (m == null) {
-        // exit the loop if we are done
-        return false;
+      int n = inQ.size();
+      if (n == 0) {
+        return null;
+      }
+      if (maxBatch > 0 && n > maxBatch) {
+        n = maxBatch;
+      }
+
+      List batch = new ArrayList(n);
+      for (int i = 0; i < n; i++) {
+        batch.add(inQ.next());
+      }
+
+      oc += n;
+      bc++;
+      if (n > largestBatch) {
+        largestBatch = n;
       }
-      
-      oc++;
       if (logger.isDebugEnabled()) {
-        logger.debug(name+" Handling Message "+oc);
+        logger.debug(name+" Handling "+n+" Message(s) through "+oc+" in batch "+bc);
       }
+      return batch;
     }
-    
-    // handle it outside the inQ lock
-    callback.dispatch(m);
-    return true;
   }
 }
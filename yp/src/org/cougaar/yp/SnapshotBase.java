@@ -0,0 +1,448 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.yp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/**
+ * The most recent full (base) snapshot of a file-backed hsqldb database directory,
+ * shared by the DatabaseEnvelopes of a single YPServer.
+ * <p>
+ * hsqldb (1.7) keeps memory tables in its script file, appending each modifying
+ * statement to the end of the file and only rewriting it on CHECKPOINT or SHUTDOWN.
+ * So rather than zipping the whole directory on every persist, we keep the zip taken
+ * at the last checkpoint and record only the bytes appended to the script since then.
+ * <p>
+ * The zip is an Image, which is serialized on its own: a DatabaseEnvelope writes 
+ * only a reference to the Image of its base, followed by its delta.  The YPServer
+ * publishes each Image to the blackboard (see YPServer#publishSnapshotBase), so that
+ * persistence writes it once, and again only in full snapshots, and refers to it from
+ * the envelopes of later persists.  An Image which is not (yet) on the blackboard is
+ * simply serialized along with the envelope.
+ * <p>
+ * The base is recompacted by #compact when #needsCompaction says the appended bytes
+ * have grown too large or there have been too many persists, which the YPServer checks
+ * from its timer rather than while persisting.  #capture itself only takes a new base
+ * when the old one is no longer usable, e.g. when the script has been rewritten 
+ * behind our back.
+ * <p>
+ * Taking a new base only checkpoints the database and copies its files into a
+ * staging directory while the database is locked.  The staged copy is compressed 
+ * later, by #getImage, after the lock has been released.
+ **/
+class SnapshotBase {
+  private static final Logger logger = Logging.getLogger(SnapshotBase.class);
+
+  /** Persists between compactions **/
+  private static int COMPACTION_INTERVAL = 50;
+  private static final String COMPACTION_INTERVAL_PROPERTY =
+    "org.cougaar.yp.SnapshotCompactionInterval";
+
+  static {
+    COMPACTION_INTERVAL =
+      Integer.getInteger(COMPACTION_INTERVAL_PROPERTY, COMPACTION_INTERVAL).intValue();
+  }
+
+  /** number of script bytes before the base offset used to recognize a rewritten script **/
+  private static final int FINGERPRINT_LENGTH = 256;
+
+  private final File directory;
+  private final String scriptName;
+  private final File stagingDirectory; // copy of the directory awaiting compression
+
+  private volatile boolean valid = false; // false if we need a new base
+
+  // all sync on this
+  private Image image = null;   // the compressed base, unless staged
+  private long scriptOffset = 0L; // length of the script file in base
+  private long fingerprint = 0L; // crc of the script bytes just before scriptOffset
+  private int deltas = 0;       // number of deltas taken from this base
+  private boolean staged = false; // true if the base is in stagingDirectory, not image
+
+  /**
+   * @param directory the database directory
+   * @param scriptName the name of the hsqldb script file within directory
+   **/
+  SnapshotBase(File directory, String scriptName) {
+    this.directory = directory;
+    this.scriptName = scriptName;
+    File parent = directory.getAbsoluteFile().getParentFile();
+    this.stagingDirectory = new File(parent, directory.getName()+".staging");
+  }
+
+  File getDirectory() { return directory; }
+  String getScriptName() { return scriptName; }
+
+  /** Forget the base so that the next capture takes a full snapshot.  Call
+   * whenever hsqldb may have rewritten its script, e.g. after closing the last
+   * connection to the database.
+   **/
+  void invalidate() {
+    valid = false;
+  }
+
+  /** Capture the state of the database.
+   * Must be called while synchronized on and stopped by the locker, since the 
+   * database must not change while we look at it.  The caller should hold
+   * the lock on this object until it has finished with #getImage, so that 
+   * another capture cannot replace the base in the meantime.
+   * @return the bytes to append to the base's script file (possibly empty).
+   **/
+  synchronized byte[] capture(DatabaseEnvelope.Locker locker) throws IOException {
+    File script = new File(directory, scriptName);
+    long length = script.length();
+
+    if (valid && length >= scriptOffset && fingerprint == fingerprint(script, scriptOffset)) {
+      byte[] delta = readTail(script, scriptOffset, length);
+      deltas++;
+      if (logger.isInfoEnabled()) {
+        logger.info("Snapshot of "+directory+" is base plus delta "+deltas+
+                    " of "+delta.length+" bytes");
+      }
+      return delta;
+    }
+
+    takeBase(locker);
+    return new byte[0];
+  }
+
+  /** @return true if the base should be retaken by #compact: the script has been 
+   * rewritten, or too much has been appended to it, or there have been too many
+   * persists since the base was taken.
+   **/
+  synchronized boolean needsCompaction() {
+    if (!valid) {
+      return true;
+    }
+    File script = new File(directory, scriptName);
+    long delta = script.length() - scriptOffset;
+    if (delta < 0 ||            // shrunk: the script has been rewritten
+        deltas >= COMPACTION_INTERVAL ||
+        delta > (scriptOffset/2)) {
+      return true;
+    }
+    try {
+      return fingerprint != fingerprint(script, scriptOffset);
+    } catch (IOException ioe) {
+      return true;
+    }
+  }
+
+  /** @return true if nothing has been appended to the script since the base was taken **/
+  synchronized boolean isCurrent() {
+    File script = new File(directory, scriptName);
+    if (!valid || script.length() != scriptOffset) {
+      return false;
+    }
+    try {
+      return fingerprint == fingerprint(script, scriptOffset);
+    } catch (IOException ioe) {
+      return false;
+    }
+  }
+
+  /** Take a new base, checkpointing the database and compressing its files.  
+   * Must not be called while synchronized on the locker by another thread which
+   * may want the lock on this object, since we take the locker while copying the 
+   * database files, and compress them once it has been released.
+   * @return the new base
+   **/
+  synchronized Image compact(DatabaseEnvelope.Locker locker) throws IOException {
+    synchronized (locker) {
+      try {
+        locker.stop();
+        takeBase(locker);
+      } finally {
+        locker.start();
+      }
+    }
+    return getImage();
+  }
+
+  /** Checkpoint the database and stage its files as the new base.  Called while
+   * synchronized on and stopped by the locker.
+   **/
+  private void takeBase(DatabaseEnvelope.Locker locker) throws IOException {
+    valid = false;
+    locker.checkpoint();
+    File script = new File(directory, scriptName);
+    long total = stageDirectory();
+    staged = true;
+    scriptOffset = script.length();
+    fingerprint = fingerprint(script, scriptOffset);
+    deltas = 0;
+    valid = true;
+    if (logger.isInfoEnabled()) {
+      logger.info("Snapshot of "+directory+" is new base of "+total+" bytes");
+    }
+  }
+
+  /** @return the Image of the base taken by the last #capture or #compact, compressing
+   * it first if it has only been staged, or null if no base has been taken.  Should not
+   * be called while holding the database lock.  An Image which has been replaced is not
+   * discarded here, since it may still be on the blackboard: see Image#discard.
+   **/
+  synchronized Image getImage() throws IOException {
+    if (staged) {
+      try {
+        image = new Image(directory.getPath(), zipDirectory(stagingDirectory));
+      } catch (IOException ioe) {
+        valid = false;          // try again from scratch next time
+        throw ioe;
+      } finally {
+        staged = false;
+        clearDirectory(stagingDirectory);
+      }
+      if (logger.isInfoEnabled()) {
+        logger.info("Compressed base of "+directory+" to "+image);
+      }
+    }
+    return image;
+  }
+
+  /** Copy the files of the database directory to the staging directory.
+   * @return the number of bytes copied
+   **/
+  private long stageDirectory() throws IOException {
+    stagingDirectory.mkdirs();
+    clearDirectory(stagingDirectory);
+    long total = 0L;
+    File[] files = directory.listFiles();
+    for (int i=0; i<files.length; i++) {
+      File f = files[i];
+      if (! f.isFile()) continue; // skip any directories
+      total += copyFile(f, new File(stagingDirectory, f.getName()));
+    }
+    return total;
+  }
+
+  /** copy a file with channel transfers, which avoids copying through the heap **/
+  static long copyFile(File from, File to) throws IOException {
+    FileChannel in = new FileInputStream(from).getChannel();
+    try {
+      FileChannel out = new FileOutputStream(to).getChannel();
+      try {
+        long size = in.size();
+        long pos = 0L;
+        while (pos < size) {
+          pos += in.transferTo(pos, size - pos, out);
+        }
+        return size;
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void clearDirectory(File dir) {
+    File[] files = dir.listFiles();
+    if (files == null) return;
+    for (int i=0; i<files.length; i++) {
+      files[i].delete();
+    }
+  }
+
+  /** zip all the files in a directory into a new file next to the database directory **/
+  private File zipDirectory(File source) throws IOException {
+    File zip = File.createTempFile(directory.getName()+".base", ".zip",
+                                   directory.getAbsoluteFile().getParentFile());
+    zip.deleteOnExit();
+    boolean done = false;
+    ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zip)));
+    try {
+      // we'll leave it the default for now since this stuff is easily compressed.
+      File[] files = source.listFiles();
+      byte[] buf = new byte[1024];
+      for (int i=0; i<files.length; i++) {
+        File f = files[i];
+        if (! f.isFile()) continue; // skip any directories
+
+        ZipEntry ze = new ZipEntry(f.getName());
+        zos.putNextEntry(ze);
+
+        // copy the file to the zip stream
+        BufferedInputStream fin = new BufferedInputStream(new FileInputStream(f));
+        int len;
+        while ( (len = fin.read(buf,0,1024)) > 0) {
+          zos.write(buf,0,len);
+        }
+        fin.close();
+      
+        zos.closeEntry();
+      }
+      zos.close();
+      done = true;
+    } finally {
+      if (!done) {
+        zos.close();
+        zip.delete();
+      }
+    }
+    return zip;
+  }
+
+  /** @return the crc of the bytes of the file just before offset **/
+  static long fingerprint(File f, long offset) throws IOException {
+    long start = Math.max(0L, offset - FINGERPRINT_LENGTH);
+    if (f.length() < offset) {
+      return -1L;               // can't match
+    }
+    byte[] buf = new byte[(int) (offset - start)];
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try {
+      raf.seek(start);
+      raf.readFully(buf);
+    } finally {
+      raf.close();
+    }
+    CRC32 crc = new CRC32();
+    crc.update(buf);
+    return crc.getValue();
+  }
+
+  /** @return the complete lines of the file between offset and length **/
+  static byte[] readTail(File f, long offset, long length) throws IOException {
+    byte[] buf = new byte[(int) (length - offset)];
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try {
+      raf.seek(offset);
+      raf.readFully(buf);
+    } finally {
+      raf.close();
+    }
+    // drop any partial last line
+    int end = buf.length;
+    while (end > 0 && buf[end-1] != '\n') {
+      end--;
+    }
+    if (end == buf.length) {
+      return buf;
+    }
+    byte[] lines = new byte[end];
+    System.arraycopy(buf, 0, lines, 0, end);
+    return lines;
+  }
+
+  /** A zip of the database directory as of a base, kept in a file.  Serializing
+   * an Image streams the zip in bounded chunks (see ChunkedOutputStream), and reading
+   * one spools it to a file again, as DatabaseEnvelope does with its delta.
+   **/
+  static final class Image implements Serializable {
+    private final String name;  // the database directory
+    private final long timestamp;
+    private transient File file; // null once discarded
+
+    Image(String name, File file) {
+      this.name = name;
+      this.file = file;
+      timestamp = System.currentTimeMillis();
+    }
+
+    /** @return the name of the database directory this is an image of **/
+    String getName() { return name; }
+
+    /** @return a stream of the zip, which the caller must close **/
+    synchronized InputStream open() throws IOException {
+      if (file == null) {
+        throw new IOException("Discarded "+this);
+      }
+      return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    /** Delete the zip.  Call once the Image has been replaced and is no longer
+     * on the blackboard, since persistence may still need to write it until then.
+     **/
+    synchronized void discard() {
+      if (file != null) {
+        file.delete();
+        file = null;
+      }
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+      out.defaultWriteObject();
+      InputStream in = open();
+      try {
+        ChunkedOutputStream cos = new ChunkedOutputStream(out);
+        byte[] buf = new byte[ChunkedOutputStream.CHUNK_SIZE];
+        int len;
+        while ( (len = in.read(buf)) > 0) {
+          cos.write(buf, 0, len);
+        }
+        cos.close();
+      } finally {
+        in.close();
+      }
+      if (logger.isInfoEnabled()) logger.info("Serialized "+this);
+    }
+
+    private void readObject(ObjectInputStream in) throws ClassNotFoundException, IOException {
+      in.defaultReadObject();
+      File spool = DatabaseEnvelope.createSpool();
+      OutputStream os = new BufferedOutputStream(new FileOutputStream(spool));
+      try {
+        ChunkedInputStream cis = new ChunkedInputStream(in);
+        byte[] buf = new byte[ChunkedOutputStream.CHUNK_SIZE];
+        int len;
+        while ( (len = cis.read(buf)) > 0) {
+          os.write(buf, 0, len);
+        }
+      } finally {
+        os.close();
+      }
+      synchronized (this) {
+        file = spool;
+      }
+      if (logger.isInfoEnabled()) logger.info("Got "+this);
+    }
+
+    public synchronized String toString() {
+      return "SnapshotBase.Image of "+name+" @"+timestamp+
+        ((file==null)?" (discarded)":" ("+file.length()+" bytes)");
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.w3c.dom.Element;
+
+/** The responses to a YPBatchQueryMessage, in the same order as its queries.
+ * The message itself has no element or key.
+ **/
+public class YPBatchResponseMessage extends YPResponseMessage {
+  private transient Element[] elements;
+  /** the encoded elements, until each is decoded by getElement **/
+  private transient byte[][] encoded;
+  private Object[] keys;
+
+  protected YPBatchResponseMessage(MessageAddress s, MessageAddress d, 
+                                   Element[] elements, Object[] keys) {
+    super(s,d,null,null);
+    this.elements = elements;
+    this.keys = keys;
+  }
+
+  /** @return the number of responses in the batch **/
+  int size() { return elements.length; }
+
+  /** get the response DOM element to the i-th query **/
+  synchronized Element getElement(int i) {
+    if (elements[i] == null && encoded != null && encoded[i] != null) {
+      elements[i] = ElementCodec.decode(encoded[i]);
+      encoded[i] = null;
+    }
+    return elements[i];
+  }
+
+  /** get the YP query key of the i-th query **/
+  Object getKey(int i) { return keys[i]; }
+
+  private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(elements.length);
+    for (int i = 0; i < elements.length; i++) {
+      writeElement(out, (elements[i] != null) ? ElementCodec.encode(elements[i]) : 
+                   (encoded == null) ? null : encoded[i]);
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    int n = in.readInt();
+    elements = new Element[n];
+    encoded = new byte[n][];
+    for (int i = 0; i < n; i++) {
+      encoded[i] = readElement(in);
+    }
+  }
+}
@@ -26,17 +26,20 @@
 
 package org.cougaar.yp;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 
 import org.cougaar.core.agent.service.MessageSwitchService;
+import org.cougaar.core.agent.service.alarm.Alarm;
 import org.cougaar.core.blackboard.BlackboardClient;
 import org.cougaar.core.blackboard.IncrementalSubscription;
 import org.cougaar.core.blackboard.SubscriptionWatcher;
@@ -46,9 +49,12 @@ import org.cougaar.core.component.ServiceProvider;
 import org.cougaar.core.mts.Message;
 import org.cougaar.core.mts.MessageAddress;
 import org.cougaar.core.mts.MessageHandler;
+import org.cougaar.core.service.AlarmService;
 import org.cougaar.core.service.BlackboardService;
 import org.cougaar.core.service.ThreadService;
 import org.cougaar.core.service.community.Community;
+import org.cougaar.core.service.community.CommunityChangeEvent;
+import org.cougaar.core.service.community.CommunityChangeListener;
 import org.cougaar.core.service.community.CommunityResponse;
 import org.cougaar.core.service.community.CommunityResponseListener;
 import org.cougaar.core.service.community.CommunityService;
@@ -57,6 +63,8 @@ import org.cougaar.core.thread.Schedulable;
 import org.cougaar.util.UnaryPredicate;
 import org.cougaar.util.log.Logger;
 import org.cougaar.util.log.Logging;
+import org.uddi4j.UDDIElement;
+import org.uddi4j.UDDIException;
 import org.uddi4j.transport.TransportException;
 import org.w3c.dom.Element;
 
@@ -68,6 +76,79 @@ import org.w3c.dom.Element;
 public class YPClientComponent extends ComponentSupport {
   private static final Logger logger = Logging.getLogger(YPClientComponent.class);  
 
+  /** Maximum number of inquiry answers to cache, 0 to disable the cache.
+   * The cache is flushed whenever this agent submits a publish, and again
+   * when the publish completes.
+   **/
+  private static int CLIENT_CACHE_SIZE = 0;
+  private static final String CLIENT_CACHE_SIZE_PROPERTY =
+  "org.cougaar.yp.ClientCacheSize";
+
+  /** Milliseconds to keep a cached answer **/
+  private static int CLIENT_CACHE_TTL = 60 * 1000;
+  private static final String CLIENT_CACHE_TTL_PROPERTY =
+  "org.cougaar.yp.ClientCacheTTL";
+
+  /** Milliseconds to remember that a search found no answer, 0 to always retry **/
+  private static int CLIENT_CACHE_NEGATIVE_TTL = 5 * 1000;
+  private static final String CLIENT_CACHE_NEGATIVE_TTL_PROPERTY =
+  "org.cougaar.yp.ClientCacheNegativeTTL";
+
+  /** If true, an inquiry identical to one already in progress waits for
+   * that one's answer instead of being sent again.
+   **/
+  private static final boolean COALESCE_INQUIRIES =
+    Boolean.valueOf(System.getProperty("org.cougaar.yp.CoalesceInquiries", "true")).booleanValue();
+
+  /** Milliseconds to wait for a YP server to answer a query, 0 to wait forever **/
+  private static int QUERY_TIMEOUT = 5 * 60 * 1000;
+  private static final String QUERY_TIMEOUT_PROPERTY =
+  "org.cougaar.yp.QueryTimeout";
+
+  /** Number of times to resend a timed out inquiry to another server of the same community **/
+  private static int QUERY_RETRIES = 1;
+  private static final String QUERY_RETRIES_PROPERTY =
+  "org.cougaar.yp.QueryRetries";
+
+  /** Number of community levels queried at once by a parallel hierarchical search **/
+  private static int FAN_OUT_LEVELS = 3;
+  private static final String FAN_OUT_LEVELS_PROPERTY =
+  "org.cougaar.yp.FanOutLevels";
+
+  /** If true, remember resolved YP contexts until the communities change **/
+  private static final boolean CONTEXT_CACHE =
+    Boolean.valueOf(System.getProperty("org.cougaar.yp.ContextCache", "true")).booleanValue();
+
+  /** If true, queries to a YPServer in the same node skip MTS and the DOM.
+   * Inquiries known to be bound for one are not cached or coalesced either.
+   **/
+  private static final boolean LOCAL_FAST_PATH =
+    Boolean.valueOf(System.getProperty("org.cougaar.yp.LocalFastPath", "true")).booleanValue();
+
+  /** Number of cache lookups between statistics reports **/
+  private static final int CLIENT_CACHE_REPORT_INTERVAL = 1000;
+
+  static {
+    CLIENT_CACHE_SIZE = 
+      Integer.getInteger(CLIENT_CACHE_SIZE_PROPERTY, CLIENT_CACHE_SIZE).intValue();
+    CLIENT_CACHE_TTL = 
+      Integer.getInteger(CLIENT_CACHE_TTL_PROPERTY, CLIENT_CACHE_TTL).intValue();
+    CLIENT_CACHE_NEGATIVE_TTL = 
+      Integer.getInteger(CLIENT_CACHE_NEGATIVE_TTL_PROPERTY, CLIENT_CACHE_NEGATIVE_TTL).intValue();
+    QUERY_TIMEOUT = 
+      Integer.getInteger(QUERY_TIMEOUT_PROPERTY, QUERY_TIMEOUT).intValue();
+    QUERY_RETRIES = 
+      Integer.getInteger(QUERY_RETRIES_PROPERTY, QUERY_RETRIES).intValue();
+    FAN_OUT_LEVELS = 
+      Math.max(1, Integer.getInteger(FAN_OUT_LEVELS_PROPERTY, FAN_OUT_LEVELS).intValue());
+  }
+
+  /** cache of inquiry answers, null if disabled **/
+  private final ClientResponseCache cache =
+    (CLIENT_CACHE_SIZE > 0) ? 
+    new ClientResponseCache(CLIENT_CACHE_SIZE, CLIENT_CACHE_TTL, CLIENT_CACHE_NEGATIVE_TTL) :
+    null;
+
   private MessageSwitchService mss = null;
   private YPServiceProvider ypsp;
   private MessageAddress originMA;
@@ -75,8 +156,10 @@ public class YPClientComponent extends ComponentSupport {
   private YPLP lp;
   private ThreadService threadService;
   private CommunityService communityService;
+  private AlarmService alarmService;
 
   public void setThreadService(ThreadService ts) { this.threadService = ts; }
+  public void setAlarmService(AlarmService as) { this.alarmService = as; }
   public void setCommunityService(CommunityService cs) { this.communityService = cs; }
 
   public void load() {
@@ -107,6 +190,47 @@ public class YPClientComponent extends ComponentSupport {
 
     ypsp = new YPServiceProvider();
     sb.addService(YPService.class, ypsp);
+
+    if (contextCache != null && communityService != null) {
+      communityListener = new CommunityChangeListener() {
+          public String getCommunityName() { return null; } // all of them
+          public void communityChanged(CommunityChangeEvent event) {
+            if (logger.isDebugEnabled()) {
+              logger.debug("communityChanged: "+event.getCommunityName()+
+                           " flushing "+contextCache);
+            }
+            contextCache.invalidate();
+          }
+        };
+      communityService.addListener(communityListener);
+    }
+  }
+
+  public void unload() {
+    if (cache != null && logger.isInfoEnabled()) {
+      logger.info(originMA + " " + cache);
+    }
+    if (coalescer != null && logger.isInfoEnabled()) {
+      logger.info(originMA + " " + coalescer);
+    }
+    if (communityListener != null) {
+      communityService.removeListener(communityListener);
+      communityListener = null;
+    }
+    if (contextCache != null && logger.isInfoEnabled()) {
+      logger.info(originMA + " " + contextCache);
+    }
+    synchronized (selects) {
+      if (reaper != null) {
+        reaper.cancel();
+        reaper = null;
+      }
+    }
+    if (logger.isInfoEnabled()) {
+      logger.info(originMA + " unloading with " + getOutstandingQueries() + 
+                  " outstanding queries, " + timeouts + " timed out");
+    }
+    super.unload();
   }
 
   //
@@ -128,6 +252,14 @@ public class YPClientComponent extends ComponentSupport {
     return serviceThread;
   }
 
+  /** Queues the answers of local YPServers for our service thread **/
+  private final YPLocalQueryMessage.Receiver localReceiver = 
+    new YPLocalQueryMessage.Receiver() {
+      public void receive(MessageAddress server, Object key, Object response) {
+        getServiceThread().addMessage(new YPLocalResponseMessage(server, originMA, response, key));
+      }
+    };
+
 
   // 
   // resolver
@@ -138,27 +270,74 @@ public class YPClientComponent extends ComponentSupport {
     mss.sendMessage(m);
   }
 
-  /** Convert a YP context to a MessageAddress supporting the YP application **/
+  /** resolved YP contexts, null if disabled **/
+  private final ContextCache contextCache = CONTEXT_CACHE ? new ContextCache() : null;
+  /** flushes contextCache when communities change **/
+  private CommunityChangeListener communityListener = null;
+
+  /** chooses among the YP servers of a community **/
+  private final ServerSelector serverSelector = ServerSelector.getInstance();
+
+  /** @deprecated use #lookup(Object, boolean) **/
   protected MessageAddress lookup(Object context) {
+    return lookup(context, false);
+  }
+
+  protected MessageAddress lookup(Object context, boolean isInquiry) {
+    return lookup(context, isInquiry, null);
+  }
+
+  /** Convert a YP context to the MessageAddress of the server for a query.
+   * Publishes and queries tied to an authToken are handled like publishes.
+   * @param avoid a server not to use if the community has others, or null
+   * @see ServerSelector#isSpreadable
+   **/
+  protected MessageAddress lookup(Object context, YPFuture query, MessageAddress avoid) {
+    return lookup(context, ServerSelector.isSpreadable(query), avoid);
+  }
+
+  /** Convert a YP context to a MessageAddress supporting the YP application.
+   * @param isInquiry true if the query to be sent will not modify the database,
+   * nor use an authToken.  
+   * Inquiries may be spread over the servers of a community, publishes always
+   * go to the same one, which is never a read-only replica if there is another.
+   * @param avoid a server not to use if the community has others, or null
+   **/
+  protected MessageAddress lookup(Object context, boolean isInquiry, MessageAddress avoid) {
     if (context instanceof MessageAddress) {
       return ((MessageAddress) context);
     } else if (context instanceof Community) {
-      Set ypAgents = ypServers((Community) context);
+      Set ypAgents = (contextCache != null) ?
+        contextCache.getServers((Community) context) :
+        ypServers((Community) context);
 
       if (logger.isDebugEnabled()) {
 	logger.debug("lookup: ypAgents " + ypAgents + " size = " + ypAgents.size());
       }
       
-      
-      for (Iterator iterator = ypAgents.iterator();
-	   iterator.hasNext();) {
-	MessageAddress ma = 
-	  MessageAddress.getMessageAddress(((Entity) (iterator.next())).getName());
-	if ((iterator.hasNext()) && (logger.isDebugEnabled())) {
-	  logger.debug(context + " Community has multiple YP servers. Using " +
-			 ma.toString());
-	}
-	return ma;
+      if (!ypAgents.isEmpty()) {
+        List servers = new ArrayList(ypAgents.size());
+        List replicas = null;
+        for (Iterator iterator = ypAgents.iterator();
+             iterator.hasNext();) {
+          Entity entity = (Entity) iterator.next();
+          MessageAddress server = MessageAddress.getMessageAddress(entity.getName());
+          if (!isInquiry && isReplica(entity)) {
+            if (replicas == null) replicas = new ArrayList(ypAgents.size());
+            replicas.add(server);
+          } else {
+            servers.add(server);
+          }
+        }
+        if (servers.isEmpty()) {
+          servers = replicas;   // which will refuse the publish
+        }
+        MessageAddress ma = serverSelector.select(servers, isInquiry, avoid);
+        if ((servers.size() > 1) && (logger.isDebugEnabled())) {
+          logger.debug(context + " Community has multiple YP servers. Using " +
+                       ma.toString() + " " + serverSelector);
+        }
+        return ma;
       }
 
       // If we got to here => no YPServer
@@ -183,8 +362,21 @@ public class YPClientComponent extends ComponentSupport {
    * Next context will be null if there is no next context.
    * @note callback.invoke may be called from within getYPServerContext
    **/
-  private void getYPServerContext(final String agentName,
-				  final YPService.NextContextCallback callback) {
+  private void getYPServerContext(String agentName,
+				  YPService.NextContextCallback callback) {
+    if (contextCache != null && agentName != null && !agentName.equals("")) {
+      String key = ContextCache.agentKey(agentName);
+      if (contextCache.resolve(key, callback)) {
+        return;
+      }
+      callback = contextCache.remember(key, callback);
+    }
+    resolveYPServerContext(agentName, callback);
+  }
+
+  /** Resolve the YP server context for an agent with the community service **/
+  private void resolveYPServerContext(final String agentName,
+                                      final YPService.NextContextCallback callback) {
     
     if ((agentName == null) || (agentName.equals(""))) {
       // nowhere to go 
@@ -196,8 +388,8 @@ public class YPClientComponent extends ComponentSupport {
     CommunityResponseListener crl = new CommunityResponseListener() {
       public void getResponse(CommunityResponse resp){
 	// Found the parents so reenter with the same context
-	getYPServerContext(agentName,
-			   callback);
+	resolveYPServerContext(agentName,
+			       callback);
       }
     };
 
@@ -279,8 +471,8 @@ public class YPClientComponent extends ComponentSupport {
    * Next context will be null if there is no next context.
    * @note callback.invoke may be called from within nextYPServerContext
    **/
-  private void nextYPServerContext(final Object currentContext,
-				   final YPService.NextContextCallback callback) {
+  private void nextYPServerContext(Object currentContext,
+				   YPService.NextContextCallback callback) {
     
     if ((currentContext != null) &&
         (!(currentContext instanceof Community))) {
@@ -289,12 +481,26 @@ public class YPClientComponent extends ComponentSupport {
       return;
     }
 
+    if (contextCache != null) {
+      String key = ContextCache.nextKey(currentContext);
+      if (contextCache.resolve(key, callback)) {
+        return;
+      }
+      callback = contextCache.remember(key, callback);
+    }
+    resolveNextYPServerContext(currentContext, callback);
+  }
+
+  /** Resolve the next context to search with the community service **/
+  private void resolveNextYPServerContext(final Object currentContext,
+                                          final YPService.NextContextCallback callback) {
+
     
     CommunityResponseListener crl = new CommunityResponseListener() {
       public void getResponse(CommunityResponse resp){
 	// Found the parents so reenter with the same context
-	nextYPServerContext(currentContext,
-			    callback);
+	resolveNextYPServerContext(currentContext,
+				   callback);
       }
     };
     
@@ -408,17 +614,13 @@ public class YPClientComponent extends ComponentSupport {
 		       nextContext, ex);
 	}
 	// really shouldn't happen unless there is something broken with the context tree
-	query.setFinalContext(currentContext);
-	query.setException(ex);
-	kickLP(query);
+	complete(query, currentContext, ex);
       } 
     } else {
       if (logger.isDebugEnabled()) {
 	logger.debug("Failed search with no result");
       }
-      query.setFinalContext(currentContext); // last queried context
-      query.set(null);      // nobody answered
-      kickLP(query);
+      complete(query, currentContext, null); // nobody answered
     }
   }
 
@@ -449,6 +651,19 @@ public class YPClientComponent extends ComponentSupport {
 
   private static final String YP_AGENT_FILTER = "(Role=YPServer)";
 
+  /** Role of a YPServer which is a read-only replica or standby of another, 
+   * in addition to YPServer.  A standby drops it when it takes over.
+   * @see YPServer#setParameter
+   **/
+  public static final String YP_REPLICA_ROLE = "YPReplica";
+
+  /** test if the specified YP community member is a read-only replica **/
+  public static boolean isReplica(Entity entity) {
+    Attributes attributes = entity.getAttributes();
+    Attribute role = (attributes == null) ? null : attributes.get("Role");
+    return (role != null) && role.contains(YP_REPLICA_ROLE);
+  }
+
   /** Get the set of yp servers for a given community.
    */
   public static Set ypServers(Community community) {
@@ -466,9 +681,8 @@ public class YPClientComponent extends ComponentSupport {
   }
 
   /** Return true IFF the element represents an actual answer (or positive failure) **/
-  private boolean isResponseComplete(YPFuture r, Element e) {
-    return ((r.getSearchMode() != 
-	     YPProxy.SearchMode.HIERARCHICAL_COMMUNITY_SEARCH) ||
+  private boolean isResponseComplete(YPFuture r, Object e) {
+    return ((!YPProxy.SearchMode.isHierarchicalSearchMode(r.getSearchMode())) ||
 	    (e != null));
   }
 
@@ -507,9 +721,178 @@ public class YPClientComponent extends ComponentSupport {
   /** Submit a request.
    */
   private void submit(final YPFuture r) throws TransportException {
-    ((YPFutureImpl) r).submitted();
-    
-    if (!(r.getInitialContext() == null)) {
+    YPFutureImpl q = (YPFutureImpl) r;
+    q.submitted();
+
+    // keying needs the DOM, which the local fast path does without
+    String key = 
+      ((cache != null || coalescer != null) && !isServedLocally(q)) ?
+      ClientResponseCache.keyFor(r) : null;
+    if (!r.isInquiry()) {
+      publishing();             // we're changing something, so trust nothing
+    }
+    if (cache != null) {
+      q.setCacheGeneration(cache.getGeneration());
+      if (key != null && answerFromCache(q, key)) {
+        return;
+      }
+    }
+    if (key != null) {
+      q.setInquiryKey(key);
+      if (coalescer != null && coalescer.join(q)) {
+        if (logger.isDebugEnabled()) {
+          logger.debug("submit: "+r+" waiting for identical query in progress");
+        }
+        return;
+      }
+    }
+
+    try {
+      start(r);
+    } catch (TransportException te) {
+      if (coalescer != null) {
+        kickLP(coalescer.failFollowers(q, te));
+      }
+      throw te;
+    }
+  }
+
+  /** @return true if the query will go straight to a YPServer in this node,
+   * as far as we can tell without resolving its context: if its first 
+   * context is a local server, or a community whose servers are all local.
+   * Such queries are neither cached nor coalesced here, since their keys 
+   * would need the DOM.  The server caches its answers itself.
+   **/
+  private boolean isServedLocally(YPFutureImpl q) {
+    if (!LOCAL_FAST_PATH || q.getRequest() == null ||
+        q.getSearchMode() == YPProxy.SearchMode.PARALLEL_HIERARCHICAL_COMMUNITY_SEARCH) {
+      return false;
+    }
+    Object context = q.getInitialContext();
+    if (context == null && contextCache != null) {
+      context = contextCache.peek(ContextCache.nextKey(null));
+    }
+    if (context instanceof MessageAddress) {
+      return YPServer.getLocalServer((MessageAddress) context) != null;
+    } else if (context instanceof Community) {
+      Set ypAgents = (contextCache != null) ?
+        contextCache.getServers((Community) context) :
+        ypServers((Community) context);
+      if (ypAgents.isEmpty()) {
+        return false;
+      }
+      for (Iterator i = ypAgents.iterator(); i.hasNext(); ) {
+        String name = ((Entity) i.next()).getName();
+        if (YPServer.getLocalServer(MessageAddress.getMessageAddress(name)) == null) {
+          return false;
+        }
+      }
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  /** Submit several queries for the same context in a single message.
+   * @see YPService#submitBatch
+   **/
+  private void submitBatch(final YPFuture[] rs) throws TransportException {
+    if (rs.length == 0) return;
+    final Object context = rs[0].getInitialContext();
+    for (int i = 0; i < rs.length; i++) {
+      YPFuture r = rs[i];
+      Object c = r.getInitialContext();
+      if ((c == null) ? (context != null) : !c.equals(context)) {
+        throw new IllegalArgumentException("Batched queries must share a context: "+r);
+      }
+    }
+    for (int i = 0; i < rs.length; i++) {
+      ((YPFutureImpl) rs[i]).submitted();
+      if (!rs[i].isInquiry()) {
+        publishing();
+      }
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("submitBatch("+rs.length+" queries to "+context+")");
+    }
+
+    if (context != null) {
+      trackBatch(rs, context);
+    } else {
+      nextYPServerContext(null, new YPService.NextContextCallback() {
+          public void setNextContext(Object nextContext) {
+            Object value;
+            if (nextContext != null) {
+              try {
+                trackBatch(rs, nextContext);
+                return;
+              } catch (TransportException te) {
+                logger.error("Unable to submit YP batch to " + nextContext, te);
+                value = te;
+              }
+            } else {
+              value = new NoYPServerException(originMA + 
+                                              ": unable to find YPServer community");
+            }
+            for (int i = 0; i < rs.length; i++) {
+              complete((YPFutureImpl) rs[i], null, value);
+            }
+          }
+        });
+    }
+  }
+
+  /** Send a batch of queries to one server of a context.  Each query has its
+   * own Tracker, so is answered, retried or continued up the community
+   * hierarchy independently of the others.
+   **/
+  private void trackBatch(YPFuture[] rs, Object context) throws TransportException {
+    int n = rs.length;
+    Tracker[] ts = new Tracker[n];
+    Element[] els = new Element[n];
+    boolean[] inquiries = new boolean[n];
+    Object[] keys = new Object[n];
+    boolean spread = true;      // may go to any server
+    synchronized (selects) {
+      for (int i = 0; i < n; i++) {
+        Object key = new Long(counter++);
+        ts[i] = new Tracker(rs[i], context, key, 0, null, null, 0, 0L);
+        selects.put(key, ts[i]);
+        startReaper(ts[i].deadline);
+        els[i] = rs[i].getElement();
+        inquiries[i] = rs[i].isInquiry();
+        keys[i] = key;
+        spread &= ServerSelector.isSpreadable(rs[i]);
+      }
+    }
+
+    try {
+      MessageAddress ma = lookup(context, spread);
+      for (int i = 0; i < n; i++) {
+        ts[i].sending(ma);
+      }
+      if (logger.isDebugEnabled()) {
+        logger.debug("trackBatch: sending YPBatchQueryMessage - origin " + originMA +
+                     " target " + ma +
+                     " queries " + n);
+      }
+      sendMessage(new YPBatchQueryMessage(originMA, ma, els, inquiries, keys));
+    } catch (RuntimeException re) {
+      synchronized (selects) {
+        for (int i = 0; i < n; i++) {
+          selects.remove(keys[i]);
+        }
+      }
+      throw new TransportException(re);
+    }
+  }
+
+  /** Start the search for an answer to a query **/
+  private void start(final YPFuture r) throws TransportException {
+    if (r.getSearchMode() == YPProxy.SearchMode.PARALLEL_HIERARCHICAL_COMMUNITY_SEARCH &&
+        ServerSelector.isSpreadable(r)) {
+      new FanOut((YPFutureImpl) r).start();
+    } else if (!(r.getInitialContext() == null)) {
       // Assume we know where to start
       track(r, r.getInitialContext());
     } else {
@@ -527,17 +910,13 @@ public class YPClientComponent extends ComponentSupport {
 	    } catch (TransportException te) {
 	      logger.error("Unable to submit YP interaction to " + context, 
 			   te);
-	      ((YPFutureImpl) r).setFinalContext(r.getInitialContext());
-	      ((YPFutureImpl) r).setException(te);
-	      kickLP(r);
+	      complete((YPFutureImpl) r, r.getInitialContext(), te);
 	    } 
 	  } else {
 	    NoYPServerException nypse = 
 	      new NoYPServerException(originMA + 
 				      ": unable to find YPServer community");
-	    ((YPFutureImpl) r).setFinalContext(r.getInitialContext());
-	    ((YPFutureImpl) r).setException(nypse);
-	    kickLP(r);
+	    complete((YPFutureImpl) r, r.getInitialContext(), nypse);
 	  }
 	}
       };
@@ -547,24 +926,229 @@ public class YPClientComponent extends ComponentSupport {
     }
   }
 
+  /** Complete an inquiry from the cache if possible.
+   * @return true if the query was answered
+   **/
+  private boolean answerFromCache(YPFutureImpl r, String key) {
+    ClientResponseCache.Entry entry = cache.get(key);
+    if ((cache.getLookups() % CLIENT_CACHE_REPORT_INTERVAL) == 0 && 
+        logger.isInfoEnabled()) {
+      logger.info(originMA + " " + cache);
+    }
+    if (entry == null) {
+      return false;
+    }
+
+    if (logger.isDebugEnabled()) {
+      logger.debug("submit: answered "+r+" from cache");
+    }
+    r.setFinalContext(entry.getFinalContext());
+    r.set(entry.getResponse());
+    // blackboard queries are submitted inside the LP's transaction, 
+    // so YPLP.scan publishes the change itself.
+    if (!r.isFromBlackboard()) {
+      kickLP(r);
+    }
+    return true;
+  }
+
+  /** coalesces identical inquiries in progress, null if disabled **/
+  private final InquiryCoalescer coalescer = 
+    COALESCE_INQUIRIES ? new InquiryCoalescer() : null;
+
+  /** Called when this agent submits a publish, and again when the publish
+   * completes: the answers of inquiries already in progress may not 
+   * reflect it, so they are neither cached nor shared with later inquiries.
+   **/
+  private void publishing() {
+    if (cache != null) {
+      cache.invalidate();
+    }
+    if (coalescer != null) {
+      coalescer.publishing();
+    }
+  }
+
+  /** Give the final answer to a query and to any identical queries waiting on it.
+   * @param value the response Element, null if nobody answered, or a Throwable
+   **/
+  private void complete(YPFutureImpl r, Object finalContext, Object value) {
+    if (!r.isInquiry()) {
+      publishing();
+    }
+    r.setFinalContext(finalContext);
+    if (!(value instanceof Throwable)) {
+      cacheResponse(r, value);
+    }
+    if (coalescer == null) {
+      r.set(value);
+      kickLP(r);
+    } else {
+      kickLP(coalescer.answer(r, finalContext, value));
+    }
+  }
+
+  /** kickLP each of a List of YPFutures **/
+  private void kickLP(List rs) {
+    for (int i = 0, l = rs.size(); i < l; i++) {
+      kickLP((YPFuture) rs.get(i));
+    }
+  }
+
+  /** Remember the final answer to a cacheable query
+   * @param result the response Element, a typed response from a local server, or null
+   **/
+  private void cacheResponse(YPFutureImpl r, Object result) {
+    String key = r.getInquiryKey();
+    if (cache == null || key == null) return;
+    if (result == null && 
+        !YPProxy.SearchMode.isHierarchicalSearchMode(r.getSearchMode())) {
+      return;                   // only a hierarchical search can positively fail
+    }
+    Element el = (result instanceof UDDIElement) ? 
+      YPProxyImpl.toXML((UDDIElement) result) : (Element) result;
+    cache.put(key, el, r.getFinalContext(), r.getCacheGeneration());
+  }
+
   /** Track a single message, implicitly watching the whole resolver chain **/
   void track(YPFuture r, Object context) throws TransportException {
+    track(r, context, 0, null);
+  }
+
+  /** @param attempt the number of times the query has already timed out in this context
+   * @param avoid a server which has not answered, or null
+   **/
+  private void track(YPFuture r, Object context, int attempt, MessageAddress avoid)
+    throws TransportException 
+  {
+    track(r, context, attempt, avoid, null, 0, 0L);
+  }
+
+  /** @param collector the multi-context search this is part of, or null
+   * @param index the index of context in collector
+   * @param timeout milliseconds to wait for the response, or 0 for the default
+   **/
+  private void track(YPFuture r, Object context, int attempt, MessageAddress avoid,
+                     Collector collector, int index, long timeout)
+    throws TransportException 
+  {
     Tracker t;
 
     synchronized (selects) {
       Object key = new Long(counter++);
-      t = new Tracker(r, context, key);
+      t = new Tracker(r, context, key, attempt, avoid, collector, index, timeout);
       selects.put(key, t);
+      startReaper(t.deadline);
+    }
+    if (collector != null) {
+      collector.addTracker(t);
     }
     
-    t.send();
+    try {
+      t.send();
+    } catch (TransportException te) {
+      synchronized (selects) {
+        selects.remove(t.key);
+      }
+      throw te;
+    }
+  }
+
+  /** @return the number of queries sent but not yet answered **/
+  public int getOutstandingQueries() {
+    synchronized (selects) {
+      return selects.size();
+    }
+  }
+
+  //
+  // Reaper - time out unanswered queries
+  //
+
+  /** the pending reaper alarm, or null.  Sync on selects. **/
+  private ReaperAlarm reaper = null;
+  /** number of queries which have timed out.  Sync on selects. **/
+  private int timeouts = 0;
+
+  /** Make sure a reaper is pending by the deadline.  Call while synchronized on selects. **/
+  private void startReaper(long deadline) {
+    if (deadline == Long.MAX_VALUE || alarmService == null) return;
+    if (reaper == null || deadline < reaper.getExpirationTime()) {
+      if (reaper != null) reaper.cancel();
+      reaper = new ReaperAlarm(deadline);
+      alarmService.addRealTimeAlarm(reaper);
+    }
+  }
+
+  /** Time out any trackers past their deadlines **/
+  private void reap() {
+    long now = System.currentTimeMillis();
+    List expired = null;
+    synchronized (selects) {
+      reaper = null;
+      long next = Long.MAX_VALUE;
+      for (Iterator i = selects.values().iterator(); i.hasNext(); ) {
+        Tracker t = (Tracker) i.next();
+        if (t.deadline <= now) {
+          i.remove();
+          if (expired == null) expired = new ArrayList();
+          expired.add(t);
+        } else if (t.deadline < next) {
+          next = t.deadline;
+        }
+      }
+      if (expired != null) {
+        timeouts += expired.size();
+      }
+      startReaper(next);
+    }
+
+    if (expired != null) {
+      for (int i = 0, l = expired.size(); i < l; i++) {
+        ((Tracker) expired.get(i)).timedOut(now);
+      }
+    }
+  }
+
+  private class ReaperAlarm implements Alarm {
+    private final long expiresAt;
+    private boolean expired = false;
+    ReaperAlarm(long expiresAt) { this.expiresAt = expiresAt; }
+    public long getExpirationTime() { return expiresAt; }
+    public void expire() {
+      synchronized (this) {
+        if (expired) return;
+        expired = true;
+      }
+      reap();
+    }
+    public synchronized boolean hasExpired() { return expired; }
+    public synchronized boolean cancel() {
+      boolean was = expired;
+      expired = true;
+      return was;
+    }
+    public String toString() {
+      return "<ReaperAlarm " + expiresAt + " for YPClient at " + originMA + ">";
+    }
   }
 
   /** dispatch the response to the appropriate listener **/
   private void dispatchResponse(YPResponseMessage r) {
-    Object key = r.getKey();
-    Element el = r.getElement();
+    if (r instanceof YPLocalResponseMessage) {
+      dispatchResponse(r, r.getKey(), ((YPLocalResponseMessage) r).getResponse());
+    } else if (r instanceof YPBatchResponseMessage) {
+      YPBatchResponseMessage b = (YPBatchResponseMessage) r;
+      for (int i = 0, l = b.size(); i < l; i++) {
+        dispatchResponse(r, b.getKey(i), b.getElement(i));
+      }
+    } else {
+      dispatchResponse(r, r.getKey(), r.getElement());
+    }
+  }
 
+  /** @param el the response Element, or the typed response of a local server **/
+  private void dispatchResponse(YPResponseMessage r, Object key, Object el) {
     Tracker tracker;
     synchronized (selects) {
       tracker = (Tracker) selects.remove(key);
@@ -572,18 +1156,24 @@ public class YPClientComponent extends ComponentSupport {
 
     if (tracker == null) {
       logger.warn("dispatchResponse(): Cannot find tracker for key "+ key +
-                  " el " + r.getElement() +
+                  " el " + el +
                   " source " + r.getOriginator() + 
                   " destination " + r.getTarget());
     } else {
       if (logger.isDebugEnabled()) {
         logger.debug("dispatchResponse(): YPResponseMessage - key " + key +
-                     " el " + r.getElement() +
                      " source " + r.getOriginator() + 
                      " destination " + r.getTarget() +
                      " = "+el);
       }
 
+      tracker.answered();
+      if (tracker.isCancelled()) {
+        if (logger.isDebugEnabled()) {
+          logger.debug("dispatchResponse(): ignoring late response to "+key);
+        }
+        return;
+      }
       tracker.receiveResponse(el);
     }
   }
@@ -596,11 +1186,27 @@ public class YPClientComponent extends ComponentSupport {
     private final YPFutureImpl query;
     private final Object context;
     private final Object key;
-
-    Tracker(YPFuture r, Object context, Object key) {
+    private final int attempt;
+    private final MessageAddress avoid;
+    private final long deadline;
+    private final Collector collector;
+    private final int index;
+    private MessageAddress target = null; // where we sent the query
+    private long sentAt = 0L;
+    private boolean cancelled = false; // sync on this
+
+    Tracker(YPFuture r, Object context, Object key, int attempt, MessageAddress avoid,
+            Collector collector, int index, long timeout) {
       this.query = (YPFutureImpl) r; // always an impl
       this.context = context;
       this.key = key;
+      this.attempt = attempt;
+      this.avoid = avoid;
+      this.collector = collector;
+      this.index = index;
+      if (timeout <= 0) timeout = QUERY_TIMEOUT;
+      this.deadline = 
+        (timeout > 0) ? (System.currentTimeMillis() + timeout) : Long.MAX_VALUE;
     }
     
     void send() throws TransportException {
@@ -613,14 +1219,30 @@ public class YPClientComponent extends ComponentSupport {
             logger.error("Null context in Tracker.send.", new Throwable());
 	  }
         }
-        MessageAddress ma = lookup(context);
+        boolean iqp = query.isInquiry();
+        MessageAddress ma = lookup(context, query, avoid);
 
 	if (logger.isDebugEnabled()) {
 	  logger.debug(originMA + " lookup(" + context +
 		       " return ma ");
 	}
+
+        if (LOCAL_FAST_PATH && collector == null && query.getRequest() != null) {
+          // collectors merge DOM answers, so only plain queries go direct
+          YPServer server = YPServer.getLocalServer(ma);
+          if (server != null) {
+            if (logger.isDebugEnabled()) {
+              logger.debug("Tracker.send: handing query to local YPServer " + ma +
+                           " key " + key);
+            }
+            sending(ma);
+            server.addLocalQuery(new YPLocalQueryMessage(originMA, ma, query.getRequest(), 
+                                                         iqp, key, localReceiver));
+            return;
+          }
+        }
+
         Element el = query.getElement();
-        boolean iqp = query.isInquiry();
         YPQueryMessage m = new YPQueryMessage(originMA, ma, el, iqp, key);
         if (logger.isDebugEnabled()) {
           logger.debug("Tracker.send: sending YPQueryMessage - origin " + originMA +
@@ -628,6 +1250,7 @@ public class YPClientComponent extends ComponentSupport {
                        " el " + el + 
                        " key "  + key);
         }
+        sending(ma);
         sendMessage(m);
       } catch (RuntimeException re) {
 	if (logger.isDebugEnabled()) {
@@ -637,15 +1260,84 @@ public class YPClientComponent extends ComponentSupport {
       }
     }
 
-    void receiveResponse(Element result) {
-      if (isResponseComplete(query, result)) {
+    /** Note that the query is about to be sent to a server **/
+    void sending(MessageAddress ma) {
+      target = ma;
+      sentAt = System.currentTimeMillis();
+      serverSelector.sent(ma);
+    }
+
+    /** Called by the reaper when no response arrived before the deadline.
+     * Inquiries not tied to an authToken are resent to another server of the
+     * same community if there is one, a hierarchical search moves on to the
+     * next context, otherwise the query fails with a YPTimeoutException.
+     **/
+    void timedOut(long now) {
+      if (logger.isWarnEnabled()) {
+        logger.warn("Tracker "+key+": no response from "+target+
+                    " to "+query+" after "+(now - sentAt)+" ms");
+      }
+      if (target != null) {
+        serverSelector.timedOut(target, now - sentAt);
+      }
+      if (isCancelled()) {
+        return;
+      }
+
+      try {
+        if (ServerSelector.isSpreadable(query) && 
+            attempt < QUERY_RETRIES &&
+            context instanceof Community &&
+            ypServers((Community) context).size() > 1) {
+          track(query, context, attempt+1, target, collector, index, 0L);
+          return;
+        }
+      } catch (TransportException te) {
+        if (collector != null) {
+          collector.timedOut(index);
+        } else {
+          complete(query, context, te);
+        }
+        return;
+      }
+
+      if (collector != null) {
+        collector.timedOut(index);
+        return;
+      }
+
+      if (YPProxy.SearchMode.isHierarchicalSearchMode(query.getSearchMode())) {
+        receiveResponse(null);  // treat as "not here"
+      } else {
+        complete(query, context, 
+                 new YPTimeoutException(originMA+": no response from "+target+
+                                        " for "+context));
+      }
+    }
+
+    /** Stop caring about the response, e.g. because a parallel search has 
+     * already been answered at a nearer level.
+     **/
+    synchronized void cancel() { cancelled = true; }
+    synchronized boolean isCancelled() { return cancelled; }
+
+    /** Tell the server selector that the response has arrived **/
+    void answered() {
+      if (target != null) {
+        serverSelector.answered(target, System.currentTimeMillis() - sentAt);
+      }
+    }
+
+    /** @param result the response Element, the typed response of a local server, or null **/
+    void receiveResponse(Object result) {
+      if (collector != null) {
+        collector.receive(index, (Element) result);
+      } else if (isResponseComplete(query, result)) {
         if (logger.isDebugEnabled()) {
           logger.debug("Tracker "+key+" waking with "+result);
         }
         // we got THE answer.  deal with it.
-        query.setFinalContext(context); // where did the answer come from?
-        query.set(result);
-        kickLP(query);
+        complete(query, context, result); // context is where the answer came from
       } else {
         if (logger.isDebugEnabled()) {
           logger.debug("Tracker "+key+" continuing resolver search");
@@ -665,6 +1357,329 @@ public class YPClientComponent extends ComponentSupport {
 
   }
 
+  /** Receives the responses of a query sent to several contexts at once **/
+  private interface Collector {
+    /** Called with each Tracker sent on behalf of the collector **/
+    void addTracker(Tracker t);
+    /** Called with the response from the context with the index **/
+    void receive(int index, Element result);
+    /** Called when the context with the index cannot be reached or did not answer in time **/
+    void timedOut(int index);
+  }
+
+  /** A parallel hierarchical search: sends the query to FAN_OUT_LEVELS levels
+   * of the community structure at once, and answers with the response from 
+   * the nearest level which has one.  If none of them do, the next 
+   * FAN_OUT_LEVELS levels are tried, and so on.
+   **/
+  private class FanOut implements Collector {
+    private final YPFutureImpl query;
+
+    // all sync on this
+    /** community contexts, nearest first **/
+    private final List contexts = new ArrayList();
+    /** per level: PENDING, NO_ANSWER or the answer Element **/
+    private final List answers = new ArrayList();
+    private final List trackers = new ArrayList();
+    private int base = 0;       // first level of the current window
+    private boolean resolving = false; // waiting for the next level's context
+    private boolean exhausted = false; // no more levels
+    private boolean done = false;
+
+    private final Object PENDING = new Object();
+    private final Object NO_ANSWER = new Object();
+
+    FanOut(YPFutureImpl query) {
+      this.query = query;
+    }
+
+    void start() {
+      Object context = query.getInitialContext();
+      synchronized (this) {
+        resolving = true;
+      }
+      if (context != null) {
+        addLevel(context);
+      } else {
+        nextYPServerContext(null, new LevelCallback());
+      }
+    }
+
+    /** Called with each newly resolved level **/
+    private void addLevel(Object context) {
+      int level;
+      boolean more;
+      synchronized (this) {
+        resolving = false;
+        if (done) return;
+        if (context == null) {
+          exhausted = true;
+          level = -1;
+          more = false;
+        } else {
+          contexts.add(context);
+          answers.add(PENDING);
+          level = contexts.size()-1;
+          more = (contexts.size() - base) < FAN_OUT_LEVELS;
+          resolving = more;
+        }
+      }
+
+      if (level < 0) {
+        evaluate();
+        return;
+      }
+
+      if (logger.isDebugEnabled()) {
+        logger.debug("FanOut sending "+query+" to level "+level+" "+context);
+      }
+      try {
+        track(query, context, 0, null, this, level, 0L);
+      } catch (TransportException te) {
+        logger.warn("Unable to send YP inquiry to " + context, te);
+        receive(level, null);
+      }
+      if (more) {
+        nextYPServerContext(context, new LevelCallback());
+      }
+    }
+
+    /** Each resolution may call back more than once, so only take the first **/
+    private class LevelCallback implements YPService.NextContextCallback {
+      private boolean used = false;
+      public void setNextContext(Object context) {
+        synchronized (this) {
+          if (used) return;
+          used = true;
+        }
+        addLevel(context);
+      }
+    }
+
+    public synchronized void addTracker(Tracker t) {
+      if (done) {
+        t.cancel();
+      } else {
+        trackers.add(t);
+      }
+    }
+
+    /** A level which does not answer is treated as not knowing **/
+    public void timedOut(int level) {
+      receive(level, null);
+    }
+
+    /** Called with the response from a level **/
+    public void receive(int level, Element result) {
+      synchronized (this) {
+        if (done) return;
+        answers.set(level, (result == null)?NO_ANSWER:result);
+      }
+      evaluate();
+    }
+
+    /** Complete the query if the nearest answer is known, or widen the search
+     * if the current window has no answers.
+     **/
+    private void evaluate() {
+      Object finalContext = null;
+      Element answer = null;
+      Object next = null;
+      synchronized (this) {
+        if (done) return;
+        int n = answers.size();
+        for (int i = 0; i < n; i++) {
+          Object a = answers.get(i);
+          if (a == PENDING) {
+            return;             // a nearer level may yet answer
+          } else if (a != NO_ANSWER) {
+            answer = (Element) a;
+            finalContext = contexts.get(i);
+            break;
+          }
+        }
+        if (answer == null) {
+          if (resolving) {
+            return;             // more levels to come
+          } else if (!exhausted) {
+            // nobody in this window had it, so try the next one
+            base = n;
+            resolving = true;
+            next = contexts.get(n-1);
+          } else {
+            finalContext = (n == 0)?query.getInitialContext():contexts.get(n-1);
+          }
+        }
+        if (next == null) {
+          done = true;
+          for (int i = 0, l = trackers.size(); i < l; i++) {
+            ((Tracker) trackers.get(i)).cancel();
+          }
+          trackers.clear();
+        }
+      }
+
+      if (next != null) {
+        nextYPServerContext(next, new LevelCallback());
+      } else if (answer == null && contexts.isEmpty()) {
+        complete(query, finalContext,
+                 new NoYPServerException(originMA + 
+                                         ": unable to find YPServer community"));
+      } else {
+        if (logger.isDebugEnabled()) {
+          logger.debug("FanOut answered "+query+" from "+finalContext);
+        }
+        complete(query, finalContext, answer);
+      }
+    }
+  }
+
+  /** Send a find_* inquiry to every YP server of several contexts at once, 
+   * and merge their answers.
+   * @see YPService#scatter
+   **/
+  private void submitScatter(YPFuture r, Collection contexts, long timeout) {
+    YPFutureImpl q = (YPFutureImpl) r;
+    if (!r.isInquiry() || !ResultMerger.isMergeable(r.getElement())) {
+      throw new IllegalArgumentException("Only find_* inquiries may be scattered: "+r);
+    }
+    q.submitted();
+
+    // the distinct servers of all the contexts
+    List servers = new ArrayList();
+    for (Iterator i = contexts.iterator(); i.hasNext(); ) {
+      Object context = i.next();
+      if (context instanceof MessageAddress) {
+        if (!servers.contains(context)) servers.add(context);
+      } else if (context instanceof Community) {
+        Set ypAgents = (contextCache != null) ?
+          contextCache.getServers((Community) context) :
+          ypServers((Community) context);
+        for (Iterator j = ypAgents.iterator(); j.hasNext(); ) {
+          MessageAddress ma = 
+            MessageAddress.getMessageAddress(((Entity) j.next()).getName());
+          if (!servers.contains(ma)) servers.add(ma);
+        }
+      } else {
+        throw new IllegalArgumentException("Unrecognized context type " + 
+                                           context.getClass() + 
+                                           ". Must be either MessageAddress or Community.");
+      }
+    }
+
+    if (servers.isEmpty()) {
+      complete(q, new ScatterGatherReport(),
+               new NoYPServerException(originMA + ": no YPServers in " + contexts));
+      return;
+    }
+    new Gather(q, servers, timeout).start();
+  }
+
+  /** Collects and merges the answers of several servers for #submitScatter **/
+  private class Gather implements Collector {
+    private final YPFutureImpl query;
+    private final List servers;
+    private final long timeout;
+    private final int maxRows;
+    private final ScatterGatherReport report = new ScatterGatherReport();
+
+    // sync on this
+    private final Object[] answers; // per server: null (pending), NO_ANSWER or Element
+    private int outstanding;
+
+    private final Object NO_ANSWER = new Object();
+
+    Gather(YPFutureImpl query, List servers, long timeout) {
+      this.query = query;
+      this.servers = servers;
+      this.timeout = timeout;
+      int mr = 0;
+      try {
+        String s = query.getElement().getAttribute("maxRows");
+        if (s != null && s.length() > 0) mr = Integer.parseInt(s);
+      } catch (NumberFormatException e) {
+        // ignore it
+      }
+      this.maxRows = mr;
+      answers = new Object[servers.size()];
+      outstanding = servers.size();
+    }
+
+    void start() {
+      for (int i = 0, l = servers.size(); i < l; i++) {
+        try {
+          track(query, servers.get(i), 0, null, this, i, timeout);
+        } catch (TransportException te) {
+          logger.warn("Unable to send YP inquiry to " + servers.get(i), te);
+          timedOut(i);
+        }
+      }
+    }
+
+    public void addTracker(Tracker t) { }
+
+    public void timedOut(int index) {
+      report.addTimedOut((MessageAddress) servers.get(index));
+      answered(index, NO_ANSWER);
+    }
+
+    public void receive(int index, Element result) {
+      MessageAddress server = (MessageAddress) servers.get(index);
+      if (result == null) {
+        report.addAnswered(server);
+        answered(index, NO_ANSWER);
+      } else if (UDDIException.isValidElement(result)) {
+        report.addFaulted(server);
+        answered(index, result);
+      } else {
+        report.addAnswered(server);
+        answered(index, result);
+      }
+    }
+
+    private void answered(int index, Object answer) {
+      synchronized (this) {
+        if (answers[index] != null) return;
+        answers[index] = answer;
+        if (--outstanding > 0) return;
+      }
+
+      // everyone is in, so merge the answers, in server order
+      List good = new ArrayList();
+      Element fault = null;
+      for (int i = 0; i < answers.length; i++) {
+        Object a = answers[i];
+        if (a instanceof Element) {
+          if (UDDIException.isValidElement((Element) a)) {
+            if (fault == null) fault = (Element) a;
+          } else {
+            good.add(a);
+          }
+        }
+      }
+      if (logger.isDebugEnabled()) {
+        logger.debug("Gather merging "+good.size()+" answers to "+query+" "+report);
+      }
+
+      Object value;
+      if (!good.isEmpty()) {
+        try {
+          value = ResultMerger.merge(good, maxRows);
+        } catch (RuntimeException re) {
+          logger.error("Unable to merge YP answers to "+query, re);
+          value = re;
+        }
+      } else if (fault != null) {
+        value = fault;          // nobody had a proper answer
+      } else if (!report.getTimedOut().isEmpty()) {
+        value = new YPTimeoutException(originMA+": no response from "+report.getTimedOut());
+      } else {
+        value = null;
+      }
+      complete(query, report, value);
+    }
+  }
+
   //
   // YPService
   //
@@ -729,6 +1744,21 @@ public class YPClientComponent extends ComponentSupport {
         throw new RuntimeException("submit nested exception", te);
       }
     }
+    public YPFuture[] submitBatch(YPFuture[] rs) {
+      try {
+        YPClientComponent.this.submitBatch(rs);
+        return rs;
+      } catch (TransportException te) {
+        throw new RuntimeException("submitBatch nested exception", te);
+      }
+    }
+    public YPFuture scatter(YPFuture r, Collection contexts, long timeout) {
+      YPClientComponent.this.submitScatter(r, contexts, timeout);
+      return r;
+    }
+    public MessageAddress getAgentAddress() {
+      return originMA;
+    }
     public void nextYPServerContext(final Object currentContext,
 				      final NextContextCallback callback) {
       YPClientComponent.this.nextYPServerContext(currentContext,
@@ -819,6 +1849,9 @@ public class YPClientComponent extends ComponentSupport {
 	    logger.debug("LogicProvider scan() submitting "+fut);
 	  }
           YPClientComponent.this.submitFromBlackboard(fut);
+          if (fut.isReady()) {
+            blackboard.publishChange(fut); // answered from the cache
+          }
         } catch (TransportException te) {
           logger.error("YPFuture submit failed ("+fut+")", te);
           blackboard.publishChange(fut);
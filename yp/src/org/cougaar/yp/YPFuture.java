@@ -72,16 +72,29 @@ public interface YPFuture {
    * processing or if there is a chance that the callback will block.
    * @note If the response is already ready, then the callback
    * will be invoked immediately in the thread of the caller.
-   * @note Only one Callback may be attached.
+   * @note Only one Callback may be attached with setCallback.  Use 
+   * #addCallback to attach more.
    **/
   void setCallback(YPComplete callable);
 
+  /** As #setCallback, except that any number of callbacks may be added,
+   * and each is invoked exactly once, in the order they were added.
+   * @see YPFutures for composing futures with callbacks.
+   **/
+  void addCallback(YPComplete callable);
+
   /** Access the XML element describing the query **/
   Element getElement();
 
   /** Is the message a query? **/
   boolean isInquiry();
 
+  /** Is the query tied to an authToken?  A token is only honored by the
+   * server which issued it, so get_authToken, discard_authToken and the 
+   * inquiries which take an authInfo are sent where publishes are.
+   **/
+  boolean isAuthBound();
+
   /** In which context was this query issued 
    *  @return Object is either a MessageAddress or a Community. 
    *  @note If the context is a Community the YP resolver will use the community 
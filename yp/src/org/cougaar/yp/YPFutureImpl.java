@@ -26,10 +26,16 @@
 
 package org.cougaar.yp;
 
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
 import org.cougaar.core.persist.Persistable;
 import org.cougaar.core.thread.SchedulableStatus;
 import org.cougaar.util.log.Logger;
 import org.cougaar.util.log.Logging;
+import org.uddi4j.UDDIElement;
 import org.uddi4j.UDDIException;
 import org.w3c.dom.Element;
 
@@ -39,15 +45,22 @@ final class YPFutureImpl implements YPFuture, Persistable {
 
   private Object initialContext;
   private Element element;
+  private UDDIElement request = null; // typed request, if constructed from one
   private boolean queryP;
+  private boolean authBound = false;
   private boolean ready = false;
   private Object result = null;
-  private Callback callback = null;
+  private List callbacks = null; // Callbacks to invoke when ready, sync on this
+  private boolean hasCallback = false; // true after setCallback, sync on this
   private Object finalContext = null;
   private Class resultClass;
   private boolean isSubmitted = false;
   private boolean blackboardp = false;
   private int  searchMode;
+  private String inquiryKey = null; // canonical key of a cacheable inquiry
+  private long cacheGeneration = 0L; // client cache generation when submitted
+  private String coalesceKey = null; // identifies the in-flight inquiry it leads or follows
+  private boolean derived = false; // value computed by YPFutures rather than a YP server
 
   YPFutureImpl(Object context, Element e, boolean qp, Class resultClass, 
 	       int searchMode) {
@@ -58,12 +71,49 @@ final class YPFutureImpl implements YPFuture, Persistable {
     this.searchMode = searchMode;
   }
 
-  public Element getElement() {
+  /** Construct a submitted future whose value will be computed from 
+   * the source's, e.g. by YPFutures.
+   **/
+  static YPFutureImpl derivedFrom(YPFuture source) {
+    YPFutureImpl f = new YPFutureImpl(source.getInitialContext(), (Element) null, 
+                                      source.isInquiry(), null, source.getSearchMode());
+    f.authBound = source.isAuthBound();
+    f.derived = true;
+    f.submitted();
+    return f;
+  }
+
+  /** Construct from a typed uddi4j request.  The DOM element is only
+   * built if it is needed, i.e. unless the query is answered by a YPServer
+   * in the same node.
+   **/
+  YPFutureImpl(Object context, UDDIElement request, boolean qp, Class resultClass, 
+	       int searchMode) {
+    this(context, (Element) null, qp, resultClass, searchMode);
+    this.request = request;
+  }
+
+  public synchronized Element getElement() {
+    if (element == null && request != null) {
+      element = YPProxyImpl.toXML(request);
+    }
     return element;
   }
+
+  /** @return the typed uddi4j request, or null if constructed from an Element **/
+  UDDIElement getRequest() {
+    return request;
+  }
   public boolean isInquiry() {
     return queryP;
   }
+  public boolean isAuthBound() {
+    return authBound;
+  }
+  /** Mark the query as tied to an authToken.  Call before submitting it. **/
+  void setAuthBound(boolean authBound) {
+    this.authBound = authBound;
+  }
   public Object getInitialContext() {
     return initialContext;
   }
@@ -92,7 +142,9 @@ final class YPFutureImpl implements YPFuture, Persistable {
     }
     if (ready) {
       if (result instanceof Throwable) {
-	if (result instanceof RuntimeException) {
+	if (result instanceof UDDIException) {
+	  throw (UDDIException) result;
+	} else if (result instanceof RuntimeException) {
 	  // Leave original exception so that clients can catch explicitly.
 	  throw (RuntimeException) result;
 	} else {
@@ -126,7 +178,15 @@ final class YPFutureImpl implements YPFuture, Persistable {
     }
   }
     
-  public synchronized void setCallback(YPComplete notifier) {
+  public void setCallback(YPComplete notifier) {
+    synchronized (this) {
+      if (hasCallback) throw new IllegalArgumentException("Already had a callback");
+      hasCallback = true;
+    }
+    addCallback(notifier);
+  }
+
+  public void addCallback(YPComplete notifier) {
     Callback c;
     if (notifier instanceof ResponseCallback) {
       c = new ResponseCallbackAdapter((ResponseCallback) notifier);
@@ -136,11 +196,14 @@ final class YPFutureImpl implements YPFuture, Persistable {
       throw new IllegalArgumentException("Only Callback and ResponseCallback instances are allowed");
     }
 
-    if (callback != null) throw new IllegalArgumentException("Already had a callback");
-    callback = c;
-    if (ready) {
-      callback.ready(this);
+    synchronized (this) {
+      if (!ready) {
+        if (callbacks == null) callbacks = new ArrayList(1);
+        callbacks.add(c);
+        return;
+      }
     }
+    c.ready(this);
   }
 
   public Object getFinalContext() {
@@ -149,16 +212,31 @@ final class YPFutureImpl implements YPFuture, Persistable {
 
   // package-private setters
   void set(Object value) {
+    if (!trySet(value)) {
+      throw new RuntimeException("Cannot reset a YPFuture");
+    }
+  }
+
+  /** As #set, but does nothing if the future is already ready.
+   * @return true if the value was set
+   **/
+  boolean trySet(Object value) {
+    List cbs;
     synchronized (this) {
-      if (ready) throw new RuntimeException("Cannot reset a YPFuture");
+      if (ready) return false;
       result = value;
       ready = true;
       this.notifyAll();
+      cbs = callbacks;
+      callbacks = null;
     }
 
-    if (callback != null) {
-      callback.ready(this);
+    if (cbs != null) {
+      for (int i = 0, l = cbs.size(); i < l; i++) {
+        ((Callback) cbs.get(i)).ready(this);
+      }
     }
+    return true;
   }
 
   void setException(Throwable t) {
@@ -168,7 +246,7 @@ final class YPFutureImpl implements YPFuture, Persistable {
 
   void setFinalContext(Object fc) {
     if (logger.isDebugEnabled()) {
-      logger.debug("setFinalContext(): fc " + fc + " callback " + callback);
+      logger.debug("setFinalContext(): fc " + fc + " callbacks " + callbacks);
     }
     finalContext = fc;
   }
@@ -180,6 +258,35 @@ final class YPFutureImpl implements YPFuture, Persistable {
     isSubmitted = true;
   }
 
+  synchronized boolean isSubmitted() {
+    return isSubmitted;
+  }
+
+
+  synchronized void setInquiryKey(String key) {
+    inquiryKey = key;
+  }
+
+  synchronized String getInquiryKey() {
+    return inquiryKey;
+  }
+
+  synchronized void setCacheGeneration(long gen) {
+    cacheGeneration = gen;
+  }
+
+  synchronized long getCacheGeneration() {
+    return cacheGeneration;
+  }
+
+  synchronized void setCoalesceKey(String key) {
+    coalesceKey = key;
+  }
+
+  synchronized String getCoalesceKey() {
+    return coalesceKey;
+  }
+
   synchronized void setIsFromBlackboard(boolean v) {
     blackboardp = v;
   }
@@ -190,10 +297,46 @@ final class YPFutureImpl implements YPFuture, Persistable {
 
   private static final Class[] cargs = new Class[] { Element.class };
 
+  /** The Element constructors of the response classes YPProxyImpl asks for,
+   * resolved once.  Never modified after class initialization, so read 
+   * without locking.
+   **/
+  private static final HashMap constructors = new HashMap(29);
+  static {
+    Class[] responseClasses = new Class[] {
+      org.uddi4j.response.AssertionStatusReport.class,
+      org.uddi4j.response.AuthToken.class,
+      org.uddi4j.response.BindingDetail.class,
+      org.uddi4j.response.BusinessDetail.class,
+      org.uddi4j.response.BusinessDetailExt.class,
+      org.uddi4j.response.BusinessList.class,
+      org.uddi4j.response.DispositionReport.class,
+      org.uddi4j.response.PublisherAssertions.class,
+      org.uddi4j.response.RegisteredInfo.class,
+      org.uddi4j.response.RelatedBusinessesList.class,
+      org.uddi4j.response.ServiceDetail.class,
+      org.uddi4j.response.ServiceList.class,
+      org.uddi4j.response.TModelDetail.class,
+      org.uddi4j.response.TModelList.class,
+    };
+    for (int i = 0; i < responseClasses.length; i++) {
+      try {
+        constructors.put(responseClasses[i], responseClasses[i].getConstructor(cargs));
+      } catch (NoSuchMethodException e) {
+        logger.error("No Element constructor for "+responseClasses[i], e);
+      }
+    }
+  }
+
+  private static Constructor getConstructor(Class c) throws NoSuchMethodException {
+    Constructor ctor = (Constructor) constructors.get(c);
+    return (ctor != null) ? ctor : c.getConstructor(cargs);
+  }
+
   /** Convert from an XML Element to a UDDI response object **/
   private Object convert(Object el) throws UDDIException {
-    if (el == null) {
-      return null;
+    if (el == null || derived) {
+      return el;
     } else {
       if (el instanceof Element) {
         Element ell = (Element) el;
@@ -209,11 +352,21 @@ final class YPFutureImpl implements YPFuture, Persistable {
         }
       }
 
+      if (el instanceof UDDIElement) { // typed response from a local server
+        if (resultClass == null) {
+          return YPProxyImpl.toXML((UDDIElement) el);
+        } else if (resultClass.isInstance(el)) {
+          return el;
+        } else {
+          el = YPProxyImpl.toXML((UDDIElement) el);
+        }
+      }
+
       if (resultClass == null) { // no class conversion
         return el;
       } else {                //  otherwise, construct from the element
         try {
-          java.lang.reflect.Constructor c = resultClass.getConstructor(cargs);
+          Constructor c = getConstructor(resultClass);
           return c.newInstance(new Object[] { el });
         } catch (Exception e) {
           throw new RuntimeException("Could not convert response Element to "+resultClass, e);
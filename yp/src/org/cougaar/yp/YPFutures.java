@@ -0,0 +1,216 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import org.cougaar.core.agent.service.alarm.Alarm;
+import org.cougaar.core.service.AlarmService;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/** Composition of YPFutures without blocking a thread in YPFuture.get.
+ * Each method returns a new future which becomes ready when its inputs 
+ * are, with a value computed from theirs.  A failure (an exception from 
+ * get) of an input is passed on as the failure of the result.
+ * <p>
+ * For example, to save a business as soon as an authToken arrives:
+ * <pre>
+ *   YPFuture saved = YPFutures.thenCompose(yp.get_authToken(user, pass),
+ *     new YPFutures.Composer() {
+ *       public YPFuture compose(Object token) {
+ *         return yp.save_business(((AuthToken) token).getAuthInfoString(), businesses);
+ *       }}, yps);
+ *   saved.addCallback(...);
+ * </pre>
+ * The functions are invoked in the thread which completes the input, usually
+ * the YP client's service thread, so must be short and must never block.  
+ * Hand longer work to a pooled thread, e.g. with OneShotMachine.
+ * <p>
+ * The futures returned are already submitted and carry no query element.
+ **/
+public final class YPFutures {
+  private static final Logger logger = Logging.getLogger(YPFutures.class);
+
+  private YPFutures() {}
+
+  /** Computes a value from the result of a YPFuture **/
+  public interface Function {
+    Object apply(Object result) throws Exception;
+  }
+
+  /** Computes the next YP query from the result of a YPFuture **/
+  public interface Composer {
+    YPFuture compose(Object result) throws Exception;
+  }
+
+  /** @return a future of fn applied to the result of f **/
+  public static YPFuture thenApply(YPFuture f, final Function fn) {
+    final YPFutureImpl r = YPFutureImpl.derivedFrom(f);
+    f.addCallback(new YPFuture.Callback() {
+        public void ready(YPFuture in) {
+          Object value;
+          try {
+            value = fn.apply(in.get());
+          } catch (Exception e) {
+            value = e;
+          }
+          complete(r, in, value);
+        }
+      });
+    return r;
+  }
+
+  /** @return a future of the result of the query which c makes from the result of f.
+   * @param yps used to submit the query returned by c if it has not been already,
+   * may be null if c always returns submitted futures (e.g. from YPService.getAutoYP).
+   **/
+  public static YPFuture thenCompose(YPFuture f, final Composer c, final YPService yps) {
+    final YPFutureImpl r = YPFutureImpl.derivedFrom(f);
+    f.addCallback(new YPFuture.Callback() {
+        public void ready(YPFuture in) {
+          final YPFuture next;
+          try {
+            next = c.compose(in.get());
+            if (next == null) {
+              complete(r, in, null);
+              return;
+            }
+            if (!((YPFutureImpl) next).isSubmitted()) {
+              if (yps == null) {
+                throw new IllegalArgumentException("Composed YPFuture was not submitted: "+next);
+              }
+              yps.submit(next);
+            }
+          } catch (Exception e) {
+            complete(r, in, e);
+            return;
+          }
+          next.addCallback(new YPFuture.Callback() {
+              public void ready(YPFuture in2) {
+                Object value;
+                try {
+                  value = in2.get();
+                } catch (Exception e) {
+                  value = e;
+                }
+                complete(r, in2, value);
+              }
+            });
+        }
+      });
+    return r;
+  }
+
+  /** @return a future of an Object[] holding the results of each of fs in order.
+   * Fails with the failure of the first of fs to fail.
+   **/
+  public static YPFuture allOf(final YPFuture[] fs) {
+    if (fs.length == 0) {
+      throw new IllegalArgumentException("allOf needs at least one YPFuture");
+    }
+    final YPFutureImpl r = YPFutureImpl.derivedFrom(fs[0]);
+    final Object[] results = new Object[fs.length];
+    final int[] pending = new int[] { fs.length };
+    for (int i = 0; i < fs.length; i++) {
+      final int index = i;
+      fs[i].addCallback(new YPFuture.Callback() {
+          public void ready(YPFuture in) {
+            try {
+              results[index] = in.get();
+            } catch (Exception e) {
+              complete(r, in, e);
+              return;
+            }
+            synchronized (results) {
+              if (--pending[0] > 0) return;
+            }
+            complete(r, null, results);
+          }
+        });
+    }
+    return r;
+  }
+
+  /** @return a future of the result of f, or which fails with a
+   * YPTimeoutException if f is not ready within msecs.
+   * f itself is not affected.
+   **/
+  public static YPFuture withTimeout(YPFuture f, long msecs, AlarmService alarmService) {
+    final YPFutureImpl r = YPFutureImpl.derivedFrom(f);
+    final TimeoutAlarm alarm = new TimeoutAlarm(r, msecs);
+    alarmService.addRealTimeAlarm(alarm);
+    f.addCallback(new YPFuture.Callback() {
+        public void ready(YPFuture in) {
+          alarm.cancel();
+          Object value;
+          try {
+            value = in.get();
+          } catch (Exception e) {
+            value = e;
+          }
+          complete(r, in, value);
+        }
+      });
+    return r;
+  }
+
+  private static class TimeoutAlarm implements Alarm {
+    private final YPFutureImpl r;
+    private final long msecs;
+    private final long expiresAt;
+    private boolean expired = false;
+    TimeoutAlarm(YPFutureImpl r, long msecs) {
+      this.r = r;
+      this.msecs = msecs;
+      this.expiresAt = System.currentTimeMillis() + msecs;
+    }
+    public long getExpirationTime() { return expiresAt; }
+    public void expire() {
+      synchronized (this) {
+        if (expired) return;
+        expired = true;
+      }
+      r.setFinalContext(r.getInitialContext());
+      r.trySet(new YPTimeoutException("YPFuture not ready after "+msecs+" ms"));
+    }
+    public synchronized boolean hasExpired() { return expired; }
+    public synchronized boolean cancel() {
+      boolean was = expired;
+      expired = true;
+      return was;
+    }
+  }
+
+  private static void complete(YPFutureImpl r, YPFuture from, Object value) {
+    if (from != null) {
+      r.setFinalContext(from.getFinalContext());
+    }
+    if (!r.trySet(value) && logger.isDebugEnabled()) {
+      logger.debug("Ignoring late value for "+r+": "+value);
+    }
+  }
+}
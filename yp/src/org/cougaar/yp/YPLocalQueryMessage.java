@@ -0,0 +1,60 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+
+package org.cougaar.yp;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.uddi4j.UDDIElement;
+
+/** A YP query from a client in the same node as the YPServer, handed to the
+ * server directly rather than through MTS.  It carries the typed uddi4j 
+ * request rather than a DOM element, and the server answers with the typed
+ * uddi4j response (or a fault element) through the Receiver.
+ * These never leave the node, so are never serialized.
+ **/
+final class YPLocalQueryMessage extends YPQueryMessage {
+  /** Accepts the server's answer to a local query **/
+  interface Receiver {
+    /** @param response a UDDIElement, a fault Element, or null **/
+    void receive(MessageAddress server, Object key, Object response);
+  }
+
+  private final transient UDDIElement request;
+  private final transient Receiver receiver;
+
+  YPLocalQueryMessage(MessageAddress s, MessageAddress d, UDDIElement request, 
+                      boolean isInquiry, Object key, Receiver receiver) {
+    super(s,d,null,isInquiry,key);
+    this.request = request;
+    this.receiver = receiver;
+  }
+
+  /** get the typed uddi4j request **/
+  UDDIElement getRequest() { return request; }
+
+  Receiver getReceiver() { return receiver; }
+}
@@ -26,13 +26,24 @@
 
 package org.cougaar.yp;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
 import org.cougaar.core.mts.Message;
 import org.cougaar.core.mts.MessageAddress;
 import org.w3c.dom.Element;
 
+/** Base class of the messages between YP clients and servers.
+ * The DOM element is serialized with ElementCodec rather than as a DOM
+ * object tree, and is only rebuilt when first asked for on the receiving side.
+ **/
 public abstract class YPMessage extends Message {
   private Object key;
-  private Element el;
+  private transient Element el;
+  /** the encoded element, until getElement decodes it **/
+  private transient byte[] encoded;
+
   protected YPMessage(MessageAddress s, MessageAddress d, Element el, Object key) {
     super(s,d);
     this.key = key;
@@ -42,7 +53,40 @@ public abstract class YPMessage extends Message {
   public Object getKey() { return key; }
 
   /** get the DOM element of this message **/
-  public Element getElement() { return el; }
-}
+  public synchronized Element getElement() { 
+    if (el == null && encoded != null) {
+      el = ElementCodec.decode(encoded);
+      encoded = null;
+    }
+    return el; 
+  }
 
+  private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    writeElement(out, (el != null) ? ElementCodec.encode(el) : encoded);
+  }
 
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    encoded = readElement(in);
+  }
+
+  /** Write the encoding of an element, or null **/
+  static void writeElement(ObjectOutputStream out, byte[] bytes) throws IOException {
+    if (bytes == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  /** @return the encoding written by #writeElement **/
+  static byte[] readElement(ObjectInputStream in) throws IOException {
+    int l = in.readInt();
+    if (l < 0) return null;
+    byte[] bytes = new byte[l];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
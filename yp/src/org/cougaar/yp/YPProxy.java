@@ -57,9 +57,10 @@ public interface YPProxy {
     public static final int NO_COMMUNITY_SEARCH = 0;
     public static final int HIERARCHICAL_COMMUNITY_SEARCH = 1;
     public static final int SINGLE_COMMUNITY_SEARCH = 2;
+    public static final int PARALLEL_HIERARCHICAL_COMMUNITY_SEARCH = 3;
 
     /* Change to highest value if more added */
-    public static final int MAX = SINGLE_COMMUNITY_SEARCH;
+    public static final int MAX = PARALLEL_HIERARCHICAL_COMMUNITY_SEARCH;
 
     static public boolean validSearchMode(int searchMode) {
       return (searchMode >= 0) && (searchMode <= SearchMode.MAX);
@@ -67,7 +68,14 @@ public interface YPProxy {
     
     static public boolean validCommunitySearchMode(int searchMode) {
       return ((searchMode == HIERARCHICAL_COMMUNITY_SEARCH) ||
-	      (searchMode == SINGLE_COMMUNITY_SEARCH));
+	      (searchMode == SINGLE_COMMUNITY_SEARCH) ||
+	      (searchMode == PARALLEL_HIERARCHICAL_COMMUNITY_SEARCH));
+    }
+
+    /** @return true if the search mode walks up the community structure **/
+    static public boolean isHierarchicalSearchMode(int searchMode) {
+      return ((searchMode == HIERARCHICAL_COMMUNITY_SEARCH) ||
+	      (searchMode == PARALLEL_HIERARCHICAL_COMMUNITY_SEARCH));
     }
   }
 
@@ -80,6 +88,10 @@ public interface YPProxy {
    * search has reached the topmost community. 
    * SINGLE_COMMUNITY_SEARCH - Query is applied only to the
    * YP server in the specified YP community context.
+   * PARALLEL_HIERARCHICAL_COMMUNITY_SEARCH - As HIERARCHICAL_COMMUNITY_SEARCH,
+   * except that the query is sent to several levels of the community 
+   * structure at once (see org.cougaar.yp.FanOutLevels), and the answer from
+   * the nearest level which has one is used.
    */
   public int getSearchMode();
 
@@ -910,6 +922,12 @@ public interface YPProxy {
   // Extra method for sending queries without blackboard involvement.
   
   YPFuture execute(YPFuture pendingQuery);
+
+  /** Execute several pending queries of this proxy with a single message 
+   * to the YP server.
+   * @see YPService#submitBatch
+   **/
+  YPFuture[] execute(YPFuture[] pendingQueries);
 }
 
 /*
@@ -94,6 +94,7 @@ import org.uddi4j.util.TModelBag;
 import org.uddi4j.util.TModelKey;
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 // this could easily be code generated from uddi4j sources.  sigh.
 
@@ -150,6 +151,11 @@ class YPProxyImpl implements YPProxy {
     return searchMode;
   }
 
+  /** @return the MessageAddress or Community the proxy queries, or null **/
+  Object getContext() {
+    return context;
+  }
+
   /**
    * @note The returned YPFuture will contain a BindingDetail when completed.
    */
@@ -348,7 +354,7 @@ class YPProxyImpl implements YPProxy {
   public YPFuture get_assertionStatusReport(String authInfo,
                                               String completionStatus) {
     GetAssertionStatusReport o = new GetAssertionStatusReport(authInfo, completionStatus);
-    return pkg(o,true, AssertionStatusReport.class);
+    return pkgAuth(o,true, AssertionStatusReport.class);
   }
 
   /**
@@ -357,7 +363,7 @@ class YPProxyImpl implements YPProxy {
   public YPFuture get_assertionStatusReport(String authInfo,
                                               CompletionStatus completionStatus) {
     GetAssertionStatusReport o = new GetAssertionStatusReport(authInfo, completionStatus);
-    return pkg(o,true, AssertionStatusReport.class);
+    return pkgAuth(o,true, AssertionStatusReport.class);
   }
 
   /**
@@ -365,7 +371,7 @@ class YPProxyImpl implements YPProxy {
    */
   public YPFuture get_publisherAssertions(String authInfo) {
     GetPublisherAssertions o = new GetPublisherAssertions(authInfo);
-    return pkg(o,true, PublisherAssertions.class);
+    return pkgAuth(o,true, PublisherAssertions.class);
   }
 
   /**
@@ -458,7 +464,7 @@ class YPProxyImpl implements YPProxy {
    * @note The returned YPFuture will contain a DispositionReport when completed.
    */
   public YPFuture discard_authToken(String authInfo) {
-    return pkg(new DiscardAuthToken(authInfo),false, DispositionReport.class);
+    return pkgAuth(new DiscardAuthToken(authInfo),false, DispositionReport.class);
   }
 
   /**
@@ -467,7 +473,7 @@ class YPProxyImpl implements YPProxy {
   public YPFuture discard_authToken(AuthInfo authInfo) {
     DiscardAuthToken o = new DiscardAuthToken();
     o.setAuthInfo(authInfo);
-    return pkg(o,false, DispositionReport.class);
+    return pkgAuth(o,false, DispositionReport.class);
   }
 
   /**
@@ -475,14 +481,14 @@ class YPProxyImpl implements YPProxy {
    */
   public YPFuture get_authToken(String userid,
                                   String cred) {
-    return pkg(new GetAuthToken(userid, cred),true, AuthToken.class);
+    return pkgAuth(new GetAuthToken(userid, cred),true, AuthToken.class);
   }
 
   /**
    * @note The returned YPFuture will contain a RegisteredInfo when completed.
    */
   public YPFuture get_registeredInfo(String authInfo) {
-    return pkg(new GetRegisteredInfo(authInfo),true, RegisteredInfo.class);
+    return pkgAuth(new GetRegisteredInfo(authInfo),true, RegisteredInfo.class);
   }
 
   /**
@@ -490,7 +496,7 @@ class YPProxyImpl implements YPProxy {
    */
   public YPFuture save_binding(String authInfo,
                                  Vector bindingTemplates) {
-    return pkg(new SaveBinding(authInfo, bindingTemplates),true, BindingDetail.class);
+    return pkg(new SaveBinding(authInfo, bindingTemplates),false, BindingDetail.class);
   }
 
   /**
@@ -500,7 +506,7 @@ class YPProxyImpl implements YPProxy {
                                   Vector businessEntities) {
     SaveBusiness o = new SaveBusiness(authInfo);
     o.setBusinessEntityVector(businessEntities);
-    return pkg(o,true, BusinessDetail.class);
+    return pkg(o,false, BusinessDetail.class);
   }
 
   /**
@@ -508,7 +514,7 @@ class YPProxyImpl implements YPProxy {
    */
   public YPFuture save_service(String authInfo,
                                  Vector businessServices) {
-    return pkg(new SaveService(authInfo, businessServices),true, ServiceDetail.class);
+    return pkg(new SaveService(authInfo, businessServices),false, ServiceDetail.class);
   }
 
   /**
@@ -518,7 +524,7 @@ class YPProxyImpl implements YPProxy {
                                 Vector tModels) {
     SaveTModel o = new SaveTModel(authInfo);
     o.setTModelVector(tModels);
-    return pkg(o,true, TModelDetail.class);
+    return pkg(o,false, TModelDetail.class);
   }
 
   /**
@@ -568,6 +574,11 @@ class YPProxyImpl implements YPProxy {
    * @note The returned YPFuture will contain a Element when completed.
    */
   public YPFuture send(UDDIElement el, boolean inquiry) {
+    if (el instanceof GetAuthToken || el instanceof DiscardAuthToken ||
+        el instanceof GetRegisteredInfo || el instanceof GetAssertionStatusReport ||
+        el instanceof GetPublisherAssertions) {
+      return pkgAuth(el,inquiry, null);
+    }
     return pkg(el,inquiry, null);
   }
 
@@ -575,7 +586,9 @@ class YPProxyImpl implements YPProxy {
    * @note The returned YPFuture will contain a Element when completed.
    */
   public YPFuture send(Element el, boolean inquiry) {
-    return pkg(el,inquiry, null);
+    YPFutureImpl f = new YPFutureImpl(context, el, inquiry, null, getSearchMode());
+    f.setAuthBound(isAuthBound(el));
+    return pkg(f);
   }
 
 
@@ -585,11 +598,45 @@ class YPProxyImpl implements YPProxy {
 
 
   private YPFuture pkg(UDDIElement el, boolean qp, Class rc) {
-    return pkg(toXML(el), qp, rc);
+    // the Element is built later, if needed
+    return pkg(new YPFutureImpl(context, el, qp, rc, getSearchMode()));
+  }
+
+  /** As #pkg(UDDIElement, boolean, Class), for a request tied to an authToken
+   * @see YPFuture#isAuthBound
+   **/
+  private YPFuture pkgAuth(UDDIElement el, boolean qp, Class rc) {
+    YPFutureImpl f = new YPFutureImpl(context, el, qp, rc, getSearchMode());
+    f.setAuthBound(true);
+    return pkg(f);
+  }
+
+  /** Is a request element one which is tied to an authToken?
+   * @see YPFuture#isAuthBound
+   **/
+  static boolean isAuthBound(Element el) {
+    String tag = localName(el);
+    if (tag.equals("get_authToken")) {
+      return true;
+    }
+    for (Node c = el.getFirstChild(); c != null; c = c.getNextSibling()) {
+      if (c.getNodeType() == Node.ELEMENT_NODE && localName(c).equals("authInfo")) {
+        return true;
+      }
+    }
+    return false;
   }
 
-  private YPFuture pkg(Element el, boolean qp, Class rc) {
-    YPFuture fut = new YPFutureImpl(context, el, qp, rc, getSearchMode());
+  private static String localName(Node n) {
+    String tag = n.getLocalName();
+    if (tag == null) {
+      tag = n.getNodeName();
+      tag = tag.substring(tag.indexOf(':')+1);
+    }
+    return tag;
+  }
+
+  private YPFuture pkg(YPFuture fut) {
     if (autosubmit) {
       return yps.submit(fut);
     } else {
@@ -603,6 +650,10 @@ class YPProxyImpl implements YPProxy {
     return yps.submit(pendingQuery);
   }
 
+  public YPFuture[] execute(YPFuture[] pendingQueries) {
+    return yps.submitBatch(pendingQueries);
+  }
+
 
   //
   // utilities
@@ -614,7 +665,7 @@ class YPProxyImpl implements YPProxy {
     return v;
   }
 
-  private Element toXML(UDDIElement el) {
+  static Element toXML(UDDIElement el) {
     Element base = createTmpElement();
     el.saveToXML(base);
     Element e = (Element) base.getFirstChild();
@@ -634,7 +685,7 @@ class YPProxyImpl implements YPProxy {
     return _docBuilder;
   }
 
-  private Element createTmpElement() {
+  private static Element createTmpElement() {
     DocumentBuilder docBuilder = getDocBuilder();
     synchronized (docBuilder) {
       try {
@@ -0,0 +1,151 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2002-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.yp;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.cougaar.core.mts.Message;
+import org.cougaar.core.mts.MessageAddress;
+
+/** Carries the publish log of a primary YPServer to its read-only replicas,
+ * and the replicas' subscriptions and acknowledgements back to the primary.
+ * <p>
+ * The log is numbered within an epoch, which changes whenever the primary
+ * restarts.  A LOG message brings a replica to entry #getSeq of the epoch,
+ * either by executing its statements against the replica's database 
+ * (which must then be at the entry before) or, if #isReset, by replacing
+ * the replica's database with them.
+ * <p>
+ * Every message also carries the sender's generation: the number of times
+ * a standby has taken over from the primary whose log is being followed.
+ * A server which hears of a later generation than its own has been
+ * superseded, and a PRIMARY message tells it which server now leads.
+ * @see ReplicationLog
+ * @see ReplicaState#supersedes
+ **/
+public class YPReplicationMessage extends Message {
+  /** replica to primary: send the log following entry seq of epoch **/
+  public static final int SUBSCRIBE = 0;
+  /** primary to replica: an entry of the log **/
+  public static final int LOG = 1;
+  /** replica to primary: the log has been applied through entry seq **/
+  public static final int ACK = 2;
+  /** any server to any other: #getPrimary leads generation #getGeneration, so follow it **/
+  public static final int PRIMARY = 3;
+
+  private final int kind;
+  private final long generation;
+  private final MessageAddress primary;
+  private final long epoch;
+  private final long seq;
+  private final long latestSeq;
+  private final long time;
+  private final boolean reset;
+  private final List statements;
+
+  private YPReplicationMessage(MessageAddress s, MessageAddress d, int kind,
+                               long generation, MessageAddress primary,
+                               long epoch, long seq, long latestSeq, long time,
+                               boolean reset, List statements) {
+    super(s,d);
+    this.kind = kind;
+    this.generation = generation;
+    this.primary = primary;
+    this.epoch = epoch;
+    this.seq = seq;
+    this.latestSeq = latestSeq;
+    this.time = time;
+    this.reset = reset;
+    this.statements = statements;
+  }
+
+  /** A replica's request for the log following entry seq of epoch **/
+  static YPReplicationMessage subscribe(MessageAddress replica, MessageAddress primary,
+                                        long generation, long epoch, long seq) {
+    return new YPReplicationMessage(replica, primary, SUBSCRIBE, generation, primary,
+                                    epoch, seq, seq, 0L, false, Collections.EMPTY_LIST);
+  }
+
+  /** An entry of the primary's log.
+   * @param latestSeq the primary's latest entry, which may be later than seq when catching up
+   * @param time when the primary committed the entry
+   * @param statements the SQL statements (Strings) of the entry
+   **/
+  static YPReplicationMessage log(MessageAddress primary, MessageAddress replica,
+                                  long generation, long epoch, long seq, long latestSeq,
+                                  long time, boolean reset, List statements) {
+    return new YPReplicationMessage(primary, replica, LOG, generation, primary,
+                                    epoch, seq, latestSeq, time, reset, statements);
+  }
+
+  /** A replica's report that it has applied the log through entry seq.
+   * @param lag milliseconds between the primary committing entry seq and the replica applying it
+   **/
+  static YPReplicationMessage ack(MessageAddress replica, MessageAddress primary,
+                                  long generation, long epoch, long seq, long lag) {
+    return new YPReplicationMessage(replica, primary, ACK, generation, primary,
+                                    epoch, seq, seq, lag, false, Collections.EMPTY_LIST);
+  }
+
+  /** Tell another server that primary leads generation, e.g. after taking
+   * over, or to fence a primary which has been superseded.
+   **/
+  static YPReplicationMessage primary(MessageAddress sender, MessageAddress target,
+                                      MessageAddress primary, long generation) {
+    return new YPReplicationMessage(sender, target, PRIMARY, generation, primary,
+                                    0L, 0L, 0L, 0L, false, Collections.EMPTY_LIST);
+  }
+
+  public int getKind() { return kind; }
+  /** the generation of the primary which the sender follows, or leads **/
+  public long getGeneration() { return generation; }
+  /** the primary which the sender follows, or is **/
+  public MessageAddress getPrimary() { return primary; }
+  public long getEpoch() { return epoch; }
+  public long getSeq() { return seq; }
+  /** the latest entry of the primary's log when the message was sent **/
+  public long getLatestSeq() { return latestSeq; }
+  /** for LOG, when the primary committed the entry; for ACK, the replica's lag in milliseconds **/
+  public long getTime() { return time; }
+  /** true if the statements replace the replica's database rather than modify it **/
+  public boolean isReset() { return reset; }
+  /** the SQL statements (Strings) of a LOG message **/
+  public List getStatements() { return statements; }
+
+  public String toString() {
+    String k = (kind == SUBSCRIBE) ? "subscribe" : (kind == LOG) ? (reset ? "reset" : "log") :
+      (kind == ACK) ? "ack" : "primary";
+    if (kind == PRIMARY) {
+      return "<YPReplicationMessage " + k + " " + getOriginator() + "->" + getTarget() +
+        " " + primary + " leads generation " + generation + ">";
+    }
+    return "<YPReplicationMessage " + k + " " + getOriginator() + "->" + getTarget() +
+      " g" + generation + " " + epoch + ":" + seq + "/" + latestSeq +
+      (kind == LOG ? " " + statements.size() + " statements" : "") + ">";
+  }
+}
@@ -26,23 +26,33 @@
 
 package org.cougaar.yp;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
 
 import org.cougaar.core.agent.service.alarm.Alarm;
 import org.cougaar.core.agent.service.MessageSwitchService;
+import org.cougaar.core.blackboard.BlackboardClient;
+import org.cougaar.core.component.ComponentLoadFailure;
 import org.cougaar.core.component.ComponentSupport;
 import org.cougaar.core.component.ServiceBroker;
 import org.cougaar.core.mts.Message;
@@ -53,18 +63,28 @@ import org.cougaar.core.persist.PersistenceIdentity;
 import org.cougaar.core.persist.PersistenceService;
 import org.cougaar.core.persist.RehydrationData;
 import org.cougaar.core.service.AlarmService;
+import org.cougaar.core.service.BlackboardService;
 import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.service.community.Community;
+import org.cougaar.core.service.community.CommunityResponse;
+import org.cougaar.core.service.community.CommunityResponseListener;
+import org.cougaar.core.service.community.CommunityService;
+import org.cougaar.core.service.community.Entity;
+import org.cougaar.core.thread.SchedulableStatus;
 import org.cougaar.util.log.Logger;
 import org.cougaar.util.log.Logging;
 import org.cougaar.util.TimeSpan;
+import org.cougaar.util.UnaryPredicate;
 
 import org.juddi.error.JUDDIException;
+import org.juddi.error.UnsupportedException;
 import org.juddi.service.ServiceFactory;
 import org.juddi.service.UDDIService;
 import org.juddi.transport.axis.RequestFactory;
 import org.juddi.util.Config;
 
 import org.uddi4j.UDDIElement;
+import org.uddi4j.UDDIException;
 import org.uddi4j.response.DispositionReport;
 
 import org.w3c.dom.Document;
@@ -89,29 +109,105 @@ public class YPServer extends ComponentSupport {
   "org.cougaar.yp.UnusedDBConnectionInterval";
   private static final long MILLI_PER_MINUTE = (60 * 1000);
 
+  /** Number of threads used to answer inquiries concurrently.
+   * The default of 1 answers all queries in arrival order on a single thread.
+   **/
+  private static int INQUIRY_THREADS = 1;
+  private static final String INQUIRY_THREADS_PROPERTY =
+  "org.cougaar.yp.InquiryThreads";
+
+  /** Maximum number of queued queries handled per service thread cycle.
+   * Consecutive inquiries in a batch share a datastore transaction.
+   * Values less than 1 drain the whole queue each cycle.
+   **/
+  private static int BATCH_SIZE = 1;
+  private static final String BATCH_SIZE_PROPERTY =
+  "org.cougaar.yp.BatchSize";
+
+  /** Maximum number of inquiry responses to cache, 0 to disable the cache.
+   * The cache is flushed whenever a publish is executed.
+   **/
+  private static int RESPONSE_CACHE_SIZE = 0;
+  private static final String RESPONSE_CACHE_SIZE_PROPERTY =
+  "org.cougaar.yp.ResponseCacheSize";
+
+  /** If true, use an in-memory database regardless of the 
+   * org.juddi.inMemoryDatabase setting in juddi.properties.
+   **/
+  private static final boolean IN_MEMORY_DATABASE =
+    Boolean.getBoolean("org.cougaar.yp.InMemoryDatabase");
+
+  /** If true, delete the database directories of earlier runs of this agent
+   * under juddi.homeDir on load, except for the most recent.  Off by default,
+   * since they may be all that is left of a database whose persistence
+   * snapshot has been lost.
+   **/
+  private static final boolean REMOVE_OLD_DATABASES =
+    Boolean.getBoolean("org.cougaar.yp.RemoveOldDatabases");
+
+  /** Milliseconds the seed database image is kept after it was last used **/
+  private static final long SEED_IMAGE_LINGER = 60000;
+
+  /** Milliseconds a replica waits to hear from its primary before subscribing again **/
+  private static long REPLICA_RESUBSCRIBE_INTERVAL = 60000;
+  private static final String REPLICA_RESUBSCRIBE_INTERVAL_PROPERTY =
+  "org.cougaar.yp.ReplicaResubscribeInterval";
+
+  /** Milliseconds a standby waits to hear from its primary before taking over **/
+  private static long STANDBY_TAKEOVER_INTERVAL = 30000;
+  private static final String STANDBY_TAKEOVER_INTERVAL_PROPERTY =
+  "org.cougaar.yp.StandbyTakeoverInterval";
+
   static {
     UNUSED_DBCONNECTION_TIMEOUT = MILLI_PER_MINUTE * 
       Integer.getInteger(UNUSED_DBCONNECTION_TIMEOUT_PROPERTY,
 			 (int) UNUSED_DBCONNECTION_TIMEOUT).longValue();
+    INQUIRY_THREADS = 
+      Integer.getInteger(INQUIRY_THREADS_PROPERTY, INQUIRY_THREADS).intValue();
+    BATCH_SIZE = 
+      Integer.getInteger(BATCH_SIZE_PROPERTY, BATCH_SIZE).intValue();
+    RESPONSE_CACHE_SIZE = 
+      Integer.getInteger(RESPONSE_CACHE_SIZE_PROPERTY, RESPONSE_CACHE_SIZE).intValue();
+    REPLICA_RESUBSCRIBE_INTERVAL =
+      Integer.getInteger(REPLICA_RESUBSCRIBE_INTERVAL_PROPERTY,
+                         (int) REPLICA_RESUBSCRIBE_INTERVAL).longValue();
+    STANDBY_TAKEOVER_INTERVAL =
+      Integer.getInteger(STANDBY_TAKEOVER_INTERVAL_PROPERTY,
+                         (int) STANDBY_TAKEOVER_INTERVAL).longValue();
   }
 
-  private DocumentBuilder builder;
+  /** DocumentBuilders are not thread-safe, so keep one per thread **/
+  private final ThreadLocal builder = new ThreadLocal();
   private MessageSwitchService mss = null;
   private MessageAddress originMA;
+  /** the primary whose publish log we follow, or null if we are not (or are 
+   * no longer) a replica.  Only changed under databaseLocker.
+   **/
+  private volatile MessageAddress primaryMA = null;
+  /** true if we take over from primaryMA when it fails.  Only changed under databaseLocker. **/
+  private volatile boolean standby = false;
   private String dbName;
 
   private long lastMessageTime = TimeSpan.MIN_VALUE;
+
+  /** cache of inquiry responses, null if disabled **/
+  private final ResponseCache responseCache = 
+    (RESPONSE_CACHE_SIZE > 0) ? new ResponseCache(RESPONSE_CACHE_SIZE) : null;
   private Alarm timerAlarm = null;
 
   private DocumentBuilder getBuilder() {
-    if (builder == null) {
+    DocumentBuilder db = (DocumentBuilder) builder.get();
+    if (db == null) {
       try {
-        builder = documentBuilderFactory.newDocumentBuilder();
+        synchronized (documentBuilderFactory) {
+          db = documentBuilderFactory.newDocumentBuilder();
+        }
+        builder.set(db);
       } catch (Exception e) {
         logger.error("Could not create builder factory", e);
       }
     }
-    return builder;
+    return db;
   }
 
   /** alarm service for closing unused connections
@@ -128,6 +224,10 @@ public class YPServer extends ComponentSupport {
   private ThreadService threadService;
   public void setThreadService(ThreadService ts) { this.threadService = ts; }
 
+  /** community service for a standby to take over the YPServer role, set by introspection **/
+  private CommunityService communityService;
+  public void setCommunityService(CommunityService cs) { this.communityService = cs; }
+
   // must use explicit getService
   private PersistenceService persistenceService;
   private PersistenceIdentity persistenceIdentity = new PersistenceIdentity(YPServer.class.getName());
@@ -135,6 +235,16 @@ public class YPServer extends ComponentSupport {
   protected final String installPath = System.getProperty("org.cougaar.install.path", "/tmp");
   protected final String workspacePath = System.getProperty("org.cougaar.workspace", installPath + "/workspace");
   protected File dbDirectory;
+  /** the last full snapshot of dbDirectory, shared by our DatabaseEnvelopes **/
+  private SnapshotBase snapshotBase;
+  /** where we publish the images of snapshotBase, so that they are persisted once **/
+  private BlackboardService blackboard;
+  // sync on snapshotBaseLock
+  private final Object snapshotBaseLock = new Object();
+  private SnapshotBase.Image publishedImage = null; // the image we last published
+  private SnapshotBase.Image rehydratedImage = null; // the base we were rehydrated from
+  /** true if our database is an in-memory database, set by initDB **/
+  private boolean inMemory = false;
 
   public YPServer() {
     String hp = System.getProperty("juddi.homeDir", "");
@@ -144,6 +254,54 @@ public class YPServer extends ComponentSupport {
     }
   }
 
+  private static final String REPLICA_OF_PARAMETER = "replicaOf=";
+  private static final String STANDBY_FOR_PARAMETER = "standbyFor=";
+
+  /** Parameters are of the form "name=value".  Those understood are
+   * <dl>
+   * <dt>replicaOf=<agent></dt><dd>Make this server a read-only replica of the
+   * YPServer in that agent.</dd>
+   * <dt>standbyFor=<agent></dt><dd>As replicaOf, but keep the database open
+   * and, if the primary is not heard from for org.cougaar.yp.StandbyTakeoverInterval
+   * milliseconds, take over from it: start accepting publishes, drop our YPReplica
+   * role and remove the primary's YPServer role in our YP communities, and
+   * redirect the other YPReplicas in them to us.  The failed primary should
+   * be restarted as a standby for us.</dd>
+   * </dl>
+   * Replicas and standbys should also be given the YPReplica role in the YP
+   * community, so that clients do not send them publishes.
+   * <p>
+   * Each takeover starts a new generation.  A primary which was only cut off
+   * steps down to be a standby once it hears of the new generation, and
+   * loses the publishes it accepted in the meantime; see doc/yp.txt.  The
+   * role and generation are persisted, and once there has been a takeover,
+   * the persisted role overrides these parameters when the agent is restarted.
+   **/
+  public void setParameter(Object o) {
+    if (!(o instanceof List)) {
+      return;
+    }
+    for (Iterator i = ((List) o).iterator(); i.hasNext(); ) {
+      String p = String.valueOf(i.next()).trim();
+      if (p.startsWith(REPLICA_OF_PARAMETER)) {
+        String agent = p.substring(REPLICA_OF_PARAMETER.length()).trim();
+        if (agent.length() == 0) {
+          throw new ComponentLoadFailure("No primary specified by parameter "+p, this);
+        }
+        primaryMA = MessageAddress.getMessageAddress(agent);
+      } else if (p.startsWith(STANDBY_FOR_PARAMETER)) {
+        String agent = p.substring(STANDBY_FOR_PARAMETER.length()).trim();
+        if (agent.length() == 0) {
+          throw new ComponentLoadFailure("No primary specified by parameter "+p, this);
+        }
+        primaryMA = MessageAddress.getMessageAddress(agent);
+        standby = true;
+      } else {
+        throw new ComponentLoadFailure("Unrecognized parameter "+p, this);
+      }
+    }
+  }
+
   public void load() {
     super.load();
     ServiceBroker sb = getServiceBroker();
@@ -160,6 +318,16 @@ public class YPServer extends ComponentSupport {
       deencapsulateDatabase(rd);
     }
 
+    blackboard = (BlackboardService) sb.getService(new BlackboardClient() {
+        public String getBlackboardClientName() { return "YPServer"; }
+        public long currentTimeMillis() { return System.currentTimeMillis(); }
+      },
+                                                   BlackboardService.class,
+                                                   null);
+    if (blackboard == null && logger.isInfoEnabled()) {
+      logger.info("YPServer has no BlackboardService, every persist will carry the whole database");
+    }
+
     // Must get the MessageSwitchService and MessageAddress before
     // registering the MessageHandler - cause messages may start pouring in
     mss = (MessageSwitchService) sb.getService(this,MessageSwitchService.class, null);
@@ -191,24 +359,113 @@ public class YPServer extends ComponentSupport {
 	    
             getServiceThread().addMessage((YPQueryMessage) message);
             return true;
+          } else if (message instanceof YPReplicationMessage) {
+            if (logger.isDebugEnabled()) {
+              logger.debug("handleMessage: " + message);
+            }
+            getServiceThread().addMessage(message);
+            return true;
           }
           return false;
         }
       };
 
+    // keep our database open while we are loaded.  hsqldb shuts a file
+    // database down when its last connection is closed, and reopening
+    // it replays the whole script, so idling (see TimerAlarm) only trims
+    // the connection pool.
+    Config.dbTag.set(dbName);
+    try {
+      org.juddi.datastore.jdbc.HSQLDataStoreFactory.openDatabase();
+    } catch (SQLException sqle) {
+      logger.error(originMA + " unable to open database " + dbName, sqle);
+    }
+    if (!inMemory) {
+      startTimer();             // publishes our first snapshot base, even if we are never asked
+    }
+
     mss.addMessageHandler(mh);
+
+    synchronized (localServers) {
+      localServers.put(originMA, this);
+    }
+
+    if (primaryMA != null) {
+      if (logger.isInfoEnabled()) {
+        logger.info(originMA + " is a read-only " + (standby ? "standby" : "replica") + 
+                    " of " + primaryMA);
+      }
+      replicating = true;
+      subscribeToPrimary();
+      startReplicaTimer();
+    }
+  }
+
+  /** The YPServers loaded in this node, by agent address.  Sync on itself. **/
+  private static final HashMap localServers = new HashMap(5);
+
+  /** @return the YPServer of the agent if it is in this node, or null **/
+  static YPServer getLocalServer(MessageAddress ma) {
+    synchronized (localServers) {
+      return (YPServer) localServers.get(ma);
+    }
+  }
+
+  private void removeLocalServer() {
+    synchronized (localServers) {
+      if (localServers.get(originMA) == this) {
+        localServers.remove(originMA);
+      }
+    }
+  }
+
+  /** Queue a query from a client in this node **/
+  void addLocalQuery(YPLocalQueryMessage m) {
+    if (logger.isDebugEnabled()) {
+      logger.debug("addLocalQuery: source " + m.getOriginator() +
+                   " key " + m.getKey() +
+                   " request " + m.getRequest());
+    }
+    getServiceThread().addMessage(m);
   }
 
   public void suspend() {
     if (logger.isInfoEnabled()) {
       logger.info(originMA.toString() + " suspending");
     }
+    removeLocalServer();
       
     // suspend all children
     if (logger.isInfoEnabled()) {
       logger.info(originMA.toString() + "Recursively suspending all child components");
     }
     super.suspend();
+
+    if (logger.isInfoEnabled() && serviceThread != null) {
+      logger.info(originMA.toString() + " handled " + 
+		  serviceThread.getMessageCount() + " queries in " +
+		  serviceThread.getBatchCount() + " batches (largest " +
+		  serviceThread.getLargestBatch() + ")");
+    }
+    if (logger.isInfoEnabled() && responseCache != null) {
+      logger.info(originMA.toString() + " " + responseCache);
+    }
+    if (logger.isInfoEnabled()) {
+      synchronized (inFlight) {
+        logger.info(originMA.toString() + " answered " + coalesced +
+                    " inquiries by sharing an identical inquiry's response");
+      }
+    }
+    if (logger.isInfoEnabled() && primaryMA != null) {
+      logger.info(originMA.toString() + " " + describeReplica());
+    }
+    if (logger.isInfoEnabled()) {
+      synchronized (databaseLocker) {
+        if (replicationLog != null) {
+          logger.info(originMA.toString() + " " + replicationLog);
+        }
+      }
+    }
     
     if (logger.isInfoEnabled()) {
       logger.info(originMA.toString() + 
@@ -216,7 +473,10 @@ public class YPServer extends ComponentSupport {
     }
     
     Config.dbTag.set(dbName);
+    // the database itself stays open (see unload)
     org.juddi.datastore.jdbc.HSQLDataStoreFactory.closeConnection();
+    // in case it was shut down anyway, the next snapshot must start afresh
+    invalidateSnapshotBase();
 
     if (timerAlarm != null) {
       if (logger.isInfoEnabled()) {
@@ -225,6 +485,10 @@ public class YPServer extends ComponentSupport {
       }
       timerAlarm.cancel();
     }
+    replicating = false;
+    if (replicaAlarm != null) {
+      replicaAlarm.cancel();
+    }
 
     getServiceBroker().releaseService(this, MessageSwitchService.class, 
 				      mss);
@@ -242,17 +506,29 @@ public class YPServer extends ComponentSupport {
     // Restart database????
   }
 
+  public void unload() {
+    super.unload();
+    removeLocalServer();
+
+    // nothing else will ever shut down our database (see load)
+    Config.dbTag.set(dbName);
+    org.juddi.datastore.jdbc.HSQLDataStoreFactory.closeDatabase();
+  }
+
   //
   // persistence
   // 
   private List encapsulateDatabase() {
 
-    List l = new ArrayList(1);
+    List l = new ArrayList(2);
     DatabaseEnvelope de = getDatabaseEnvelope();
     if (DatabaseEnvelope.logger.isInfoEnabled()) {
       DatabaseEnvelope.logger.info("Encapsulating database " + de);
     }
     l.add(de);
+    synchronized (databaseLocker) {
+      l.add(new ReplicationRole(primaryMA, standby, replicaState.getGeneration()));
+    }
     return l;
   }
 
@@ -262,15 +538,58 @@ public class YPServer extends ComponentSupport {
       DatabaseEnvelope de = (DatabaseEnvelope) l.get(0);
       DatabaseEnvelope.logger.info("Dencapsulating database "+de);
       setDatabaseEnvelope(de);
+      if (l.size() > 1) {       // not in snapshots from before replication
+        ReplicationRole role = (ReplicationRole) l.get(1);
+        synchronized (databaseLocker) {
+          if (role.generation > 0L) {
+            // changed by a takeover since our parameters were written
+            primaryMA = role.primary;
+            standby = role.standby;
+          }
+          replicaState.setGeneration(role.generation);
+        }
+        if (logger.isInfoEnabled()) {
+          logger.info("Rehydrated " + role);
+        }
+      }
     } catch (Exception e) {     // arrayOOB, classcast, etc
       logger.error("Persistence snapshot objects corrupt", e);
     }
   }
 
+  /** Whom a YPServer follows, if anyone, and in which generation.  Persisted
+   * so that a standby which has taken over, or a primary which has stepped
+   * down, keeps its new role when restarted with its original parameters.
+   **/
+  private static final class ReplicationRole implements Serializable {
+    final MessageAddress primary; // null if we are the primary
+    final boolean standby;
+    final long generation;
+    ReplicationRole(MessageAddress primary, boolean standby, long generation) {
+      this.primary = primary;
+      this.standby = standby;
+      this.generation = generation;
+    }
+    public String toString() {
+      return (primary == null) ? "primary of generation " + generation :
+        ((standby ? "standby for " : "replica of ") + primary + " in generation " + generation);
+    }
+  }
+
   private DatabaseEnvelope databaseEnvelope = null;
   private final DatabaseEnvelope.Locker databaseLocker = new DatabaseEnvelope.Locker() {
       public void stop() { }
       public void start() { }
+      public void checkpoint() throws IOException {
+        Config.dbTag.set(dbName);
+        try {
+          org.juddi.datastore.jdbc.HSQLDataStoreFactory.checkpoint();
+        } catch (SQLException e) {
+          IOException ioe = new IOException("Could not checkpoint "+dbDirectory);
+          ioe.initCause(e);
+          throw ioe;
+        }
+      }
     };
 
   protected DatabaseEnvelope getDatabaseEnvelope() {
@@ -285,13 +604,138 @@ public class YPServer extends ComponentSupport {
     }
   }
 
+  /** Called when the database files have been rewritten outside of a snapshot **/
+  private void invalidateSnapshotBase() {
+    if (snapshotBase != null) snapshotBase.invalidate();
+  }
+
+  /** Called once no messages have arrived for UNUSED_DBCONNECTION_TIMEOUT.
+   * Rather than closing every connection, which would shut the database
+   * down and make the next query replay its whole script, compact the
+   * script with a checkpoint while we are quiet and let the pool close
+   * its surplus connections.  The database itself stays open (see load).
+   * The checkpoint rewrites the script, so it also takes a new snapshot base.
+   **/
+  private void idleDatabase() {
+    Config.dbTag.set(dbName);
+    if (!inMemory && !snapshotBase.isCurrent()) {
+      try {
+        snapshotBase.compact(databaseLocker);
+      } catch (IOException ioe) {
+        logger.warn(originMA + " unable to checkpoint idle database", ioe);
+        invalidateSnapshotBase();
+      }
+    }
+    publishSnapshotBase();
+    org.juddi.datastore.jdbc.HSQLDataStoreFactory.sweepConnections();
+  }
+
+  /** Called from the timer while we are busy: retake the snapshot base if 
+   * the deltas persisted with it have grown too large, and publish it.
+   * Must not be called while synchronized on databaseLocker.
+   **/
+  private void maintainSnapshotBase() {
+    if (inMemory || snapshotBase == null) {
+      return;
+    }
+    if (snapshotBase.needsCompaction()) {
+      try {
+        snapshotBase.compact(databaseLocker);
+      } catch (IOException ioe) {
+        logger.warn(originMA + " unable to compact the database snapshot base", ioe);
+        invalidateSnapshotBase();
+        return;
+      }
+    }
+    publishSnapshotBase();
+  }
+
+  /** Publish the current image of snapshotBase to the blackboard in place of any
+   * older ones, so that persistence writes it once rather than with every 
+   * DatabaseEnvelope, then discard the images it replaces.  Must not be called
+   * while synchronized on databaseLocker or snapshotBase, since persistence may
+   * need both while we are in the transaction.
+   **/
+  private void publishSnapshotBase() {
+    if (inMemory || snapshotBase == null) {
+      return;
+    }
+    synchronized (snapshotBaseLock) {
+      final SnapshotBase.Image image;
+      try {
+        image = snapshotBase.getImage();
+      } catch (IOException ioe) {
+        logger.warn(originMA + " unable to compress the database snapshot base", ioe);
+        return;
+      }
+      if (image == null || image == publishedImage) {
+        return;
+      }
+
+      List retired = new ArrayList();
+      if (blackboard != null) {
+        final String name = image.getName();
+        try {
+          blackboard.openTransaction();
+          // including any image we were rehydrated with
+          Collection old = blackboard.query(new UnaryPredicate() {
+              public boolean execute(Object o) {
+                return (o instanceof SnapshotBase.Image) && o != image &&
+                  name.equals(((SnapshotBase.Image) o).getName());
+              }
+            });
+          for (Iterator i = old.iterator(); i.hasNext(); ) {
+            Object o = i.next();
+            blackboard.publishRemove(o);
+            retired.add(o);
+          }
+          blackboard.publishAdd(image);
+        } finally {
+          blackboard.closeTransaction();
+        }
+      } else if (publishedImage != null) {
+        retired.add(publishedImage);
+      }
+      if (rehydratedImage != null && rehydratedImage != image && !retired.contains(rehydratedImage)) {
+        retired.add(rehydratedImage);
+      }
+      publishedImage = image;
+      rehydratedImage = null;
+
+      for (int i = 0, l = retired.size(); i < l; i++) {
+        ((SnapshotBase.Image) retired.get(i)).discard();
+      }
+      if (logger.isInfoEnabled()) {
+        logger.info(originMA + " published " + image + " in place of " + retired);
+      }
+    }
+  }
+
   /** Called each time the database is modified **/
   private void snapshotDatabase() {
     synchronized (databaseLocker) {
-      databaseEnvelope = new DatabaseEnvelope(dbDirectory, databaseLocker);
+      if (inMemory) {
+        databaseEnvelope = new DatabaseEnvelope(databaseScripter, databaseLocker);
+      } else {
+        databaseEnvelope = new DatabaseEnvelope(snapshotBase, databaseLocker);
+      }
     }
   }
 
+  /** Scripts our in-memory database, called by DatabaseEnvelope when persisting **/
+  private final DatabaseEnvelope.Scripter databaseScripter = new DatabaseEnvelope.Scripter() {
+      public List getScript() throws IOException {
+        Config.dbTag.set(dbName);   // probably not on one of our threads
+        try {
+          return org.juddi.datastore.jdbc.HSQLDataStoreFactory.scriptDatabase();
+        } catch (SQLException sqle) {
+          IOException ioe = new IOException("Could not script database "+dbName);
+          ioe.initCause(sqle);
+          throw ioe;
+        }
+      }
+    };
+
 
   //
   // Service thread for incoming (response) messages
@@ -299,8 +743,11 @@ public class YPServer extends ComponentSupport {
 
   private ServiceThread serviceThread = null;
   private void startServiceThread() {
-    serviceThread = new ServiceThread(new ServiceThread.Callback() {
+    serviceThread = new ServiceThread(new ServiceThread.BatchCallback() {
       public void dispatch(Message m) {
+        dispatchBatch(Collections.singletonList(m));
+      }
+      public void dispatchBatch(List messages) {
 	if (logger.isDebugEnabled()) {
 	  ThreadGroup threadGroup = Thread.currentThread().getThreadGroup();
 	  Thread threads[] = new Thread[threadGroup.activeCount()];
@@ -324,12 +771,151 @@ public class YPServer extends ComponentSupport {
 	startTimer();
 
 	Config.dbTag.set(dbName);
-	dispatchQuery((YPQueryMessage)m);
-
+	// consecutive inquiries are answered together
+	List inquiries = new ArrayList(messages.size());
+	for (int i = 0, l = messages.size(); i < l; i++) {
+	  Message m = (Message) messages.get(i);
+	  if (m instanceof YPReplicationMessage) {
+	    // ordered like a publish, since applying the log modifies the database
+	    if (!inquiries.isEmpty()) {
+	      dispatchInquiries(inquiries);
+	      inquiries.clear();
+	    }
+	    waitForInquiries();
+	    dispatchReplication((YPReplicationMessage) m);
+	    continue;
+	  }
+	  YPQueryMessage r = (YPQueryMessage) m;
+	  if (r.isInquiry()) {
+	    if (inquiryThread != null) {
+	      // inquiries may run alongside each other, but not alongside a publish
+	      synchronized (inquiryLock) {
+		activeInquiries++;
+	      }
+	      inquiryThread.addMessage(r);
+	    } else {
+	      inquiries.add(r);
+	    }
+	  } else {
+	    if (!inquiries.isEmpty()) {
+	      dispatchInquiries(inquiries);
+	      inquiries.clear();
+	    }
+	    waitForInquiries();
+	    dispatchQuery(r, getBuilder());
+	  }
+	}
+	if (!inquiries.isEmpty()) {
+	  dispatchInquiries(inquiries);
+	}
       }},
       logger,
       "YPServer("+originMA+")");
+    serviceThread.setMaxBatch(BATCH_SIZE);
     serviceThread.start(threadService);
+
+    if (INQUIRY_THREADS > 1) {
+      inquiryThread = new ServiceThread(new ServiceThread.BatchCallback() {
+          public void dispatch(Message m) {
+            dispatchBatch(Collections.singletonList(m));
+          }
+          public void dispatchBatch(List messages) {
+            try {
+              Config.dbTag.set(dbName);
+              dispatchInquiries(messages);
+            } finally {
+              synchronized (inquiryLock) {
+                activeInquiries -= messages.size();
+                if (activeInquiries == 0) {
+                  inquiryLock.notifyAll();
+                }
+              }
+            }
+          }},
+        logger,
+        "YPServer("+originMA+") inquiry",
+        INQUIRY_THREADS);
+      inquiryThread.setMaxBatch(BATCH_SIZE);
+      inquiryThread.start(threadService);
+    }
+  }
+
+  /** Answer a run of inquiries using one DocumentBuilder and,
+   * when there is more than one, a single datastore connection and 
+   * transaction.  Config.dbTag must already be set.
+   **/
+  private void dispatchInquiries(List inquiries) {
+    DocumentBuilder db = getBuilder();
+
+    // group identical inquiries so that each is only answered once
+    List groups = new ArrayList(inquiries.size());
+    HashMap byKey = null;
+    for (int i = 0, l = inquiries.size(); i < l; i++) {
+      YPQueryMessage r = (YPQueryMessage) inquiries.get(i);
+      String key = (l > 1)?coalesceKey(r):null;
+      if (key == null) {
+        groups.add(r);
+        continue;
+      }
+      if (byKey == null) byKey = new HashMap(l*2);
+      List group = (List) byKey.get(key);
+      if (group == null) {
+        group = new ArrayList(1);
+        byKey.put(key, group);
+        groups.add(group);
+      }
+      group.add(r);
+    }
+
+    boolean batched = 
+      (groups.size() > 1) && 
+      org.juddi.datastore.jdbc.HSQLDataStoreFactory.beginBatch();
+    try {
+      for (int i = 0, l = groups.size(); i < l; i++) {
+        Object o = groups.get(i);
+        if (o instanceof YPQueryMessage) {
+          dispatchQuery((YPQueryMessage) o, db);
+        } else {
+          List group = (List) o;
+          dispatchQuery((YPQueryMessage) group.get(0), db, group.subList(1, group.size()));
+        }
+      }
+    } finally {
+      if (batched) {
+        org.juddi.datastore.jdbc.HSQLDataStoreFactory.endBatch();
+      }
+    }
+  }
+
+  /** Handles inquiries when running with more than one inquiry thread **/
+  private ServiceThread inquiryThread = null;
+
+  private final Object inquiryLock = new Object();
+  /** number of inquiries handed to inquiryThread but not yet answered **/
+  private int activeInquiries = 0; // sync on inquiryLock
+
+  /** Block until all outstanding inquiries have been answered.
+   * Called from the (single) service thread before a publish is executed
+   * so that publishes remain ordered with respect to all other queries
+   * and have exclusive use of the database.
+   **/
+  private void waitForInquiries() {
+    synchronized (inquiryLock) {
+      if (activeInquiries == 0) {
+        return;
+      }
+      SchedulableStatus.withWait("YPServer publish waiting for inquiries",
+                                 new Runnable() { public void run() {
+                                   while (activeInquiries > 0) {
+                                     try {
+                                       inquiryLock.wait();
+                                     } catch (InterruptedException ie) {
+                                       logger.warn("Saw InterruptedException while waiting for inquiries", ie);
+                                     }
+                                   }
+                                 }
+                                 });
+    }
   }
 
   protected ServiceThread getServiceThread() {
@@ -374,18 +960,21 @@ public class YPServer extends ComponentSupport {
 	    (System.currentTimeMillis() - 
 	     UNUSED_DBCONNECTION_TIMEOUT)) {
 	  if (logger.isDebugEnabled()) {
-	    logger.debug("expire() - closing connection, lastMessageTime = " +
+	    logger.debug("expire() - idling database, lastMessageTime = " +
 			 lastMessageTime + 
 			 " expired alarm = " + this);
 	  }
-	  Config.dbTag.set(dbName);
-	  org.juddi.datastore.jdbc.HSQLDataStoreFactory.closeConnection();
+	  idleDatabase();
 	} else {
 	  if (logger.isDebugEnabled()) {
 	    logger.debug("expire() - leaving connection open, lastMessageTime = " +
 			 lastMessageTime + 
 			 " expired alarm = " + this);
 	  }
+	  // trim the pool here rather than on a query's thread
+	  Config.dbTag.set(dbName);
+	  org.juddi.datastore.jdbc.HSQLDataStoreFactory.sweepConnections();
+	  maintainSnapshotBase();
 	  startTimer();
 	}
       }
@@ -404,8 +993,46 @@ public class YPServer extends ComponentSupport {
     }
   }
 
-  private int rc = 0;
-  private synchronized void dispatchQuery(YPQueryMessage r) {
+  private int rc = 0;           // sync on rcLock
+  private final Object rcLock = new Object();
+
+  /** canonical inquiry -> List of YPQueryMessages waiting on the thread 
+   * which is answering that inquiry.  Also locks coalesced.
+   **/
+  private final HashMap inFlight = new HashMap(11);
+  /** number of inquiries answered with another's response, sync on inFlight **/
+  private int coalesced = 0;
+
+  /** @return the key under which identical inquiries may share a response, or null **/
+  private static String coalesceKey(YPQueryMessage r) {
+    Element qel = r.getElement();
+    if (!r.isInquiry() || qel == null || !ResponseCache.isCacheable(qel)) {
+      return null;
+    }
+    return ResponseCache.canonicalKey(qel);
+  }
+
+  private void dispatchQuery(YPQueryMessage r, DocumentBuilder db) {
+    dispatchQuery(r, db, Collections.EMPTY_LIST);
+  }
+
+  /** Answer a query and send the response.  Inquiries may be dispatched
+   * concurrently, while publishes are always dispatched by themselves
+   * from the service thread.
+   * <p>
+   * An inquiry identical to one already being answered by another thread is
+   * handed to that thread instead, and answered with the same response.
+   * @param followers identical inquiries to answer with the same response
+   **/
+  private void dispatchQuery(YPQueryMessage r, DocumentBuilder db, List followers) {
+    if (r instanceof YPLocalQueryMessage) {
+      dispatchLocalQuery((YPLocalQueryMessage) r);
+      return;
+    }
+    if (r instanceof YPBatchQueryMessage) {
+      dispatchBatchQuery((YPBatchQueryMessage) r, db);
+      return;
+    }
     if (logger.isDebugEnabled()) {
       logger.debug("dispatchQuery: query: " + r.getKey() + " " +
 		  r.getElement());
@@ -415,10 +1042,40 @@ public class YPServer extends ComponentSupport {
     Element qel = r.getElement();
     Element rel = null;
     boolean isInquiry = r.isInquiry();
-    synchronized (databaseLocker) {
-      rel = executeQuery(qel);
-      if (!isInquiry) {
-        snapshotDatabase();
+    if (isInquiry) {
+      String ck = (inquiryThread != null)?coalesceKey(r):null;
+      List waiters = null;
+      if (ck != null) {
+        synchronized (inFlight) {
+          waiters = (List) inFlight.get(ck);
+          if (waiters != null) {
+            // someone else is already answering this one
+            waiters.add(r);
+            waiters.addAll(followers);
+            return;
+          }
+          waiters = new ArrayList(followers);
+          inFlight.put(ck, waiters);
+        }
+      }
+      try {
+        // inquiries do not modify the database so need not exclude persistence
+        rel = executeQuery(qel, db);
+      } finally {
+        if (ck != null) {
+          synchronized (inFlight) {
+            inFlight.remove(ck);
+          }
+        }
+      }
+      if (waiters != null) {
+        followers = waiters;
+      }
+    } else if ((rel = readOnlyFault()) == null) {
+      synchronized (databaseLocker) {
+        beginPublish();
+        rel = executeQuery(qel, db);
+        endPublish();
       }
     }
     YPResponseMessage m = new YPResponseMessage(originMA, r.getOriginator(), rel, key);
@@ -430,7 +1087,524 @@ public class YPServer extends ComponentSupport {
 		   " rel " + rel);
     }
     sendMessage(m);
-    rc++;
+
+    for (int i = 0, l = followers.size(); i < l; i++) {
+      YPQueryMessage f = (YPQueryMessage) followers.get(i);
+      Element fel = (rel == null)?null:(Element) rel.cloneNode(true);
+      if (logger.isDebugEnabled()) {
+        logger.debug("dispatchQuery: sharing response to " + key +
+                     " with " + f.getOriginator() + " key " + f.getKey());
+      }
+      sendMessage(new YPResponseMessage(originMA, f.getOriginator(), fel, f.getKey()));
+    }
+    synchronized (rcLock) {
+      rc += 1 + followers.size();
+    }
+    if (!followers.isEmpty()) {
+      synchronized (inFlight) {
+        coalesced += followers.size();
+      }
+    }
+  }
+
+  /** Answer a query from a client in this node with the typed uddi4j response **/
+  private void dispatchLocalQuery(YPLocalQueryMessage r) {
+    Object response;
+    if (r.isInquiry()) {
+      response = executeRequest(r.getRequest());
+    } else if ((response = readOnlyFault()) == null) {
+      synchronized (databaseLocker) {
+        beginPublish();
+        response = executeRequest(r.getRequest());
+        endPublish();
+      }
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("dispatchLocalQuery: response - target " + r.getOriginator() +
+                   " key " + r.getKey() +
+                   " response " + response);
+    }
+    r.getReceiver().receive(originMA, r.getKey(), response);
+    synchronized (rcLock) {
+      rc++;
+    }
+  }
+
+  /** Answer each query of a batch in order, and send all of the responses
+   * in a single message.  A batch containing publishes is executed by itself
+   * under the database lock and within a single datastore transaction.  If one
+   * of its publishes fails the rest are not attempted, the transaction is
+   * rolled back, and every query of the batch is answered with the fault.
+   **/
+  private void dispatchBatchQuery(YPBatchQueryMessage r, DocumentBuilder db) {
+    int n = r.size();
+    if (logger.isDebugEnabled()) {
+      logger.debug("dispatchBatchQuery: " + n + " queries from " + r.getOriginator());
+    }
+
+    Element[] rels = new Element[n];
+    Object[] keys = new Object[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = r.getKey(i);
+    }
+
+    if (r.isInquiry()) {
+      boolean batched = org.juddi.datastore.jdbc.HSQLDataStoreFactory.beginBatch();
+      try {
+        for (int i = 0; i < n; i++) {
+          rels[i] = executeQuery(r.getElement(i), db);
+        }
+      } finally {
+        if (batched) {
+          org.juddi.datastore.jdbc.HSQLDataStoreFactory.endBatch();
+        }
+      }
+    } else if (primaryMA != null) {
+      Element fault = readOnlyFault();
+      for (int i = 0; i < n; i++) {
+        rels[i] = (fault == null) ? null : (Element) fault.cloneNode(true);
+      }
+    } else {
+      synchronized (databaseLocker) {
+        // inquiries in the batch must see its own (uncommitted) publishes
+        if (responseCache != null) {
+          responseCache.invalidate();
+        }
+        beginPublish();
+        boolean batched = org.juddi.datastore.jdbc.HSQLDataStoreFactory.beginBatch();
+        int failed = -1;
+        try {
+          for (int i = 0; i < n; i++) {
+            Element rel = executeQuery(r.getElement(i), db);
+            rels[i] = rel;
+            if (!r.isInquiry(i) && (rel == null || UDDIException.isValidElement(rel))) {
+              failed = i;
+              break;
+            }
+          }
+        } finally {
+          if (batched) {
+            if (failed >= 0) {
+              org.juddi.datastore.jdbc.HSQLDataStoreFactory.abortBatch();
+            } else {
+              org.juddi.datastore.jdbc.HSQLDataStoreFactory.endBatch();
+            }
+          }
+        }
+        if (failed >= 0) {
+          if (logger.isWarnEnabled()) {
+            logger.warn("dispatchBatchQuery: query " + failed + " of " + n + 
+                        " from " + r.getOriginator() + " failed" +
+                        (batched ? ", batch rolled back" : ""));
+          }
+          Element fault = rels[failed];
+          // without a batch transaction, the earlier publishes stand
+          for (int i = batched ? 0 : failed+1; i < n; i++) {
+            if (i != failed) {
+              rels[i] = (fault == null) ? null : (Element) fault.cloneNode(true);
+            }
+          }
+        }
+        endPublish();
+      }
+    }
+
+    sendMessage(new YPBatchResponseMessage(originMA, r.getOriginator(), rels, keys));
+    synchronized (rcLock) {
+      rc += n;
+    }
+  }
+
+  //
+  // Replication
+  //
+
+  /** Our publish log, created when the first replica subscribes.  Sync on databaseLocker. **/
+  private ReplicationLog replicationLog = null;
+
+  /** where a replica is in its primary's log **/
+  private final ReplicaState replicaState = new ReplicaState();
+  private ReplicaAlarm replicaAlarm = null;
+  /** false once suspended, so that the replica alarm is not renewed **/
+  private volatile boolean replicating = false;
+
+  /** @return the fault with which a replica answers a publish, or null if we may publish **/
+  private Element readOnlyFault() {
+    if (primaryMA == null) {
+      return null;
+    }
+    if (logger.isWarnEnabled()) {
+      logger.warn(originMA + " refusing a publish as a read-only replica of " + primaryMA);
+    }
+    return getFaultDoc(new UnsupportedException(originMA + " is a read-only replica of " + primaryMA));
+  }
+
+  /** Called under databaseLocker before a publish is executed **/
+  private void beginPublish() {
+    if (replicationLog != null) {
+      try {
+        replicationLog.begin();
+      } catch (Exception e) {
+        logger.error(originMA + " unable to mark the publish log", e);
+      }
+    }
+  }
+
+  /** Called under databaseLocker after a publish has been executed **/
+  private void endPublish() {
+    if (responseCache != null) {
+      responseCache.invalidate();
+    }
+    snapshotDatabase();
+    if (replicationLog != null) {
+      List messages;
+      try {
+        messages = replicationLog.end();
+      } catch (Exception e) {
+        logger.error(originMA + " unable to log publish for replicas", e);
+        return;
+      }
+      for (int i = 0, l = messages.size(); i < l; i++) {
+        sendMessage((Message) messages.get(i));
+      }
+    }
+  }
+
+  /** Handle a replication message on the service thread.  Config.dbTag must already be set. **/
+  private void dispatchReplication(YPReplicationMessage m) {
+    if (m.getKind() == YPReplicationMessage.LOG) {
+      applyLog(m);
+      return;
+    }
+    if (m.getKind() == YPReplicationMessage.PRIMARY) {
+      followPrimary(m.getPrimary(), m.getGeneration(), m.getOriginator());
+      return;
+    }
+
+    MessageAddress primary = primaryMA;
+    if (primary != null) {
+      // perhaps we have stepped down, or the sender missed a takeover
+      if (logger.isInfoEnabled()) {
+        logger.info(originMA + " redirecting " + m + " to our primary " + primary);
+      }
+      sendMessage(YPReplicationMessage.primary(originMA, m.getOriginator(), primary,
+                                               replicaState.getGeneration()));
+      return;
+    }
+    if (snapshotBase == null && !inMemory) {
+      logger.error(originMA + " ignoring " + m + " without a database");
+      return;
+    }
+
+    List messages = Collections.EMPTY_LIST;
+    synchronized (databaseLocker) {
+      if (replicationLog == null) {
+        replicationLog = new ReplicationLog(originMA, inMemory ? null :
+                                            new File(snapshotBase.getDirectory(),
+                                                     snapshotBase.getScriptName()),
+                                            replicaState.getGeneration());
+      }
+      if (m.getKind() == YPReplicationMessage.SUBSCRIBE) {
+        try {
+          messages = replicationLog.subscribe(m);
+        } catch (SQLException sqle) {
+          logger.error(originMA + " unable to answer " + m, sqle);
+        }
+      } else {
+        replicationLog.ack(m);
+      }
+    }
+    for (int i = 0, l = messages.size(); i < l; i++) {
+      sendMessage((Message) messages.get(i));
+    }
+  }
+
+  /** Apply an entry of our primary's publish log, subscribing again if we have missed any **/
+  private void applyLog(YPReplicationMessage m) {
+    MessageAddress primary = primaryMA;
+    if (!m.getOriginator().equals(primary)) {
+      // another primary: either one we have not yet heard has taken over,
+      // or one which has been superseded and must be fenced
+      followPrimary(m.getOriginator(), m.getGeneration(), m.getOriginator());
+      return;
+    }
+
+    int action = replicaState.receive(m, System.currentTimeMillis());
+    if (action == ReplicaState.IGNORE) {
+      return;
+    }
+    if (action == ReplicaState.RESUBSCRIBE) {
+      if (logger.isInfoEnabled()) {
+        logger.info(originMA + " has lost its place in the log of " + primary + " at " + m);
+      }
+      subscribeToPrimary();
+      return;
+    }
+    try {
+      synchronized (databaseLocker) {
+        if (primaryMA == null) {
+          return;               // we've taken over in the meantime
+        }
+        if (m.isReset()) {
+          org.juddi.datastore.jdbc.HSQLDataStoreFactory.replaceDatabase(m.getStatements());
+        } else {
+          org.juddi.datastore.jdbc.HSQLDataStoreFactory.replayScript(m.getStatements());
+        }
+        if (responseCache != null) {
+          responseCache.invalidate();
+        }
+        snapshotDatabase();
+      }
+    } catch (SQLException sqle) {
+      logger.error(originMA + " unable to apply " + m + ", will ask for a reset", sqle);
+      replicaState.lose();
+      subscribeToPrimary();
+      return;
+    }
+
+    long lag = System.currentTimeMillis() - m.getTime();
+    long behind = replicaState.applied(m, lag);
+    if (logger.isDebugEnabled()) {
+      logger.debug(originMA + " applied " + m + ", " + behind + 
+                   " entries behind, lag " + lag + "ms");
+    }
+    sendMessage(replicaState.ack(originMA, m));
+  }
+
+  /** Handle word of a primary leading a generation, from sender: follow it if it has
+   * superseded ours (stepping down if we are the primary), otherwise tell the
+   * sender which primary it has been superseded by.
+   **/
+  private void followPrimary(MessageAddress primary, long generation, MessageAddress sender) {
+    MessageAddress ours;
+    long ourGeneration;
+    boolean steppedDown = false;
+    synchronized (databaseLocker) {
+      ours = (primaryMA == null) ? originMA : primaryMA;
+      ourGeneration = replicaState.getGeneration();
+      if (primary.equals(ours)) {
+        return;                 // nothing new
+      }
+      if (ReplicaState.supersedes(primary, generation, ours, ourGeneration)) {
+        if (primaryMA == null) {
+          if (logger.isWarnEnabled()) {
+            logger.warn(originMA + " has been superseded by " + primary + " in generation " +
+                        generation + ", so is stepping down to be its standby.  Publishes " +
+                        "since that generation began will be lost");
+          }
+          standby = true;
+          replicationLog = null;  // our replicas will be redirected by our primary
+          replicating = true;
+          steppedDown = true;
+        } else if (logger.isInfoEnabled()) {
+          logger.info(originMA + " following " + primary + " in generation " + generation +
+                      " in place of " + primaryMA);
+        }
+        primaryMA = primary;
+        replicaState.follow(generation);
+        ours = null;
+      }
+    }
+
+    if (ours != null) {
+      if (logger.isWarnEnabled()) {
+        logger.warn(originMA + " telling " + sender + " that " + primary + " of generation " +
+                    generation + " has been superseded by " + ours + " of generation " +
+                    ourGeneration);
+      }
+      sendMessage(YPReplicationMessage.primary(originMA, sender, ours, ourGeneration));
+      return;
+    }
+    subscribeToPrimary();
+    if (steppedDown) {
+      startReplicaTimer();      // a replica's timer is already running
+    }
+  }
+
+  /** Ask our primary for its log following the last entry we applied **/
+  private void subscribeToPrimary() {
+    MessageAddress primary = primaryMA;
+    if (primary == null) {
+      return;
+    }
+    YPReplicationMessage m = replicaState.subscribe(originMA, primary, System.currentTimeMillis());
+    if (logger.isDebugEnabled()) {
+      logger.debug("subscribeToPrimary: " + m);
+    }
+    sendMessage(m);
+  }
+
+  /** @return a description of how far a replica is behind its primary **/
+  private String describeReplica() {
+    return (standby ? "standby for " : "replica of ") + primaryMA + " " + replicaState;
+  }
+
+  /** @return how often a replica checks that it is still hearing from its primary **/
+  private static long replicaCheckInterval(boolean standby) {
+    return standby ?
+      Math.min(REPLICA_RESUBSCRIBE_INTERVAL, STANDBY_TAKEOVER_INTERVAL/3) :
+      REPLICA_RESUBSCRIBE_INTERVAL;
+  }
+
+  private void startReplicaTimer() {
+    if (!replicating) {
+      return;
+    }
+    replicaAlarm = new ReplicaAlarm(System.currentTimeMillis() + replicaCheckInterval(standby));
+    getAlarmService().addRealTimeAlarm(replicaAlarm);
+  }
+
+  /** Called by a standby when its primary has not been heard from for too long.
+   * Start accepting publishes, and swap roles with the primary in our communities.
+   **/
+  private void takeOver() {
+    String state = describeReplica();
+    MessageAddress failed;
+    synchronized (databaseLocker) {
+      failed = primaryMA;
+      if (failed == null) {
+        return;
+      }
+      primaryMA = null;         // from now on, publishes are ours
+      replicaState.lead();
+    }
+    replicating = false;
+    if (logger.isWarnEnabled()) {
+      logger.warn(originMA + " taking over as " + state);
+    }
+    claimServerRole(failed);
+    // should it only be cut off from us, it will step down when it hears this
+    sendMessage(YPReplicationMessage.primary(originMA, failed, originMA, 
+                                             replicaState.getGeneration()));
+  }
+
+  /** Drop our YPReplica role, and the failed primary's YPServer role, in each
+   * of our YP communities, so that clients send their publishes to us, and
+   * tell the other replicas in them to follow us instead.
+   **/
+  private void claimServerRole(final MessageAddress failed) {
+    if (communityService == null) {
+      logger.error(originMA + " has no CommunityService, so cannot take the YPServer role from " +
+                   failed);
+      return;
+    }
+    CommunityResponseListener crl = new CommunityResponseListener() {
+        public void getResponse(CommunityResponse resp) {
+          if (resp.getStatus() == CommunityResponse.SUCCESS) {
+            claimServerRole(failed, (Collection) resp.getContent());
+          } else {
+            logger.error(originMA + " unable to find its YP communities to take over from " +
+                         failed + ": " + resp);
+          }
+        }
+      };
+    Collection communities = 
+      communityService.listParentCommunities(originMA.toString(), "(CommunityType=YPCommunity)", crl);
+    if (communities != null) {
+      claimServerRole(failed, communities);
+    }
+  }
+
+  private void claimServerRole(MessageAddress failed, Collection communities) {
+    ModificationItem[] ours = new ModificationItem[] {
+      new ModificationItem(DirContext.REMOVE_ATTRIBUTE, 
+                           new BasicAttribute("Role", YPClientComponent.YP_REPLICA_ROLE))
+    };
+    ModificationItem[] theirs = new ModificationItem[] {
+      new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute("Role", "YPServer"))
+    };
+    for (Iterator i = communities.iterator(); i.hasNext(); ) {
+      final String community = (String) i.next();
+      if (logger.isInfoEnabled()) {
+        logger.info(originMA + " taking the YPServer role of " + failed + " in " + community);
+      }
+      communityService.modifyAttributes(community, originMA.toString(), ours, 
+                                        roleListener(community, originMA));
+      communityService.modifyAttributes(community, failed.toString(), theirs, 
+                                        roleListener(community, failed));
+      communityService.searchCommunity(community, REPLICA_FILTER, false, Community.AGENTS_ONLY,
+                                       announceListener(community));
+    }
+  }
+
+  private static final String REPLICA_FILTER = "(Role=" + YPClientComponent.YP_REPLICA_ROLE + ")";
+
+  /** @return a listener which redirects the replicas found by a search of community to us **/
+  private CommunityResponseListener announceListener(final String community) {
+    return new CommunityResponseListener() {
+        public void getResponse(CommunityResponse resp) {
+          if (resp.getStatus() != CommunityResponse.SUCCESS) {
+            logger.error(originMA + " unable to find the replicas in " + community + 
+                         " to redirect: " + resp);
+            return;
+          }
+          long generation = replicaState.getGeneration();
+          for (Iterator i = ((Collection) resp.getContent()).iterator(); i.hasNext(); ) {
+            MessageAddress replica = MessageAddress.getMessageAddress(((Entity) i.next()).getName());
+            if (!replica.equals(originMA)) {
+              if (logger.isInfoEnabled()) {
+                logger.info(originMA + " redirecting replica " + replica + " in " + community);
+              }
+              sendMessage(YPReplicationMessage.primary(originMA, replica, originMA, generation));
+            }
+          }
+        }
+      };
+  }
+
+  private CommunityResponseListener roleListener(final String community, final MessageAddress agent) {
+    return new CommunityResponseListener() {
+        public void getResponse(CommunityResponse resp) {
+          if (resp.getStatus() != CommunityResponse.SUCCESS) {
+            logger.error(originMA + " unable to change the role of " + agent + " in " + 
+                         community + ": " + resp);
+          }
+        }
+      };
+  }
+
+  /** Subscribes again when a replica has not heard from its primary for a while,
+   * e.g. because the primary has restarted and forgotten its replicas, or
+   * when a subscription has gone unanswered.  The primary answers even when
+   * there is nothing new, so this also tells us when we are up to date, and
+   * tells a standby when the primary has failed.
+   **/
+  private class ReplicaAlarm implements Alarm {
+    private final long expiresAt;
+    private boolean expired = false;
+    ReplicaAlarm(long expirationTime) {
+      expiresAt = expirationTime;
+    }
+    public long getExpirationTime() { return expiresAt; }
+    public void expire() {
+      synchronized (this) {
+        if (expired) {
+          return;
+        }
+        expired = true;
+      }
+      long now = System.currentTimeMillis();
+      long interval = replicaCheckInterval(standby);
+      if (standby && replicaState.hasFailed(now, STANDBY_TAKEOVER_INTERVAL)) {
+        takeOver();
+        return;
+      }
+      if (replicaState.isQuiet(now, interval)) {
+        subscribeToPrimary();
+      }
+      startReplicaTimer();
+    }
+    public synchronized boolean hasExpired() { return expired; }
+    public synchronized boolean cancel() {
+      boolean was = expired;
+      expired = true;
+      return was;
+    }
+    public synchronized String toString() {
+      return "<ReplicaAlarm " + expiresAt +
+        (expired ? "(Expired) " : " ") +
+        "for YPServer at " + originMA + ">";
+    }
   }
 
   protected void sendMessage(Message m) {
@@ -443,20 +1617,34 @@ public class YPServer extends ComponentSupport {
   public static final String DB_USER = "sa";
   public static final String DB_PASS = "";
 
-  Element executeQuery(Element qel) {
+  Element executeQuery(Element qel, DocumentBuilder db) {
     try {
       if (logger.isDebugEnabled()) {
 	logger.debug("executeQuery: query -");
 	describeElement(qel);
       }
 
-      Document document = getBuilder().newDocument();
+      String cacheKey = null;
+      long generation = 0L;
+      if (responseCache != null && ResponseCache.isCacheable(qel)) {
+        cacheKey = ResponseCache.canonicalKey(qel);
+        generation = responseCache.getGeneration();
+        Element cached = responseCache.get(cacheKey);
+        if (cached != null) {
+          if (logger.isDebugEnabled()) {
+            logger.debug("executeQuery: cached response "+responseCache);
+          }
+          return cached;
+        }
+      }
+
+      Document document = db.newDocument();
       Element holder = document.createElement("holder");
       document.appendChild(holder);  // holder element is thrown away
       Element response = document.getDocumentElement();
 
       UDDIElement request = (UDDIElement) RequestFactory.getRequest(qel);
-      UDDIService uService = ServiceFactory.getService(request.getClass().getName());
+      UDDIService uService = ServiceFactory.getService(request);
 
       try {
         uService.invoke(request).saveToXML(response);
@@ -465,7 +1653,11 @@ public class YPServer extends ComponentSupport {
           logger.debug("executeQuery: returned -");
           describeElement(response);
         }
-        return (Element) response.getChildNodes().item(0);
+        Element rel = (Element) response.getChildNodes().item(0);
+        if (cacheKey != null && rel != null) {
+          responseCache.put(cacheKey, rel, generation);
+        }
+        return rel;
 
       } catch (JUDDIException je) {
         Element fault = getFaultDoc(je);
@@ -481,6 +1673,26 @@ public class YPServer extends ComponentSupport {
     }
   }
 
+  /** As executeQuery, but with a typed uddi4j request, as from a local client.
+   * @return the uddi4j response, a fault element, or null
+   **/
+  Object executeRequest(UDDIElement request) {
+    try {
+      UDDIService uService = ServiceFactory.getService(request);
+      try {
+        return uService.invoke(request);
+      } catch (JUDDIException je) {
+        if (logger.isWarnEnabled()) {
+          logger.warn("executeRequest: fault", je);
+        }
+        return getFaultDoc(je);
+      }
+    } catch (Exception e) {
+      logger.error("Uncaught Exception ", e);
+      return null;
+    }
+  }
+
   // from JUDDI/../JUDDIProxy
   private Element getFaultDoc(JUDDIException e)
   {
@@ -538,46 +1750,201 @@ public class YPServer extends ComponentSupport {
     }
   }
 
-  private void copyFiles(String ypDir, String juddiDir) {
-    File ypSourceDir = new File(installPath + File.separator + "yp" + 
-				File.separator + "data" +
-				File.separator + "juddi" + 
-				File.separator + ypDir);
+  /** @return yp/data/juddi/ypDir under the installation **/
+  private File seedDirectory(String ypDir) {
+    return new File(installPath + File.separator + "yp" + 
+                    File.separator + "data" +
+                    File.separator + "juddi" + 
+                    File.separator + ypDir);
+  }
+
+  /** Copy the files of yp/data/juddi/ypDir into juddiDir **/
+  private void copyFiles(String ypDir, String juddiDir) throws IOException {
+    File ypSourceDir = seedDirectory(ypDir);
     File newDir = new File(juddiDir);
 
+    File []ypSourceFiles = ypSourceDir.listFiles();
+    if (ypSourceFiles == null) {
+      throw new IOException("Unable to read " + ypSourceDir.getPath() + " directory");
+    }
+    for (int index = 0; index < ypSourceFiles.length; index++) {
+      File ypSourceFile = ypSourceFiles[index];
+      if (ypSourceFile.isFile()) {
+        SnapshotBase.copyFile(ypSourceFile, new File(newDir, ypSourceFile.getName()));
+      }
+    }
+  }
+
+  /** Contents of the files of the seed database after it has been opened once
+   * and compacted, by file name.  Shared by all YPServers in the node.
+   **/
+  private static HashMap seedImage = null;
+  /** when seedImage was last used, sync on YPServer.class **/
+  private static long seedImageUsed = 0L;
+
+  /** @return the seed database image, building it on first use.
+   * The seed in yp/data/juddi/hsql is marked as not cleanly closed, so 
+   * every copy of it would be recovered when opened, which is by far the
+   * slowest part of starting a YPServer.  Instead we open one copy and
+   * shut it down compacted, then clone the result for each YPServer.
+   **/
+  private HashMap getSeedImage() throws IOException, SQLException {
+    synchronized (YPServer.class) {
+      if (seedImage == null) {
+        File build = new File(System.getProperty("juddi.homeDir", ""), 
+                              "YPSeedImage@" + System.currentTimeMillis());
+        try {
+          if (!build.mkdirs()) {
+            throw new IOException("Unable to create " + build.getAbsolutePath());
+          }
+          copyFiles("hsql", build.getPath());
+          org.juddi.datastore.jdbc.HSQLDataStoreFactory.compactDatabase(
+            new File(build, "juddidb").getPath());
+
+          HashMap image = new HashMap(7);
+          File[] files = build.listFiles();
+          for (int i = 0; i < files.length; i++) {
+            if (files[i].isFile()) {
+              image.put(files[i].getName(), readFile(files[i]));
+            }
+          }
+          if (!image.containsKey(DatabaseEnvelope.SCRIPT_ENTRY)) {
+            throw new IOException("No "+DatabaseEnvelope.SCRIPT_ENTRY+" in "+build);
+          }
+          seedImage = image;
+        } finally {
+          deleteDirectory(build);
+        }
+      }
+      seedImageUsed = System.currentTimeMillis();
+      return seedImage;
+    }
+  }
+
+  /** Drop the seed database image if it has not been used for SEED_IMAGE_LINGER,
+   * i.e. once the YPServers started together have all loaded.
+   **/
+  private static void releaseSeedImage() {
+    synchronized (YPServer.class) {
+      if (seedImage != null && 
+          System.currentTimeMillis() - seedImageUsed >= SEED_IMAGE_LINGER) {
+        seedImage = null;
+        if (logger.isDebugEnabled()) {
+          logger.debug("Released the seed database image");
+        }
+      }
+    }
+  }
+
+  /** Calls #releaseSeedImage once the image has lingered after our use of it **/
+  private class SeedImageAlarm implements Alarm {
+    private final long expiresAt = System.currentTimeMillis() + SEED_IMAGE_LINGER;
+    private boolean expired = false;
+    public long getExpirationTime() { return expiresAt; }
+    public void expire() {
+      synchronized (this) {
+        if (expired) {
+          return;
+        }
+        expired = true;
+      }
+      releaseSeedImage();
+    }
+    public synchronized boolean hasExpired() { return expired; }
+    public synchronized boolean cancel() {
+      boolean was = expired;
+      expired = true;
+      return was;
+    }
+    public synchronized String toString() {
+      return "<SeedImageAlarm " + expiresAt +
+        (expired ? "(Expired) " : " ") +
+        "for YPServer at " + originMA + ">";
+    }
+  }
+
+  /** Write the files of image into directory **/
+  private static void cloneImage(HashMap image, File directory) throws IOException {
+    for (Iterator i = image.entrySet().iterator(); i.hasNext(); ) {
+      java.util.Map.Entry entry = (java.util.Map.Entry) i.next();
+      ByteBuffer contents = ByteBuffer.wrap((byte[]) entry.getValue());
+      FileChannel out = 
+        new FileOutputStream(new File(directory, (String) entry.getKey())).getChannel();
+      try {
+        while (contents.hasRemaining()) {
+          out.write(contents);
+        }
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    FileChannel in = new FileInputStream(file).getChannel();
     try {
-      
-      if (!ypSourceDir.canRead()) {
-	logger.fatal("ypSourceDir: unable to read " + 
-		     ypSourceDir.getPath() + " directory");
-	return;
+      ByteBuffer contents = ByteBuffer.allocate((int) in.size());
+      while (contents.hasRemaining()) {
+        if (in.read(contents) < 0) {
+          throw new IOException("Unexpected end of "+file);
+        }
       }
-      
-      File []ypSourceFiles = ypSourceDir.listFiles();
-      for (int index = 0; index < ypSourceFiles.length; index++) {
-	File ypSourceFile = ypSourceFiles[index];
-	if (ypSourceFile.isFile()) {
-	  BufferedReader in =
-	    new BufferedReader(new FileReader(ypSourceFile));
-	  
-	  BufferedWriter out =
-	    new BufferedWriter(new FileWriter(new File(newDir, ypSourceFile.getName())));
-	  String inLine;
-	  while ((inLine = in.readLine()) != null) {
-	    out.write(inLine);
-	    out.newLine();
-	  }
-	  
-	  in.close();
-	  out.close();
-	}
+      return contents.array();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void deleteDirectory(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (int i = 0; i < files.length; i++) {
+        if (files[i].isDirectory()) {
+          deleteDirectory(files[i]);
+        } else {
+          files[i].delete();
+        }
       }
-    } catch (FileNotFoundException fnfe) {
-      logger.fatal("copyFiles: error copying " + ypSourceDir.getPath() + 
-		   " files.", fnfe);
-    } catch (IOException ioe) {
-      logger.fatal("copyFiles: error copying " + ypSourceDir.getPath() + 
-		   " files.", ioe);
+    }
+    dir.delete();
+  }
+
+  /** Delete the agent@timestamp database directories left under home by 
+   * earlier runs of this agent, but for the most recent.  Each load starts
+   * a new one, and any state worth keeping comes back through rehydration
+   * instead; the most recent is kept in case that fails.
+   **/
+  private void removeOldDatabases(File home) {
+    String prefix = originMA.toString() + "@";
+    File[] dirs = (home == null) ? null : home.listFiles();
+    if (dirs == null) return;
+    List old = new ArrayList();
+    File latest = null;
+    long latestTime = Long.MIN_VALUE;
+    for (int i = 0; i < dirs.length; i++) {
+      String name = dirs[i].getName();
+      if (!name.startsWith(prefix) || name.equals(dbName) || !dirs[i].isDirectory()) {
+        continue;
+      }
+      long time;
+      try {
+        time = Long.parseLong(name.substring(prefix.length()));
+      } catch (NumberFormatException nfe) {
+        continue;               // not one of ours
+      }
+      old.add(dirs[i]);
+      if (time > latestTime) {
+        latestTime = time;
+        latest = dirs[i];
+      }
+    }
+    old.remove(latest);
+    for (Iterator i = old.iterator(); i.hasNext(); ) {
+      deleteDirectory((File) i.next());
+    }
+    if (!old.isEmpty() && logger.isInfoEnabled()) {
+      logger.info(originMA + " removed " + old.size() + " old database directories from " + 
+                  home + ", keeping " + latest.getName());
     }
   }
 
@@ -595,6 +1962,10 @@ public class YPServer extends ComponentSupport {
       }
     }
 
+    if (REMOVE_OLD_DATABASES) {
+      removeOldDatabases(juddiHomeDir.getParentFile());
+    }
+
     File confDir = new File(juddiHomeDir, "conf");
     if(!confDir.isDirectory()) {
       if (!confDir.mkdirs()) {
@@ -604,7 +1975,12 @@ public class YPServer extends ComponentSupport {
       }
     }
 
-    copyFiles("conf", confDir.toString());
+    try {
+      copyFiles("conf", confDir.toString());
+    } catch (IOException ioe) {
+      logger.fatal("copyFiles: error copying " + seedDirectory("conf").getPath() + 
+		   " files.", ioe);
+    }
 
     Config.dbTag.set(dbName);
     if (logger.isDebugEnabled()) {
@@ -616,16 +1992,36 @@ public class YPServer extends ComponentSupport {
 		   " YPServer thinks juddi config  = " + confDir);
     }
 
+    if (IN_MEMORY_DATABASE) {
+      Config.getProperty("org.juddi.inMemoryDatabase"); // loads our juddi.properties
+      Properties juddiProperties = Config.getProperties();
+      if (juddiProperties != null) {
+        juddiProperties.setProperty("org.juddi.inMemoryDatabase", "true");
+      }
+    }
+    inMemory = org.juddi.datastore.jdbc.HSQLDataStoreFactory.isInMemory();
+    if (inMemory) {
+      initMemoryDB();
+      return;
+    }
+
     dbDirectory = new File(Config.getHomeDir(), "hsql");
     dbDirectory.mkdirs();
+    snapshotBase = new SnapshotBase(dbDirectory, "juddidb.script");
 
     synchronized (databaseLocker) {
       if (databaseEnvelope!=null) { // rehydrate!
         try {
-          databaseEnvelope.dumpPayload(dbDirectory);
-          snapshotDatabase();   // re-snapshot to avoid keeping a big array around
+          DatabaseEnvelope rehydrated = databaseEnvelope;
+          rehydrated.dumpPayload(dbDirectory);
+          synchronized (snapshotBaseLock) {
+            // discarded once a new base replaces it, see publishSnapshotBase
+            rehydratedImage = rehydrated.getImage();
+          }
+          snapshotDatabase();   // re-snapshot to avoid keeping a big spool file around
                                 // Note that this call re-syncs on databaseLocker
                                 // but we don't want a gap.
+          rehydrated.discardPayload();
           return;               // done - all is well
         } catch (IOException ioe) {
           logger.error("Unrecoverable database snapshot "+dbDirectory, ioe);
@@ -634,12 +2030,83 @@ public class YPServer extends ComponentSupport {
       
       // no successful recovery, so we'll have to start over
       org.juddi.datastore.jdbc.HSQLDataStoreFactory.getURL();
-      copyFiles("hsql", dbDirectory.getPath());
+      try {
+        cloneImage(getSeedImage(), dbDirectory);
+        if (getAlarmService() != null) {
+          getAlarmService().addRealTimeAlarm(new SeedImageAlarm());
+        }
+      } catch (Exception e) {
+        logger.error(originMA + " unable to use the seed database image, copying the seed", e);
+        try {
+          copyFiles("hsql", dbDirectory.getPath());
+        } catch (IOException ioe) {
+          logger.fatal("copyFiles: error copying " + seedDirectory("hsql").getPath() + 
+                       " files.", ioe);
+        }
+      }
       snapshotDatabase();     // take a snapshot immediately
     }
     //hack();
   }
 
+  /** Create and load our in-memory database from the rehydrated snapshot,
+   * if any, or from the seed script.
+   **/
+  private void initMemoryDB() {
+    synchronized (databaseLocker) {
+      try {
+        org.juddi.datastore.jdbc.HSQLDataStoreFactory.openDatabase();
+
+        if (databaseEnvelope != null && databaseEnvelope.hasPayload()) { // rehydrate!
+          try {
+            List statements = databaseEnvelope.getPayloadScript();
+            if (statements == null) {
+              throw new IOException("No "+DatabaseEnvelope.SCRIPT_ENTRY+" in snapshot");
+            }
+            org.juddi.datastore.jdbc.HSQLDataStoreFactory.loadScript(statements);
+            DatabaseEnvelope rehydrated = databaseEnvelope;
+            snapshotDatabase();
+            rehydrated.discardPayload();
+            return;             // done - all is well
+          } catch (Exception e) {
+            logger.error("Unrecoverable database snapshot for "+dbName, e);
+            // start over with an empty database
+            org.juddi.datastore.jdbc.HSQLDataStoreFactory.closeDatabase();
+            org.juddi.datastore.jdbc.HSQLDataStoreFactory.openDatabase();
+          }
+        }
+
+        org.juddi.datastore.jdbc.HSQLDataStoreFactory.loadScript(getSeedScript());
+      } catch (Exception e) {
+        logger.fatal("Unable to create in-memory database "+dbName, e);
+      }
+      snapshotDatabase();
+    }
+  }
+
+  /** SQL statements of the seed database, shared by all YPServers in the node **/
+  private static List seedScript = null;
+
+  /** @return the statements of yp/data/juddi/hsql/juddidb.script, read once **/
+  private List getSeedScript() throws IOException {
+    synchronized (YPServer.class) {
+      if (seedScript == null) {
+        File seed = new File(installPath + File.separator + "yp" + 
+                             File.separator + "data" +
+                             File.separator + "juddi" + 
+                             File.separator + "hsql" +
+                             File.separator + DatabaseEnvelope.SCRIPT_ENTRY);
+        FileInputStream in = new FileInputStream(seed);
+        try {
+          seedScript = Collections.unmodifiableList(DatabaseEnvelope.readScript(in));
+        } finally {
+          in.close();
+        }
+      }
+      return seedScript;
+    }
+  }
+
   void initUDDI() {
     Properties props = new Properties();
     props.setProperty("operator", "Cougaar");
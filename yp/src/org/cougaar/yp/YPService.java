@@ -143,6 +143,40 @@ public interface YPService extends Service {
    **/
   YPFuture submit(YPFuture ypr);
 
+  /** Submit several queries to the same YP server in a single message, e.g.
+   * to register a business, its services and their bindings at once.  The
+   * server executes them in order, any publishes in a single transaction: 
+   * if one publish fails, none of them take effect and every future of the 
+   * batch receives the fault.  Inquiries in a batch are not answered from the
+   * client cache.
+   * @param yprs unsubmitted YPFutures which all have the same initial context.
+   * Each must be complete in itself, e.g. publishes must already carry an authInfo.
+   * @return argument for convenience.
+   **/
+  YPFuture[] submitBatch(YPFuture[] yprs);
+
+  /** Submit a find_* inquiry to all of the YP servers in several contexts at
+   * once, merging their answers into one.  Entries held by more than one 
+   * server appear only once, and the maxRows of the inquiry applies to the
+   * merged answer.
+   * <p>
+   * The final context of the future is a ScatterGatherReport listing the servers
+   * which answered, answered with a UDDI fault, or did not answer in time.  The
+   * future fails only if no server answered.
+   * @param ypr an unsubmitted YPFuture, as returned by a YPProxy which does not
+   * automatically submit (the proxy's own context is ignored).
+   * @param contexts a Collection of Community and MessageAddress contexts.
+   * The community hierarchy is not searched.
+   * @param timeout milliseconds to wait for each server, or 0 for the default
+   * @return argument for convenience.
+   **/
+  YPFuture scatter(YPFuture ypr, java.util.Collection contexts, long timeout);
+
+  /** @return the agent whose YP client this service is, e.g. so that 
+   * its users may share state such as AuthTokens.
+   **/
+  MessageAddress getAgentAddress();
+
 
   /** Find the YP server context for a given agent.
    * @param AgentName  name of the agent
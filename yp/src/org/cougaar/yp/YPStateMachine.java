@@ -26,9 +26,14 @@
 
 package org.cougaar.yp;
 
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
 
+import org.cougaar.core.mts.MessageAddress;
 import org.cougaar.core.service.ThreadService;
 import org.cougaar.core.thread.Schedulable;
 import org.cougaar.util.StackMachine;
@@ -47,9 +52,25 @@ public class YPStateMachine extends StackMachine {
   private static String UDDI_USERID = "cougaar";
   private static String UDDI_PASSWORD = "cougaarPass";
 
+  /** If true, the machines of an agent share AuthTokens rather than each
+   * getting (and discarding) their own.
+   **/
+  private static final boolean SHARE_AUTH_TOKENS =
+    Boolean.valueOf(System.getProperty("org.cougaar.yp.ShareAuthTokens", "true")).booleanValue();
+
+  /** Milliseconds a shared AuthToken may go unused before it is no longer 
+   * trusted.  Must be less than the server's inactivity timeout
+   * (org.juddi.authenticator.authInfoTimeout, 20 minutes by default).
+   **/
+  private static int AUTH_TOKEN_IDLE = 10 * 60 * 1000;
+  private static final String AUTH_TOKEN_IDLE_PROPERTY =
+  "org.cougaar.yp.AuthTokenIdle";
+
   static {
     UDDI_USERID = System.getProperty("org.cougaar.yp.juddi-users.username", YPProxy.DEFAULT_UDDI_USERNAME);
     UDDI_PASSWORD = System.getProperty("org.cougaar.yp.juddi-users.password", YPProxy.DEFAULT_UDDI_PASSWORD);
+    AUTH_TOKEN_IDLE = 
+      Integer.getInteger(AUTH_TOKEN_IDLE_PROPERTY, AUTH_TOKEN_IDLE).intValue();
   }
 
   private static int WARNING_SUPPRESSION_INTERVAL = 5;
@@ -90,6 +111,104 @@ public class YPStateMachine extends StackMachine {
   private AuthToken token = null;
   protected AuthToken getAuthToken() { return token; }
 
+  //
+  // AuthTokens shared by the machines of an agent
+  //
+
+  /** agent MessageAddress -> Map of shared token key -> SharedToken.  Sync on itself. **/
+  private static final Map sharedTokens = new HashMap(11);
+
+  private static class SharedToken {
+    final AuthToken token;
+    long lastUsed;
+    SharedToken(AuthToken token) {
+      this.token = token;
+      this.lastUsed = System.currentTimeMillis();
+    }
+  }
+
+  /** Tokens are only good at the server which issued them, so are shared by
+   * the machines of an agent which use the same YP server context and 
+   * credentials.  Only a digest of the password is kept.
+   * @param server the context which issued, or will issue, the token
+   **/
+  static String sharedTokenKey(Object server, String username, String password) {
+    return ClientResponseCache.contextName(server) + "|" + username + "|" + digest(password);
+  }
+
+  private static String digest(String s) {
+    if (s == null) return "";
+    try {
+      byte[] d = MessageDigest.getInstance("SHA").digest(s.getBytes("UTF-8"));
+      StringBuffer sb = new StringBuffer(d.length*2);
+      for (int i = 0; i < d.length; i++) {
+        sb.append(Character.forDigit((d[i] >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(d[i] & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (Exception e) {     // NoSuchAlgorithmException, UnsupportedEncodingException
+      throw new RuntimeException("Could not digest password", e);
+    }
+  }
+
+  /** @return the shared tokens of our agent, or null.  Call while synchronized on sharedTokens. **/
+  private Map getSharedTokens(boolean create) {
+    MessageAddress agent = yps.getAgentAddress();
+    Map m = (Map) sharedTokens.get(agent);
+    if (m == null && create) {
+      m = new HashMap(5);
+      sharedTokens.put(agent, m);
+    }
+    return m;
+  }
+
+  /** @return a recently used shared token for the key, or null **/
+  private AuthToken findSharedToken(String key) {
+    synchronized (sharedTokens) {
+      Map m = getSharedTokens(false);
+      SharedToken st = (m == null) ? null : (SharedToken) m.get(key);
+      if (st == null) return null;
+      long now = System.currentTimeMillis();
+      if (now - st.lastUsed >= AUTH_TOKEN_IDLE) {
+        m.remove(key);
+        return null;
+      }
+      st.lastUsed = now;
+      return st.token;
+    }
+  }
+
+  private void addSharedToken(String key, AuthToken t) {
+    synchronized (sharedTokens) {
+      getSharedTokens(true).put(key, new SharedToken(t));
+    }
+  }
+
+  /** @return true if the token is shared with other machines, so must not be discarded **/
+  private boolean isSharedToken(AuthToken t) {
+    if (t == null) return false;
+    synchronized (sharedTokens) {
+      Map m = getSharedTokens(false);
+      if (m == null) return false;
+      for (Iterator i = m.values().iterator(); i.hasNext(); ) {
+        if (((SharedToken) i.next()).token == t) return true;
+      }
+      return false;
+    }
+  }
+
+  /** Stop sharing a token, e.g. because the server may have forgotten it **/
+  private void forgetSharedToken(AuthToken t) {
+    if (t == null) return;
+    synchronized (sharedTokens) {
+      Map m = getSharedTokens(false);
+      if (m == null) return;
+      for (Iterator i = m.values().iterator(); i.hasNext(); ) {
+        if (((SharedToken) i.next()).token == t) i.remove();
+      }
+    }
+  }
+
   /** restart the thread **/
   protected synchronized void kick() {
     thread.start();
@@ -136,17 +255,76 @@ public class YPStateMachine extends StackMachine {
         }
       });
 
-    addYPQ("getAuthToken", "POP", new YPQ() {
+    // called with call("getAuthToken", properties or null, nexttag);
+    // Finds the context whose server would issue the token, i.e. the first
+    // one searched, and uses a token shared by another machine if it can.
+    add(new SState("getAuthToken") {
+        public void invoke() {
+          if (!SHARE_AUTH_TOKENS) {
+            transit("getAuthToken (server)");
+            return;
+          }
+          Object context = (yp instanceof YPProxyImpl) ? ((YPProxyImpl) yp).getContext() : yp;
+          if (context != null) {
+            getFrame().setVar("tokenContext", context);
+            transit("getAuthToken (shared)");
+            return;
+          }
+          final Frame frame = getFrame();
+          yps.nextYPServerContext(null, new YPService.NextContextCallback() {
+              private boolean used = false; // may be called more than once
+              public void setNextContext(Object c) {
+                synchronized (this) {
+                  if (used) return;
+                  used = true;
+                }
+                frame.setVar("tokenContext", c);
+                transit("getAuthToken (shared)");
+                kick();
+              }
+            });
+        }});
+
+    add(new SState("getAuthToken (shared)") {
+        public void invoke() {
+          Object context = getFrame().getVar("tokenContext");
+          if (context != null) {
+            Properties p = (Properties) getFrame().getArgument();
+            if (p == null) p = ypproperties;
+            AuthToken t = findSharedToken(sharedTokenKey(context, p.getProperty("username"),
+                                                         p.getProperty("password")));
+            if (t != null) {
+              token = t;
+              getFrame().setRetval(token);
+              transit("POP");
+              return;
+            }
+          }
+          transit("getAuthToken (server)");
+        }});
+
+    addYPQ("getAuthToken (server)", "POP", new YPQ() {
         public YPFuture get(Frame f) { 
           Properties p = (Properties) f.getArgument();
           if (p == null) p = ypproperties;
           String username = p.getProperty("username");
           String password = p.getProperty("password");
-          return yp.get_authToken(username, password); 
+          YPFuture fut = yp.get_authToken(username, password); 
+          f.setVar("tokenFuture", fut);
+          return fut;
         }
         public void set(Frame f, Object r) {
           token = (AuthToken) r; 
           f.setRetval(token);
+          // shared under the context which actually issued it
+          Object issuer = ((YPFuture) f.getVar("tokenFuture")).getFinalContext();
+          if (SHARE_AUTH_TOKENS && issuer != null) {
+            Properties p = (Properties) f.getArgument();
+            if (p == null) p = ypproperties;
+            addSharedToken(sharedTokenKey(issuer, p.getProperty("username"), 
+                                          p.getProperty("password")),
+                           token);
+          }
         }
         public void handle(Frame f, Exception e) {
 	  f.setVar("YPErrorException", e);
@@ -155,7 +333,20 @@ public class YPStateMachine extends StackMachine {
         }
       });
 
-    addYPQ("discardAuthToken", "POP", new YPQ() {
+    // shared tokens are left for the other machines
+    add(new SState("discardAuthToken") {
+        public void invoke() {
+          AuthToken t = (AuthToken) getFrame().getArgument();
+          if (t == null) t = token;
+          if (isSharedToken(t)) {
+            if (t == token) token = null;
+            transit("POP");
+          } else {
+            transit("discardAuthToken (server)");
+          }
+        }});
+
+    addYPQ("discardAuthToken (server)", "POP", new YPQ() {
         public YPFuture get(Frame f) {
           AuthToken t = (AuthToken) f.getArgument();
           if (t == null) t = token;
@@ -220,6 +411,42 @@ public class YPStateMachine extends StackMachine {
     void handle(Frame f, Exception e);
   }
 
+  /** abstraction of several independent asynchronous YP Queries, 
+   * issued together and joined when all are complete
+   **/
+  public interface ParallelYPQ {
+    /** return the YP Queries to submit together **/
+    YPFuture[] get(Frame f);
+    /** consume the results of the queries, in the same order, once all are complete **/
+    void set(Frame f, Object[] results);
+    /** consume the first exception to happen.  Must do the proper transit **/
+    void handle(Frame f, Exception e);
+  }
+
+  /** As #addYPQ, except that the state issues several queries at once, e.g.
+   * to save a number of services under a business, and moves on to nextTag 
+   * when all of them have been answered.
+   **/
+  protected void addParallelYPQ(String startTag, final String nextTag, final ParallelYPQ pq) {
+    addYPQ(startTag, nextTag, new YPQ() {
+        public YPFuture get(Frame f) {
+          YPFuture[] futs = pq.get(f);
+          for (int i = 0; i < futs.length; i++) {
+            if (!((YPFutureImpl) futs[i]).isSubmitted()) {
+              yps.submit(futs[i]);
+            }
+          }
+          return YPFutures.allOf(futs);
+        }
+        public void set(Frame f, Object r) {
+          pq.set(f, (Object[]) r);
+        }
+        public void handle(Frame f, Exception e) {
+          pq.handle(f, e);
+        }
+      });
+  }
+
   protected void addYPQ(String startTag, final String nextTag, final YPQ ypq) {
     add(new SState(startTag) { public void invoke() {
       final Frame frame = getFrame();
@@ -247,12 +474,17 @@ public class YPStateMachine extends StackMachine {
         } catch (Exception re) {
           logHandledError("Caught exception from YP during kick() in "+(YPStateMachine.this)+
                     " with YPFuture "+r, re);
+          // the server may no longer know our token, so don't pass it on
+          forgetSharedToken(token);
           ypq.handle(frame, re);
         }
       }};
       fut.setCallback(cab);
       try {
-        yps.submit(fut);
+        // a composed future (e.g. from addParallelYPQ) is already under way
+        if (!((YPFutureImpl) fut).isSubmitted()) {
+          yps.submit(fut);
+        }
       } catch (RuntimeException e) {
         logHandledError("Caught exception in YPQ.submit() "+ypq, e);
         ypq.handle(frame, e);